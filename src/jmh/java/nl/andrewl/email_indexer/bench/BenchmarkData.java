@@ -0,0 +1,93 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
+import nl.andrewl.email_indexer.gen.DecodedEmail;
+import nl.andrewl.email_indexer.gen.EmailDatasetGenerator;
+import nl.andrewl.email_indexer.gen.SanitizingEmailHandler;
+import nl.andrewl.email_indexer.gen.SyntheticCorpusGenerator;
+import nl.andrewl.mboxparser.MBoxParser;
+import org.h2.store.fs.FileUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Helpers for preparing the data that benchmarks run against. Corpora are
+ * either directories of mbox files, like the test_emails directory in the
+ * root of this project, or "synthetic:N" to use a generated corpus of N
+ * messages. See {@link SyntheticCorpusGenerator}.
+ */
+final class BenchmarkData {
+	private static final String SYNTHETIC_PREFIX = "synthetic:";
+	private static final Map<String, Path> generatedCorpora = new ConcurrentHashMap<>();
+
+	private BenchmarkData() {}
+
+	/**
+	 * Gets the directory containing a corpus' mbox files, generating it first
+	 * if it's a synthetic corpus. Synthetic corpora are generated once per
+	 * JVM, in a temporary directory that's deleted on exit.
+	 * @param corpus The corpus.
+	 * @return The directory containing the corpus' mbox files.
+	 */
+	static Path resolveCorpus(String corpus) {
+		if (!corpus.startsWith(SYNTHETIC_PREFIX)) return Path.of(corpus);
+		return generatedCorpora.computeIfAbsent(corpus, c -> {
+			int count = Integer.parseInt(c.substring(SYNTHETIC_PREFIX.length()).replace("_", ""));
+			try {
+				Path dir = Files.createTempDirectory("email-indexer-synthetic-corpus");
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> FileUtils.deleteRecursive(dir.toString(), true)));
+				new SyntheticCorpusGenerator().withMessageCount(count).generate(dir);
+				return dir;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Finds all mbox files in a corpus directory.
+	 * @param corpus The corpus directory.
+	 * @return The sorted list of mbox files.
+	 * @throws IOException If the directory could not be read.
+	 */
+	static List<Path> findMboxFiles(String corpus) throws IOException {
+		try (var s = Files.walk(resolveCorpus(corpus))) {
+			return s.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().toLowerCase().endsWith(".mbox"))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Parses and sanitizes all emails in a corpus, and keeps them in memory.
+	 * @param corpus The corpus directory.
+	 * @return The list of sanitized emails.
+	 * @throws Exception If the corpus could not be parsed.
+	 */
+	static List<DecodedEmail> parseSanitized(String corpus) throws Exception {
+		List<DecodedEmail> emails = new ArrayList<>();
+		MBoxParser parser = new MBoxParser(new SanitizingEmailHandler(emails::add));
+		for (var file : findMboxFiles(corpus)) {
+			parser.parse(file);
+		}
+		return emails;
+	}
+
+	/**
+	 * Generates a complete in-memory dataset from a corpus.
+	 * @param corpus The corpus directory.
+	 * @return The dataset.
+	 */
+	static InMemoryEmailDataset generateDataset(String corpus) {
+		return new EmailDatasetGenerator().generateInMemory(Set.of(resolveCorpus(corpus))).join();
+	}
+}
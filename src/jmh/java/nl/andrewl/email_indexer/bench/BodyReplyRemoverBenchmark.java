@@ -0,0 +1,64 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.gen.transform.BodyReplyRemover;
+import nl.andrewl.mboxparser.MBoxParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the reply remover against the original implementation, which
+ * split each body into lines and trimmed each line twice. Both return the
+ * remaining text, since the body is only encoded once, when it's stored. Each
+ * operation processes every body in the corpus once. Run with
+ * {@code -prof gc} and divide {@code gc.alloc.rate.norm} by the corpus size
+ * that's printed during setup to get the allocation per MB of mail.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BodyReplyRemoverBenchmark {
+	@Param("test_emails")
+	public String corpus;
+
+	private List<String> bodies;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		bodies = new ArrayList<>();
+		MBoxParser parser = new MBoxParser(email -> {
+			if (email.charset != null && email.body != null) bodies.add(email.readBodyAsText());
+		});
+		for (var file : BenchmarkData.findMboxFiles(corpus)) parser.parse(file);
+		long chars = bodies.stream().mapToLong(String::length).sum();
+		System.out.printf("%nCorpus contains %d bodies, %.2f MB of text.%n", bodies.size(), chars / 1_000_000.0);
+	}
+
+	@Benchmark
+	public void scanner(Blackhole bh) {
+		for (var body : bodies) bh.consume(BodyReplyRemover.removeReplies(body));
+	}
+
+	@Benchmark
+	public void legacySplit(Blackhole bh) {
+		for (var body : bodies) bh.consume(legacyRemoveReplies(body));
+	}
+
+	private static String legacyRemoveReplies(String text) {
+		String[] lines = text.split("\n");
+		StringBuilder sb = new StringBuilder(text.length());
+		for (var line : lines) {
+			if (line.trim().equalsIgnoreCase("-----Original Message-----")) break;
+			if (!line.trim().startsWith(">")) {
+				sb.append(line).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+}
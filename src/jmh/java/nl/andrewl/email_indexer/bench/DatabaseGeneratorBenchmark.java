@@ -0,0 +1,55 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.gen.DatabaseGenerator;
+import nl.andrewl.email_indexer.gen.DecodedEmail;
+import nl.andrewl.email_indexer.util.Status;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the cost of inserting a corpus of already-sanitized emails into a
+ * fresh in-memory database, with and without the post-processing step that
+ * links replies to their parents.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseGeneratorBenchmark {
+	private static final AtomicInteger DB_COUNTER = new AtomicInteger();
+
+	@Param("test_emails")
+	public String corpus;
+
+	private List<DecodedEmail> emails;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		emails = BenchmarkData.parseSanitized(corpus);
+	}
+
+	@Benchmark
+	public void insert() throws Exception {
+		try (var dbGen = newGenerator()) {
+			for (var email : emails) dbGen.addEmail(email);
+		}
+	}
+
+	@Benchmark
+	public void insertAndPostProcess() throws Exception {
+		try (var dbGen = newGenerator()) {
+			for (var email : emails) dbGen.addEmail(email);
+			dbGen.postProcess(Status.noOp());
+		}
+	}
+
+	private DatabaseGenerator newGenerator() throws Exception {
+		// Without DB_CLOSE_DELAY, the database is dropped when the generator closes its connection.
+		return new DatabaseGenerator("jdbc:h2:mem:bench-db-gen-" + DB_COUNTER.incrementAndGet());
+	}
+}
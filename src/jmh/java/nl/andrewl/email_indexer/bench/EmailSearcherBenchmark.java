@@ -0,0 +1,62 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
+import nl.andrewl.email_indexer.data.search.EmailSearchResult;
+import nl.andrewl.email_indexer.data.search.EmailSearcher;
+import nl.andrewl.email_indexer.data.search.SearchFilter;
+import nl.andrewl.email_indexer.data.search.filter.HiddenFilter;
+import nl.andrewl.email_indexer.data.search.filter.RootFilter;
+import nl.andrewl.email_indexer.data.search.filter.TagFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures filtered, paginated searches over the database. Deep pages are
+ * included on purpose, since their cost grows with the page's offset.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmailSearcherBenchmark {
+	@Param("test_emails")
+	public String corpus;
+
+	@Param({"1", "10", "100"})
+	public int page;
+
+	@Param({"hidden", "roots", "untagged"})
+	public String filter;
+
+	private static final int PAGE_SIZE = 20;
+
+	private InMemoryEmailDataset dataset;
+	private EmailSearcher searcher;
+	private List<SearchFilter> filters;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		dataset = BenchmarkData.generateDataset(corpus);
+		searcher = new EmailSearcher(dataset);
+		filters = switch (filter) {
+			case "hidden" -> List.of(new HiddenFilter(false));
+			case "roots" -> List.of(new HiddenFilter(false), new RootFilter(true));
+			case "untagged" -> List.of(new HiddenFilter(false), TagFilter.includeNone());
+			default -> throw new IllegalArgumentException("Unknown filter: " + filter);
+		};
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dataset.close().join();
+	}
+
+	@Benchmark
+	public EmailSearchResult findAll() {
+		return searcher.findAll(page, PAGE_SIZE, filters).join();
+	}
+}
@@ -0,0 +1,71 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
+import nl.andrewl.email_indexer.data.export.ExporterParameters;
+import nl.andrewl.email_indexer.data.export.datasample.datatype.CsvExporter;
+import nl.andrewl.email_indexer.data.export.datasample.datatype.PdfExporter;
+import nl.andrewl.email_indexer.data.export.datasample.datatype.TxtExporter;
+import nl.andrewl.email_indexer.data.export.datasample.datatype.TypeExporter;
+import nl.andrewl.email_indexer.data.export.datasample.sampletype.FilterExporter;
+import nl.andrewl.email_indexer.data.search.filter.HiddenFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each of the type exporters, by exporting a fixed number of
+ * filtered emails (including their replies) to a temporary file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+	@Param("test_emails")
+	public String corpus;
+
+	@Param({"txt", "csv", "pdf"})
+	public String format;
+
+	@Param("100")
+	public int emailCount;
+
+	private InMemoryEmailDataset dataset;
+	private Path outputFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dataset = BenchmarkData.generateDataset(corpus);
+		outputFile = Files.createTempFile("email-indexer-export-benchmark", "." + format);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		dataset.close().join();
+		Files.deleteIfExists(outputFile);
+	}
+
+	@Benchmark
+	public void export() {
+		var params = new ExporterParameters()
+				.withMaxResultCount(emailCount)
+				.withExportReplies(true)
+				.withSearchFilters(List.of(new HiddenFilter(false)));
+		new FilterExporter(newTypeExporter(), params).export(dataset, outputFile).join();
+	}
+
+	private TypeExporter newTypeExporter() {
+		return switch (format) {
+			case "txt" -> new TxtExporter();
+			case "csv" -> new CsvExporter();
+			case "pdf" -> new PdfExporter();
+			default -> throw new IllegalArgumentException("Unknown format: " + format);
+		};
+	}
+}
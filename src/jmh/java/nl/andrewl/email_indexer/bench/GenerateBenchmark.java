@@ -0,0 +1,42 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.gen.EmailDatasetGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures complete in-memory dataset generation, comparing indexing emails
+ * as they're added to the database with indexing them afterwards.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GenerateBenchmark {
+	@Param("test_emails")
+	public String corpus;
+
+	@Param({"false", "true"})
+	public boolean singlePassIndexing;
+
+	private Path corpusDir;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		corpusDir = BenchmarkData.resolveCorpus(corpus);
+	}
+
+	@Benchmark
+	public void generateInMemory() {
+		new EmailDatasetGenerator()
+				.withSinglePassIndexing(singlePassIndexing)
+				.generateInMemory(Set.of(corpusDir))
+				.thenCompose(ds -> ds.close())
+				.join();
+	}
+}
@@ -0,0 +1,40 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
+import nl.andrewl.email_indexer.gen.EmailIndexGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to build the Lucene index for a dataset. The
+ * dataset and its index are kept in memory, so this isolates the cost of
+ * reading emails from the database and analyzing them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexBenchmark {
+	@Param("test_emails")
+	public String corpus;
+
+	private InMemoryEmailDataset dataset;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		dataset = BenchmarkData.generateDataset(corpus);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dataset.close().join();
+	}
+
+	@Benchmark
+	public void generateIndex() throws Exception {
+		new EmailIndexGenerator().generateIndex(dataset);
+	}
+}
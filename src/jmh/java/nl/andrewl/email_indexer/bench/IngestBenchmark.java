@@ -0,0 +1,62 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.gen.SanitationPipeline;
+import nl.andrewl.email_indexer.gen.SanitizingEmailHandler;
+import nl.andrewl.mboxparser.MBoxParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how quickly a corpus can be parsed and sanitized, which is the
+ * first stage of dataset generation, optionally sanitizing emails on several
+ * threads. Per-stage sanitation times are printed after each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestBenchmark {
+	@Param("test_emails")
+	public String corpus;
+
+	@Param({"0", "4"})
+	public int sanitationThreads;
+
+	private List<Path> mboxFiles;
+	private SanitationPipeline pipeline;
+	private ExecutorService executor;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		mboxFiles = BenchmarkData.findMboxFiles(corpus);
+		pipeline = SanitationPipeline.defaults();
+		executor = sanitationThreads > 0 ? Executors.newFixedThreadPool(sanitationThreads) : null;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (executor != null) executor.shutdownNow();
+		System.out.println();
+		for (var stage : pipeline.getStages()) {
+			System.out.println(stage);
+		}
+	}
+
+	@Benchmark
+	public void parseAndSanitize(Blackhole bh) throws Exception {
+		var handler = new SanitizingEmailHandler(bh::consume, pipeline, executor, Math.max(1, sanitationThreads * 64));
+		MBoxParser parser = new MBoxParser(handler);
+		for (var file : mboxFiles) {
+			parser.parse(file);
+		}
+		handler.awaitCompletion();
+	}
+}
@@ -0,0 +1,53 @@
+package nl.andrewl.email_indexer.bench;
+
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
+import nl.andrewl.email_indexer.data.search.EmailIndexSearcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of Lucene queries, both for thread-level searches
+ * (which resolve root ids) and for plain email searches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+	@Param("test_emails")
+	public String corpus;
+
+	@Param({"hadoop", "t*", "\"map reduce\"", "dfs AND namenode"})
+	public String query;
+
+	@Param({"10", "100"})
+	public int maxResults;
+
+	private InMemoryEmailDataset dataset;
+	private EmailIndexSearcher searcher;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		dataset = BenchmarkData.generateDataset(corpus);
+		searcher = new EmailIndexSearcher();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dataset.close().join();
+	}
+
+	@Benchmark
+	public List<Long> searchThreads() throws Exception {
+		return searcher.search(dataset, query, maxResults);
+	}
+
+	@Benchmark
+	public List<Long> searchEmails() throws Exception {
+		return searcher.searchEmails(dataset, query, maxResults);
+	}
+}
@@ -0,0 +1,76 @@
+package nl.andrewl.email_indexer.data;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A sender's address, as stored in the ADDRESS table. Emails refer to their
+ * sender's address by its id, so that they can be looked up by sender or
+ * domain using an index, instead of by matching their SENT_FROM text.
+ * @param id The id of the address.
+ * @param address The normalized address, which is trimmed and lowercased.
+ * @param displayName The name that the address was first seen with, if any.
+ * @param domain The part of the address after the last '@', if any.
+ */
+public record Address(
+		int id,
+		String address,
+		String displayName,
+		String domain
+) {
+	private static final Pattern NAME_ADDRESS = Pattern.compile("^(.*?)\\s*<([^<>]*)>$");
+	private static final Pattern ADDRESS_NAME = Pattern.compile("^(\\S+@\\S+)\\s*\\((.*)\\)$");
+
+	public Address(ResultSet rs) throws SQLException {
+		this(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
+	}
+
+	/**
+	 * Parses the sender of an email. Both {@code Name <address>} and
+	 * {@code address (Name)} forms are understood; anything else is taken to
+	 * be just an address.
+	 * @param sentFrom The sender, as found in an email's SENT_FROM.
+	 * @return The address, without an id, or an empty optional if there is
+	 * no address.
+	 */
+	public static Optional<Address> parse(String sentFrom) {
+		if (sentFrom == null || sentFrom.isBlank()) return Optional.empty();
+		String s = sentFrom.trim();
+		String address = s;
+		String name = null;
+		Matcher m = NAME_ADDRESS.matcher(s);
+		if (m.matches()) {
+			name = m.group(1);
+			address = m.group(2);
+		} else if ((m = ADDRESS_NAME.matcher(s)).matches()) {
+			address = m.group(1);
+			name = m.group(2);
+		}
+		address = normalize(address);
+		if (address.isEmpty()) return Optional.empty();
+		if (name != null) {
+			name = name.trim();
+			if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+				name = name.substring(1, name.length() - 1).trim();
+			}
+			if (name.isEmpty()) name = null;
+		}
+		int at = address.lastIndexOf('@');
+		String domain = at >= 0 && at < address.length() - 1 ? address.substring(at + 1) : null;
+		return Optional.of(new Address(0, address, name, domain));
+	}
+
+	/**
+	 * Normalizes an address, so that it can be compared to the addresses in
+	 * the ADDRESS table.
+	 * @param address The address.
+	 * @return The normalized address.
+	 */
+	public static String normalize(String address) {
+		return address.trim().toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,105 @@
+package nl.andrewl.email_indexer.data;
+
+import nl.andrewl.email_indexer.util.DbUtils;
+
+import java.sql.Connection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Repository for looking up the addresses that emails were sent from, and
+ * statistics about them. All lookups use the ADDRESS table and the index on
+ * each email's address id, instead of the SENT_FROM text.
+ */
+public class AddressRepository {
+	private final Connection conn;
+
+	public AddressRepository(Connection conn) {
+		this.conn = conn;
+	}
+
+	public AddressRepository(EmailDataset ds) {
+		this(ds.getConnection());
+	}
+
+	/**
+	 * Finds an address.
+	 * @param address The address, which is normalized before it's looked up.
+	 * @return An optional that contains the address, if any emails were sent
+	 * from it.
+	 */
+	public Optional<Address> findByAddress(String address) {
+		return DbUtils.fetchOne(
+				conn,
+				"SELECT ID, ADDRESS, DISPLAY_NAME, DOMAIN FROM ADDRESS WHERE ADDRESS = ?",
+				Address::new,
+				Address.normalize(address)
+		);
+	}
+
+	/**
+	 * Finds all addresses in a domain.
+	 * @param domain The domain.
+	 * @return The list of addresses, ordered by address.
+	 */
+	public List<Address> findAllByDomain(String domain) {
+		return DbUtils.fetch(
+				conn,
+				"SELECT ID, ADDRESS, DISPLAY_NAME, DOMAIN FROM ADDRESS WHERE DOMAIN = ? ORDER BY ADDRESS",
+				Address::new,
+				Address.normalize(domain)
+		);
+	}
+
+	/**
+	 * Counts the emails sent from an address.
+	 * @param address The address.
+	 * @return The number of emails.
+	 */
+	public long countEmailsByAddress(String address) {
+		return DbUtils.count(
+				conn,
+				"SELECT COUNT(ID) FROM EMAIL WHERE ADDRESS_ID = (SELECT ID FROM ADDRESS WHERE ADDRESS = ?)",
+				Address.normalize(address)
+		);
+	}
+
+	/**
+	 * Counts the emails sent from each of the addresses that sent the most.
+	 * @param limit The maximum number of addresses to include.
+	 * @return A map of email counts by address, from most to fewest emails.
+	 */
+	public Map<String, Long> countEmailsBySender(int limit) {
+		return fetchCounts("""
+				SELECT A.ADDRESS, COUNT(E.ID) AS C
+				FROM EMAIL E
+				JOIN ADDRESS A ON A.ID = E.ADDRESS_ID
+				GROUP BY A.ADDRESS
+				ORDER BY C DESC, A.ADDRESS
+				LIMIT ?""", limit);
+	}
+
+	/**
+	 * Counts the emails sent from each of the domains that sent the most.
+	 * @param limit The maximum number of domains to include.
+	 * @return A map of email counts by domain, from most to fewest emails.
+	 */
+	public Map<String, Long> countEmailsByDomain(int limit) {
+		return fetchCounts("""
+				SELECT A.DOMAIN, COUNT(E.ID) AS C
+				FROM EMAIL E
+				JOIN ADDRESS A ON A.ID = E.ADDRESS_ID
+				WHERE A.DOMAIN IS NOT NULL
+				GROUP BY A.DOMAIN
+				ORDER BY C DESC, A.DOMAIN
+				LIMIT ?""", limit);
+	}
+
+	private Map<String, Long> fetchCounts(String query, int limit) {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		DbUtils.fetch(conn, query, rs -> counts.put(rs.getString(1), rs.getLong(2)), limit);
+		return counts;
+	}
+}
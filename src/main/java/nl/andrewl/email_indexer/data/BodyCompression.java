@@ -0,0 +1,276 @@
+package nl.andrewl.email_indexer.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses email bodies with Deflate, using a preset
+ * dictionary that's trained on the bodies of a dataset. Mailing list emails
+ * share a lot of text, like signatures, list footers and common phrases, so
+ * a dictionary makes even short bodies compress well.
+ * <p>
+ *     A compressed body is stored in the BODY_COMPRESSED column of the
+ *     EMAIL_BODY table, instead of its BODY column. It starts with the id of the dictionary it
+ *     was compressed with, which refers to a row in the BODY_DICTIONARY table,
+ *     and the length of the uncompressed body. Use
+ *     {@link #bodyText(Connection, String, byte[])} to get an email's body
+ *     from either column; in SQL, this is available as the BODY_TEXT function.
+ * </p>
+ */
+public final class BodyCompression {
+	/**
+	 * The maximum size of a dictionary. Deflate can't refer back further than
+	 * this, so any larger dictionary would be partially ignored.
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+
+	/**
+	 * Dictionaries that have been loaded from any database. Dictionary ids are
+	 * derived from their contents, so they can be shared between datasets.
+	 */
+	private static final Map<Long, BodyCompression> LOADED = new ConcurrentHashMap<>();
+
+	private final long dictionaryId;
+	private final byte[] dictionary;
+
+	/**
+	 * Constructs a compression with the given dictionary.
+	 * @param dictionary The dictionary to use, of at most
+	 *                   {@link #MAX_DICTIONARY_SIZE} bytes.
+	 */
+	public BodyCompression(byte[] dictionary) {
+		if (dictionary.length > MAX_DICTIONARY_SIZE) {
+			throw new IllegalArgumentException("Dictionary may not be larger than " + MAX_DICTIONARY_SIZE + " bytes.");
+		}
+		this.dictionary = dictionary.clone();
+		this.dictionaryId = computeId(dictionary);
+	}
+
+	public long getDictionaryId() {
+		return dictionaryId;
+	}
+
+	public byte[] getDictionary() {
+		return dictionary.clone();
+	}
+
+	/**
+	 * Compresses a body.
+	 * @param body The body to compress.
+	 * @return The compressed body.
+	 */
+	public byte[] compress(String body) {
+		byte[] input = body.getBytes(StandardCharsets.UTF_8);
+		Deflater deflater = new Deflater();
+		try {
+			if (dictionary.length > 0) deflater.setDictionary(dictionary);
+			deflater.setInput(input);
+			deflater.finish();
+			ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + input.length / 2 + 64);
+			out.putLong(dictionaryId).putInt(input.length);
+			while (!deflater.finished()) {
+				if (!out.hasRemaining()) {
+					out = ByteBuffer.allocate(out.capacity() * 2).put(out.flip());
+				}
+				int count = deflater.deflate(out.array(), out.position(), out.remaining());
+				out.position(out.position() + count);
+			}
+			return Arrays.copyOf(out.array(), out.position());
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decompresses a body that was compressed with this compression's
+	 * dictionary.
+	 * @param data The compressed body.
+	 * @return The body.
+	 * @throws IllegalArgumentException If the data wasn't compressed with this
+	 * compression's dictionary, or is corrupt.
+	 */
+	public String decompress(byte[] data) {
+		ByteBuffer header = ByteBuffer.wrap(data, 0, HEADER_SIZE);
+		if (header.getLong() != dictionaryId) {
+			throw new IllegalArgumentException("Body was compressed with another dictionary.");
+		}
+		byte[] output = new byte[header.getInt()];
+		if (output.length == 0) return "";
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+			int length = 0;
+			while (!inflater.finished()) {
+				int count = inflater.inflate(output, length, output.length - length);
+				if (count == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(dictionary);
+					} else if (inflater.needsInput() || length == output.length) {
+						throw new IllegalArgumentException("Compressed body is corrupt.");
+					}
+				}
+				length += count;
+			}
+			return new String(output, 0, length, StandardCharsets.UTF_8);
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Compressed body is corrupt.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Saves this compression's dictionary to a dataset's database, so that
+	 * bodies compressed with it can be read.
+	 * @param conn The connection to the database.
+	 * @throws SQLException If the dictionary could not be saved.
+	 */
+	public void save(Connection conn) throws SQLException {
+		try (var stmt = conn.prepareStatement("MERGE INTO BODY_DICTIONARY (ID, DICTIONARY) KEY (ID) VALUES (?, ?)")) {
+			stmt.setLong(1, dictionaryId);
+			stmt.setBytes(2, dictionary);
+			stmt.executeUpdate();
+		}
+		LOADED.putIfAbsent(dictionaryId, this);
+	}
+
+	/**
+	 * Registers {@link #bodyText(Connection, String, byte[])} as the BODY_TEXT
+	 * SQL function. It's not part of the schema, since H2 would then require
+	 * this class to be on the classpath of any program that opens the
+	 * database. Instead, it's registered when a dataset is opened, and removed
+	 * again using {@link #unregisterFunctions(Connection)} when it's closed.
+	 * @param conn The connection to the database.
+	 * @throws SQLException If the function could not be registered.
+	 */
+	public static void registerFunctions(Connection conn) throws SQLException {
+		try (var stmt = conn.createStatement()) {
+			stmt.executeUpdate("CREATE ALIAS IF NOT EXISTS BODY_TEXT FOR '" + BodyCompression.class.getName() + ".bodyText'");
+		}
+	}
+
+	/**
+	 * Removes the functions that are registered by
+	 * {@link #registerFunctions(Connection)}, so that they aren't left in the
+	 * database's file.
+	 * @param conn The connection to the database.
+	 * @throws SQLException If the functions could not be removed.
+	 */
+	public static void unregisterFunctions(Connection conn) throws SQLException {
+		try (var stmt = conn.createStatement()) {
+			stmt.executeUpdate("DROP ALIAS IF EXISTS BODY_TEXT");
+		}
+	}
+
+	/**
+	 * Gets the text of an email's body, from whichever of its BODY and
+	 * BODY_COMPRESSED columns is set. This is also available as the BODY_TEXT
+	 * SQL function while a dataset is open, for use in queries.
+	 * @param conn A connection to the database that the email is in, to load
+	 *             the body's dictionary from if needed.
+	 * @param body The value of the BODY column.
+	 * @param compressed The value of the BODY_COMPRESSED column.
+	 * @return The body, or null if neither column is set.
+	 * @throws SQLException If the body's dictionary could not be loaded.
+	 */
+	public static String bodyText(Connection conn, String body, byte[] compressed) throws SQLException {
+		if (body != null || compressed == null) return body;
+		long dictionaryId = ByteBuffer.wrap(compressed).getLong();
+		BodyCompression compression = LOADED.get(dictionaryId);
+		if (compression == null) {
+			try (var stmt = conn.prepareStatement("SELECT DICTIONARY FROM BODY_DICTIONARY WHERE ID = ?")) {
+				stmt.setLong(1, dictionaryId);
+				var rs = stmt.executeQuery();
+				if (!rs.next()) throw new SQLException("Missing body dictionary " + dictionaryId);
+				compression = new BodyCompression(rs.getBytes(1));
+			}
+			LOADED.putIfAbsent(dictionaryId, compression);
+		}
+		return compression.decompress(compressed);
+	}
+
+	/**
+	 * Trains a dictionary on a sample of bodies. Lines that occur in many
+	 * bodies, like signatures and list footers, are preferred, followed by
+	 * common words. The most valuable content is placed at the end of the
+	 * dictionary, where Deflate can refer to it most cheaply.
+	 * @param samples The bodies to train on.
+	 * @param maxSize The maximum size of the dictionary, in bytes.
+	 * @return The compression that uses the trained dictionary.
+	 */
+	public static BodyCompression train(Collection<String> samples, int maxSize) {
+		maxSize = Math.min(maxSize, MAX_DICTIONARY_SIZE);
+		// Count each line and word only once per body, so one long repetitive email can't dominate.
+		Map<String, Integer> lineCounts = new HashMap<>();
+		Map<String, Integer> wordCounts = new HashMap<>();
+		for (var sample : samples) {
+			Set<String> lines = new HashSet<>();
+			Set<String> words = new HashSet<>();
+			sample.lines().forEach(line -> {
+				String trimmed = line.strip();
+				if (trimmed.length() >= 8) lines.add(line + "\n");
+				for (var word : trimmed.split("\\s+")) {
+					if (word.length() >= 4) words.add(word + " ");
+				}
+			});
+			lines.forEach(line -> lineCounts.merge(line, 1, Integer::sum));
+			words.forEach(word -> wordCounts.merge(word, 1, Integer::sum));
+		}
+		List<String> selected = new ArrayList<>();
+		int size = select(lineCounts, maxSize, selected);
+		select(wordCounts, maxSize - size, selected);
+
+		// Selected strings are ordered from most to least valuable, so write them in reverse.
+		StringBuilder sb = new StringBuilder();
+		for (int i = selected.size() - 1; i >= 0; i--) sb.append(selected.get(i));
+		byte[] dictionary = sb.toString().getBytes(StandardCharsets.UTF_8);
+		if (dictionary.length > maxSize) {
+			dictionary = Arrays.copyOfRange(dictionary, dictionary.length - maxSize, dictionary.length);
+		}
+		return new BodyCompression(dictionary);
+	}
+
+	/**
+	 * Selects the strings that occur in at least two samples, scored by how
+	 * many bytes they'd save, until the size limit is reached.
+	 * @return The number of bytes that were selected.
+	 */
+	private static int select(Map<String, Integer> counts, int maxSize, List<String> selected) {
+		List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+		for (var entry : counts.entrySet()) {
+			if (entry.getValue() > 1) candidates.add(entry);
+		}
+		candidates.sort(Comparator.<Map.Entry<String, Integer>>comparingLong(e -> (long) (e.getValue() - 1) * e.getKey().length())
+				.reversed()
+				.thenComparing(Map.Entry::getKey));
+		int size = 0;
+		for (var candidate : candidates) {
+			int length = candidate.getKey().getBytes(StandardCharsets.UTF_8).length;
+			if (size + length > maxSize) continue;
+			selected.add(candidate.getKey());
+			size += length;
+		}
+		return size;
+	}
+
+	/**
+	 * Computes a 64-bit FNV-1a hash of a dictionary, to use as its id.
+	 */
+	private static long computeId(byte[] dictionary) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : dictionary) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,222 @@
+package nl.andrewl.email_indexer.data;
+
+import nl.andrewl.email_indexer.util.LruCache;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * A cache of a dataset's most recently used emails, previews, replies and
+ * tags, which is shared by all repositories of the dataset. Full emails and
+ * bodies are limited by their approximate size in memory, and everything else
+ * by its number of entries. It also holds the dataset's {@link TagIndex} and
+ * {@link TrigramIndex} instances, once those are needed.
+ * <p>
+ *     Repositories invalidate the cache when they change emails or tags, but
+ *     changes that are made to the database in any other way are not noticed.
+ *     Use {@link #invalidateAll()} after making such changes.
+ * </p>
+ */
+public class DatasetCache {
+	/**
+	 * The approximate size of an email's data other than its body, in bytes.
+	 */
+	private static final long EMAIL_OVERHEAD = 512;
+
+	private final LruCache<Long, Optional<EmailEntry>> emails;
+	private final LruCache<Long, Optional<String>> bodies;
+	private final LruCache<Long, Optional<EmailEntryPreview>> previews;
+	private final LruCache<Long, List<EmailEntryPreview>> replies;
+	private final LruCache<Long, List<Tag>> emailTags;
+	private final LruCache<Integer, Optional<Tag>> tags;
+	private TagIndex tagIndex;
+	private long tagIndexChanges;
+	private final Map<String, TrigramIndex> trigramIndexes = new HashMap<>();
+
+	/**
+	 * Constructs a cache with the given limits.
+	 * @param maxEntries The maximum number of previews, reply lists and tag
+	 *                   lists to cache, each.
+	 * @param maxBodyBytes The maximum approximate size of the full emails and
+	 *                     bodies to cache, each, in bytes.
+	 */
+	public DatasetCache(int maxEntries, long maxBodyBytes) {
+		this.emails = new LruCache<>(maxBodyBytes, (id, email) -> EMAIL_OVERHEAD + email.map(e -> sizeOf(e.body())).orElse(0L));
+		this.bodies = new LruCache<>(maxBodyBytes, (id, body) -> body.map(DatasetCache::sizeOf).orElse(0L) + 16);
+		this.previews = new LruCache<>(maxEntries);
+		this.replies = new LruCache<>(maxEntries, (id, list) -> Math.max(1, list.size()));
+		this.emailTags = new LruCache<>(maxEntries);
+		this.tags = new LruCache<>(maxEntries);
+	}
+
+	/**
+	 * Constructs a cache with room for 10000 entries of each kind, and 64 MB
+	 * of full emails and bodies each.
+	 */
+	public DatasetCache() {
+		this(10_000, 64L * 1024 * 1024);
+	}
+
+	LruCache<Long, Optional<EmailEntry>> emails() {
+		return emails;
+	}
+
+	LruCache<Long, Optional<String>> bodies() {
+		return bodies;
+	}
+
+	LruCache<Long, Optional<EmailEntryPreview>> previews() {
+		return previews;
+	}
+
+	LruCache<Long, List<EmailEntryPreview>> replies() {
+		return replies;
+	}
+
+	LruCache<Long, List<Tag>> emailTags() {
+		return emailTags;
+	}
+
+	LruCache<Integer, Optional<Tag>> tags() {
+		return tags;
+	}
+
+	/**
+	 * Gets the tag index, loading it if it's not loaded yet. If the tags of any
+	 * emails change while it's loading, the index is returned but not kept,
+	 * since it may have missed those changes.
+	 * @param conn The connection to load the index with.
+	 * @return The tag index.
+	 * @throws SQLException If the index could not be loaded.
+	 */
+	public TagIndex getTagIndex(Connection conn) throws SQLException {
+		long changesBeforeLoad;
+		synchronized (this) {
+			if (tagIndex != null) return tagIndex;
+			changesBeforeLoad = tagIndexChanges;
+		}
+		TagIndex index = TagIndex.load(conn);
+		synchronized (this) {
+			if (tagIndexChanges == changesBeforeLoad) tagIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Applies a change to the tag index, if it's loaded.
+	 * @param change The change to apply.
+	 */
+	synchronized void updateTagIndex(Consumer<TagIndex> change) {
+		if (tagIndex != null) change.accept(tagIndex);
+		tagIndexChanges++;
+	}
+
+	/**
+	 * Drops the tag index, after changes to the tags of emails that can't be
+	 * applied to it, so that it's loaded again when it's needed.
+	 */
+	synchronized void invalidateTagIndex() {
+		tagIndex = null;
+		tagIndexChanges++;
+	}
+
+	/**
+	 * Gets the trigram index of a column of the EMAIL table, loading it if
+	 * it's not loaded yet.
+	 * @param conn The connection to load the index with.
+	 * @param column The name of the column, like SUBJECT or SENT_FROM.
+	 * @return The trigram index.
+	 * @throws SQLException If the index could not be loaded.
+	 */
+	public TrigramIndex getTrigramIndex(Connection conn, String column) throws SQLException {
+		synchronized (this) {
+			TrigramIndex index = trigramIndexes.get(column);
+			if (index != null) return index;
+		}
+		TrigramIndex index = TrigramIndex.load(conn, column);
+		synchronized (this) {
+			return trigramIndexes.computeIfAbsent(column, c -> index);
+		}
+	}
+
+	/**
+	 * Invalidates everything that's cached about an email whose hidden status
+	 * changed. Its parent's list of replies is invalidated too, since it
+	 * contains the email's preview.
+	 * @param id The id of the email.
+	 */
+	void invalidateEmail(long id) {
+		emails.invalidate(id);
+		previews.invalidate(id);
+		replies.invalidateAll();
+	}
+
+	/**
+	 * Invalidates all cached emails, previews and replies, after many emails
+	 * were changed or deleted at once.
+	 */
+	void invalidateEmails() {
+		emails.invalidateAll();
+		bodies.invalidateAll();
+		previews.invalidateAll();
+		replies.invalidateAll();
+		emailTags.invalidateAll();
+	}
+
+	/**
+	 * Invalidates all cached tags, after a tag itself was changed.
+	 */
+	void invalidateTags() {
+		emailTags.invalidateAll();
+		tags.invalidateAll();
+	}
+
+	/**
+	 * Removes everything from the cache.
+	 */
+	public void invalidateAll() {
+		invalidateEmails();
+		invalidateTags();
+		invalidateTagIndex();
+		synchronized (this) {
+			trigramIndexes.clear();
+		}
+	}
+
+	/**
+	 * Gets the statistics of each part of the cache.
+	 * @return A map of statistics by the name of the cached data.
+	 */
+	public Map<String, LruCache.Stats> getStats() {
+		Map<String, LruCache.Stats> stats = new LinkedHashMap<>();
+		stats.put("emails", emails.getStats());
+		stats.put("bodies", bodies.getStats());
+		stats.put("previews", previews.getStats());
+		stats.put("replies", replies.getStats());
+		stats.put("emailTags", emailTags.getStats());
+		stats.put("tags", tags.getStats());
+		return stats;
+	}
+
+	/**
+	 * Resets the hit, miss and eviction counters of each part of the cache.
+	 */
+	public void resetStats() {
+		emails.resetStats();
+		bodies.resetStats();
+		previews.resetStats();
+		replies.resetStats();
+		emailTags.resetStats();
+		tags.resetStats();
+	}
+
+	private static long sizeOf(String s) {
+		return s == null ? 0 : 2L * s.length();
+	}
+}
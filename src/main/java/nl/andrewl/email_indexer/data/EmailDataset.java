@@ -2,8 +2,12 @@ package nl.andrewl.email_indexer.data;
 
 import nl.andrewl.email_indexer.data.imports.DirectoryImporter;
 import nl.andrewl.email_indexer.data.imports.EmailDatasetImporter;
+import nl.andrewl.email_indexer.data.imports.ZipArchiveDirectory;
 import nl.andrewl.email_indexer.data.imports.ZipImporter;
+import nl.andrewl.email_indexer.data.upgrade.SchemaUpgrader;
 import nl.andrewl.email_indexer.util.Async;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -25,11 +29,43 @@ public class EmailDataset {
 	 */
 	private final Path openDir;
 
+	/**
+	 * A ZIP archive from which this dataset's index is served, in case the
+	 * index wasn't extracted into the open directory. May be null.
+	 */
+	private final Path indexArchive;
+
+	/**
+	 * The JDBC URL used to connect to this dataset's database.
+	 */
+	private final String jdbcUrl;
+
 	/**
 	 * The database connection used by this dataset, while it's open.
 	 */
 	private Connection dbConn;
 
+	/**
+	 * The configuration that determines how the index directory is opened.
+	 */
+	private IndexDirectoryConfig indexDirectoryConfig = new IndexDirectoryConfig();
+
+	/**
+	 * The cache that's shared by this dataset's repositories. May be null.
+	 */
+	private DatasetCache cache;
+
+	/**
+	 * The directory containing this dataset's index, while it's open.
+	 */
+	private Directory indexDirectory;
+
+	/**
+	 * The manager that provides searchers over this dataset's index, while
+	 * it's open.
+	 */
+	private SearcherManager searcherManager;
+
 	/**
 	 * Constructs a dataset from the given directory which should contain a
 	 * valid dataset. Use {@link EmailDataset#open(Path)} in most cases.
@@ -38,13 +74,63 @@ public class EmailDataset {
 	 * established.
 	 */
 	public EmailDataset(Path openDir) throws SQLException {
+		this(openDir, null);
+	}
+
+	/**
+	 * Constructs a dataset from the given directory, whose index is served
+	 * from an archive until it's extracted or regenerated into the directory.
+	 * @param openDir The directory containing the dataset's database.
+	 * @param indexArchive The ZIP archive containing the dataset's index.
+	 * @throws SQLException If a connection to the database could not be
+	 * established.
+	 */
+	public EmailDataset(Path openDir, Path indexArchive) throws SQLException {
+		this(openDir, indexArchive, getJdbcUrl(openDir.resolve("database.mv.db")));
+	}
+
+	/**
+	 * Constructs a dataset whose database is reached through the given JDBC
+	 * URL. This is used by subclasses that don't store their database in the
+	 * usual place, like {@link InMemoryEmailDataset}.
+	 * @param openDir The directory containing the dataset. May be null.
+	 * @param indexArchive The ZIP archive containing the dataset's index. May
+	 *                     be null.
+	 * @param jdbcUrl The JDBC URL of the dataset's database.
+	 * @throws SQLException If a connection to the database could not be
+	 * established.
+	 */
+	protected EmailDataset(Path openDir, Path indexArchive, String jdbcUrl) throws SQLException {
 		this.openDir = openDir;
+		this.indexArchive = indexArchive;
+		this.jdbcUrl = jdbcUrl;
 		establishConnection();
+		upgradeSchema();
 	}
 
 	public void establishConnection() throws SQLException {
 		if (this.dbConn != null) return;
-		this.dbConn = DriverManager.getConnection(getJdbcUrl(getDatabaseFile()));
+		this.dbConn = DriverManager.getConnection(jdbcUrl);
+		BodyCompression.registerFunctions(dbConn);
+	}
+
+	/**
+	 * Upgrades this dataset to the current schema. Datasets without metadata
+	 * are either still being generated, or version 1 datasets, whose schema is
+	 * entirely different, so they're left for {@link nl.andrewl.email_indexer.data.upgrade.Version1Upgrader} instead.
+	 * @throws SQLException If the database could not be upgraded.
+	 */
+	private void upgradeSchema() throws SQLException {
+		if (openDir == null || Files.notExists(getMetadataFile())) return;
+		try {
+			SchemaUpgrader.upgrade(this);
+		} catch (IOException e) {
+			throw new SQLException("Could not upgrade the dataset.", e);
+		}
+	}
+
+	public String getDatabaseUrl() {
+		return this.jdbcUrl;
 	}
 
 	public Connection getConnection() {
@@ -59,6 +145,103 @@ public class EmailDataset {
 		return this.openDir.resolve("index");
 	}
 
+	public Path getIndexArchive() {
+		return this.indexArchive;
+	}
+
+	public DatasetCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Sets the cache that repositories created for this dataset use for their
+	 * lookups. No cache is used by default.
+	 * @param cache The cache to use, or null to disable caching.
+	 */
+	public void setCache(DatasetCache cache) {
+		this.cache = cache;
+	}
+
+	public IndexDirectoryConfig getIndexDirectoryConfig() {
+		return this.indexDirectoryConfig;
+	}
+
+	/**
+	 * Sets the configuration that's used to open this dataset's index. Any
+	 * open index is closed, so the new configuration applies to the next
+	 * search.
+	 * @param config The configuration to use.
+	 * @throws IOException If the open index could not be closed.
+	 */
+	public void setIndexDirectoryConfig(IndexDirectoryConfig config) throws IOException {
+		this.indexDirectoryConfig = config;
+		closeIndex();
+	}
+
+	/**
+	 * Gets the Lucene directory containing this dataset's index, opening it
+	 * according to this dataset's {@link IndexDirectoryConfig} if needed. If
+	 * the index hasn't been extracted from this dataset's archive, it's served
+	 * read-only from the archive.
+	 * @return The directory, which is owned by this dataset and should not be
+	 * closed by the caller.
+	 * @throws IOException If the directory could not be opened.
+	 */
+	public synchronized Directory getIndexDirectory() throws IOException {
+		if (indexDirectory == null) {
+			if (indexArchive != null && Files.notExists(getIndexDir())) {
+				indexDirectory = new ZipArchiveDirectory(indexArchive, "index/");
+			} else {
+				indexDirectory = indexDirectoryConfig.open(getIndexDir());
+			}
+		}
+		return indexDirectory;
+	}
+
+	/**
+	 * Opens a directory that a new index for this dataset can be written to.
+	 * @return The directory, which should be closed by the caller once the
+	 * index is written.
+	 * @throws IOException If the directory could not be opened.
+	 */
+	public Directory openIndexDirectoryForWriting() throws IOException {
+		Files.createDirectories(getIndexDir());
+		return indexDirectoryConfig.openForWriting(getIndexDir());
+	}
+
+	/**
+	 * Gets the manager that provides searchers over this dataset's index, and
+	 * refreshes it if the index has changed since it was last used. Callers
+	 * should acquire and release searchers from it.
+	 * @return The searcher manager, which is owned by this dataset.
+	 * @throws IOException If the index could not be opened.
+	 */
+	public synchronized SearcherManager getSearcherManager() throws IOException {
+		if (searcherManager == null) {
+			searcherManager = new SearcherManager(getIndexDirectory(), null);
+		} else {
+			searcherManager.maybeRefresh();
+		}
+		return searcherManager;
+	}
+
+	/**
+	 * Closes this dataset's index, if it's open. It will be reopened the next
+	 * time it's used. This should be called after the index was regenerated
+	 * using a different directory than {@link #getIndexDirectory()}.
+	 * @throws IOException If the index could not be closed.
+	 */
+	public synchronized void closeIndex() throws IOException {
+		if (searcherManager != null) {
+			searcherManager.close();
+			searcherManager = null;
+		}
+		if (indexDirectory != null) {
+			indexDirectory.close();
+			indexDirectory = null;
+		}
+	}
+
 	public Path getDatabaseFile() {
 		return this.openDir.resolve("database.mv.db");
 	}
@@ -89,15 +272,40 @@ public class EmailDataset {
 		return props;
 	}
 
+	/**
+	 * Saves this dataset's metadata properties, replacing the old ones.
+	 * @param props The properties to save.
+	 * @throws IOException If the file could not be written.
+	 */
+	public void saveMetadata(Properties props) throws IOException {
+		try (var writer = Files.newBufferedWriter(getMetadataFile())) {
+			props.store(writer, null);
+		}
+	}
+
 	/**
 	 * Gets the integer version number of this dataset.
 	 * @return The version number.
 	 * @throws IOException If an error occurs.
 	 */
 	public int getVersion() throws IOException {
+		return getIntMetadata("version");
+	}
+
+	/**
+	 * Gets the version of the format of this dataset's index. Datasets whose
+	 * metadata doesn't record it have an index of version 1.
+	 * @return The index version number.
+	 * @throws IOException If an error occurs.
+	 */
+	public int getIndexVersion() throws IOException {
+		return getIntMetadata("indexVersion");
+	}
+
+	private int getIntMetadata(String key) throws IOException {
 		var props = getMetadata();
 		try {
-			return Integer.parseInt(props.getProperty("version", "1"));
+			return Integer.parseInt(props.getProperty(key, "1"));
 		} catch (NumberFormatException e) {
 			throw new IOException(e);
 		}
@@ -105,13 +313,15 @@ public class EmailDataset {
 
 	/**
 	 * Closes all resources used by this dataset. This involves closing the
-	 * database connection(s), and issuing a COMPACT command which may take
+	 * index, the database connection(s), and issuing a COMPACT command which may take
 	 * some time.
 	 * @return A future that completes when the dataset is successfully closed.
 	 */
 	public CompletableFuture<Void> close() {
 		return Async.run(() -> {
-			try (var stmt = dbConn.prepareStatement("SHUTDOWN COMPACT;")) {
+			closeIndex();
+			BodyCompression.unregisterFunctions(dbConn);
+			try (var stmt = dbConn.prepareStatement(getShutdownStatement())) {
 				stmt.execute();
 			}
 			this.dbConn.close();
@@ -119,6 +329,15 @@ public class EmailDataset {
 		});
 	}
 
+	/**
+	 * Gets the statement that's used to shut down the database when closing
+	 * this dataset.
+	 * @return The SQL statement.
+	 */
+	protected String getShutdownStatement() {
+		return "SHUTDOWN COMPACT;";
+	}
+
 	/**
 	 * Opens a dataset from the given file.
 	 * @param dsFile The file to open.
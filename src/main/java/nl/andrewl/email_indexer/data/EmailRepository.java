@@ -1,25 +1,56 @@
 package nl.andrewl.email_indexer.data;
 
+import nl.andrewl.email_indexer.data.search.EmailIndexSearcher;
+import nl.andrewl.email_indexer.data.search.filter.IdSetFilter;
+import org.apache.lucene.queryparser.classic.ParseException;
+
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 import static nl.andrewl.email_indexer.util.DbUtils.*;
 
 /**
- * Repository for accessing emails from a dataset.
+ * Repository for accessing emails from a dataset. If the dataset has a
+ * {@link DatasetCache}, lookups of emails, previews, bodies and replies go
+ * through it.
  */
 public class EmailRepository {
 	private final Connection conn;
+	private final DatasetCache cache;
+	/**
+	 * The dataset, if this repository was created for one, whose index is
+	 * used to find emails by their body. May be null.
+	 */
+	private final EmailDataset dataset;
 
-	public EmailRepository(Connection conn) {
+	private EmailRepository(Connection conn, DatasetCache cache, EmailDataset dataset) {
 		this.conn = conn;
+		this.cache = cache;
+		this.dataset = dataset;
+	}
+
+	/**
+	 * Constructs a repository that uses the given connection and cache.
+	 * @param conn The connection to the dataset's database.
+	 * @param cache The dataset's cache, or null to not use a cache.
+	 */
+	public EmailRepository(Connection conn, DatasetCache cache) {
+		this(conn, cache, null);
+	}
+
+	public EmailRepository(Connection conn) {
+		this(conn, null);
 	}
 
 	public EmailRepository(EmailDataset ds) {
-		this(ds.getConnection());
+		this(ds.getConnection(), ds.getCache(), ds);
 	}
 
 	/**
@@ -60,6 +91,11 @@ public class EmailRepository {
 	 * @return An optional that contains the email that was found, if any.
 	 */
 	public Optional<EmailEntry> findEmailById(long id) {
+		if (cache != null) return cache.emails().get(id, this::fetchEmailById);
+		return fetchEmailById(id);
+	}
+
+	private Optional<EmailEntry> fetchEmailById(long id) {
 		try (var stmt = conn.prepareStatement(QueryCache.load("/sql/fetch_email_by_id.sql"))) {
 			stmt.setLong(1, id);
 			var rs = stmt.executeQuery();
@@ -72,7 +108,7 @@ public class EmailRepository {
 					rs.getString(5),
 					rs.getString(6),
 					rs.getObject(7, ZonedDateTime.class),
-					rs.getString(8),
+					BodyCompression.bodyText(conn, rs.getString(8), rs.getBytes(10)),
 					rs.getBoolean(9)
 			);
 			return Optional.of(entry);
@@ -89,6 +125,11 @@ public class EmailRepository {
 	 * if any.
 	 */
 	public Optional<EmailEntryPreview> findPreviewById(long id) {
+		if (cache != null) return cache.previews().get(id, this::fetchPreviewById);
+		return fetchPreviewById(id);
+	}
+
+	private Optional<EmailEntryPreview> fetchPreviewById(long id) {
 		try (var stmt = conn.prepareStatement(QueryCache.load("/sql/preview/fetch_email_preview_by_id.sql"))) {
 			stmt.setLong(1, id);
 			var rs = stmt.executeQuery();
@@ -107,6 +148,11 @@ public class EmailRepository {
 	 * identified by the provided id.
 	 */
 	public List<EmailEntryPreview> findAllReplies(long id) {
+		if (cache != null) return new ArrayList<>(cache.replies().get(id, this::fetchAllReplies));
+		return fetchAllReplies(id);
+	}
+
+	private List<EmailEntryPreview> fetchAllReplies(long id) {
 		return fetch(
 				conn,
 				QueryCache.load("/sql/preview/fetch_email_preview_by_parent_id.sql"),
@@ -158,16 +204,22 @@ public class EmailRepository {
 	}
 
 	/**
-	 * Gets just the body of an email identified by the given id.
+	 * Gets just the body of an email identified by the given id. Compressed
+	 * bodies are decompressed.
 	 * @param id The id of the email whose body to get.
 	 * @return The body of the requested email.
 	 */
 	public Optional<String> getBody(long id) {
-		try (var stmt = conn.prepareStatement("SELECT BODY FROM EMAIL WHERE ID = ?")) {
+		if (cache != null) return cache.bodies().get(id, this::fetchBody);
+		return fetchBody(id);
+	}
+
+	private Optional<String> fetchBody(long id) {
+		try (var stmt = conn.prepareStatement("SELECT BODY, BODY_COMPRESSED FROM EMAIL_BODY WHERE EMAIL_ID = ?")) {
 			stmt.setLong(1, id);
 			var rs = stmt.executeQuery();
 			if (rs.next()) {
-				return Optional.of(rs.getString(1));
+				return Optional.of(BodyCompression.bodyText(conn, rs.getString(1), rs.getBytes(2)));
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -214,6 +266,7 @@ public class EmailRepository {
 	 */
 	public void hideEmail(long id) {
 		update(conn, "UPDATE EMAIL SET HIDDEN = TRUE WHERE ID = ?", id);
+		if (cache != null) cache.invalidateEmail(id);
 	}
 
 	/**
@@ -222,40 +275,128 @@ public class EmailRepository {
 	 */
 	public void showEmail(long id) {
 		update(conn, "UPDATE EMAIL SET HIDDEN = FALSE WHERE ID = ?", id);
+		if (cache != null) cache.invalidateEmail(id);
 	}
 
-	private int hideEmailsByQuery(String msg, String conditions, Object... args) {
+	/**
+	 * Hides or shows all emails matching some conditions, as one mutation. The
+	 * matching emails are recorded in MUTATION_EMAIL with a single INSERT ...
+	 * SELECT, and then updated by that mutation's id, so the conditions are
+	 * only evaluated once and no ids pass through this method. Nothing is
+	 * recorded if no emails match.
+	 * @param msg The description of the mutation.
+	 * @param hidden Whether to hide or show the emails.
+	 * @param conditions The conditions on the EMAIL table.
+	 * @param args The arguments to the conditions.
+	 * @return The number of emails that were changed.
+	 */
+	private int setHiddenByQuery(String msg, boolean hidden, String conditions, Object... args) {
 		try {
 			conn.setAutoCommit(false);
-			List<Long> ids = fetch(conn, "SELECT ID FROM EMAIL WHERE " + conditions, rs -> rs.getLong(1), args);
 			long mId = insertWithId(conn, "INSERT INTO MUTATION (DESCRIPTION) VALUES (?)", msg);
-			try (var stmt = conn.prepareStatement("INSERT INTO MUTATION_EMAIL(MUTATION_ID, EMAIL_ID) VALUES (?, ?)")) {
+			int count;
+			try (var stmt = conn.prepareStatement("INSERT INTO MUTATION_EMAIL (MUTATION_ID, EMAIL_ID) SELECT ?, ID FROM EMAIL WHERE " + conditions)) {
 				stmt.setLong(1, mId);
-				for (var id : ids) {
-					stmt.setLong(2, id);
-					stmt.executeUpdate();
-				}
+				int idx = 2;
+				for (var arg : args) stmt.setObject(idx++, arg);
+				count = stmt.executeUpdate();
 			}
-			int count = update(conn, "UPDATE EMAIL SET HIDDEN = TRUE WHERE " + conditions, args);
-			update(conn, "UPDATE MUTATION SET AFFECTED_EMAIL_COUNT = ? WHERE ID = ?", mId, count);
+			if (count == 0) {
+				conn.rollback();
+				return 0;
+			}
+			update(conn, "UPDATE EMAIL SET HIDDEN = ? WHERE ID IN (SELECT EMAIL_ID FROM MUTATION_EMAIL WHERE MUTATION_ID = ?)", hidden, mId);
+			update(conn, "UPDATE MUTATION SET AFFECTED_EMAIL_COUNT = ? WHERE ID = ?", count, mId);
 			conn.commit();
-			conn.setAutoCommit(true);
+			if (cache != null) cache.invalidateEmails();
 			return count;
 		} catch (SQLException e) {
 			e.printStackTrace();
+			try {
+				conn.rollback();
+			} catch (SQLException ex) {
+				ex.printStackTrace();
+			}
 			return 0;
+		} finally {
+			try {
+				conn.setAutoCommit(true);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 
+	private int hideEmailsByQuery(String msg, String conditions, Object... args) {
+		return setHiddenByQuery(msg, true, conditions, args);
+	}
+
+	/**
+	 * Undoes a mutation that hid emails, by showing all of its emails that are
+	 * still hidden. This is recorded as a new mutation.
+	 * @param mutationId The id of the mutation that hid the emails.
+	 * @return The number of emails that were shown again.
+	 */
+	public int showEmailsHiddenBy(long mutationId) {
+		return setHiddenByQuery(
+				"Showing all emails hidden by mutation " + mutationId + ".",
+				false,
+				"HIDDEN = TRUE AND ID IN (SELECT EMAIL_ID FROM MUTATION_EMAIL WHERE MUTATION_ID = ?)",
+				mutationId
+		);
+	}
+
+	/**
+	 * Hides a set of emails, as one mutation.
+	 * @param ids The ids of the emails to hide. Emails that are already
+	 *            hidden are skipped.
+	 * @param description The description of the mutation.
+	 * @return The number of emails that were hidden.
+	 */
+	public int hideEmails(Collection<Long> ids, String description) {
+		BitSet idSet = new BitSet();
+		for (long id : ids) idSet.set(Math.toIntExact(id));
+		return hideEmails(idSet, description);
+	}
+
+	/**
+	 * Hides a set of emails, as one mutation. The ids are bound like an
+	 * {@link IdSetFilter} does, so sets of any size fit in the query.
+	 */
+	private int hideEmails(BitSet ids, String description) {
+		if (ids.isEmpty()) return 0;
+		IdSetFilter filter = new IdSetFilter(ids, false);
+		return hideEmailsByQuery(description, "HIDDEN = FALSE AND " + filter.getWhereClause(), filter.getParameters().toArray());
+	}
+
+	/**
+	 * Hides all emails whose body matches a query on the dataset's index,
+	 * like {@link EmailIndexSearcher#findEmailIdsByBody(EmailDataset, String)}.
+	 * Only the matching ids are sent to the database, so no bodies are read.
+	 * The repository must have been created for a dataset.
+	 * @param query The query, like a phrase in quotes.
+	 * @return The number of emails that were hidden.
+	 * @throws IOException If the index could not be read.
+	 * @throws ParseException If the query is invalid.
+	 */
+	public int hideAllEmailsByBodyQuery(String query) throws IOException, ParseException {
+		if (dataset == null) throw new IllegalStateException("Searching bodies requires a repository for a dataset.");
+		BitSet ids = new EmailIndexSearcher().findEmailIdsByBody(dataset, query);
+		return hideEmails(ids, "Hiding all emails with a body matching the query:\n\n" + query);
+	}
+
 	/**
 	 * Hides all emails whose body matches the given text.
 	 * @param body The body text to match.
 	 * @return The number of emails that were hidden.
+	 * @deprecated This reads and decompresses every body in the dataset. Use
+	 * {@link #hideAllEmailsByBodyQuery(String)} instead.
 	 */
+	@Deprecated
 	public int hideAllEmailsByBody(String body) {
 		return hideEmailsByQuery(
 				"Hiding all emails with a body like:\n\n" + body,
-				"HIDDEN = FALSE AND BODY LIKE ?",
+				"HIDDEN = FALSE AND ID IN (SELECT EMAIL_ID FROM EMAIL_BODY WHERE BODY_TEXT(BODY, BODY_COMPRESSED) LIKE ?)",
 				body
 		);
 	}
@@ -266,6 +407,22 @@ public class EmailRepository {
 	 * @return The number of emails that were hidden.
 	 */
 	public int hideAllEmailsBySentFrom(String sentFrom) {
+		if (cache != null) {
+			// Only check the emails that contain all trigrams of the pattern.
+			try {
+				var candidates = cache.getTrigramIndex(conn, "SENT_FROM").findCandidates(sentFrom);
+				if (candidates.isPresent()) {
+					Long[] ids = candidates.get().stream().mapToObj(id -> (long) id).toArray(Long[]::new);
+					return hideEmailsByQuery(
+							"Hiding all emails sent by email addresses like: " + sentFrom,
+							"HIDDEN = FALSE AND ID = ANY(?) AND SENT_FROM LIKE ?",
+							ids, sentFrom
+					);
+				}
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
 		return hideEmailsByQuery(
 				"Hiding all emails sent by email addresses like: " + sentFrom,
 				"HIDDEN = FALSE AND SENT_FROM LIKE ?",
@@ -273,6 +430,34 @@ public class EmailRepository {
 		);
 	}
 
+	/**
+	 * Hides all emails sent from an exact address, using the index on the
+	 * emails' address ids.
+	 * @param address The address, which is normalized before it's looked up.
+	 * @return The number of emails that were hidden.
+	 */
+	public int hideAllEmailsByAddress(String address) {
+		return hideEmailsByQuery(
+				"Hiding all emails sent by the email address: " + address,
+				"HIDDEN = FALSE AND ADDRESS_ID = (SELECT ID FROM ADDRESS WHERE ADDRESS = ?)",
+				Address.normalize(address)
+		);
+	}
+
+	/**
+	 * Hides all emails sent from any address in a domain, using the index on
+	 * the emails' address ids.
+	 * @param domain The domain, like "example.com".
+	 * @return The number of emails that were hidden.
+	 */
+	public int hideAllEmailsByDomain(String domain) {
+		return hideEmailsByQuery(
+				"Hiding all emails sent from the domain: " + domain,
+				"HIDDEN = FALSE AND ADDRESS_ID IN (SELECT ID FROM ADDRESS WHERE DOMAIN = ?)",
+				Address.normalize(domain)
+		);
+	}
+
 	/**
 	 * Permanently deletes all hidden emails, which can be used to save space.
 	 * It is recommended to call {@link nl.andrewl.email_indexer.gen.EmailIndexGenerator#generateIndex(EmailDataset)}
@@ -280,6 +465,7 @@ public class EmailRepository {
 	 */
 	public void deleteAllHidden() {
 		int count = update(conn, "DELETE FROM EMAIL WHERE HIDDEN = TRUE");
+		if (cache != null) cache.invalidateAll();
 		String desc = "Permanently deleting all hidden emails.";
 		update(conn, "INSERT INTO MUTATION (DESCRIPTION, AFFECTED_EMAIL_COUNT) VALUES (?, ?)", desc, count);
 	}
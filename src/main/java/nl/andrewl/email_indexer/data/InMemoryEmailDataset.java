@@ -0,0 +1,164 @@
+package nl.andrewl.email_indexer.data;
+
+import nl.andrewl.email_indexer.data.upgrade.SchemaUpgrader;
+import nl.andrewl.email_indexer.util.Async;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A dataset that lives entirely in memory, with an in-memory H2 database and
+ * an in-heap Lucene index. This is useful for tests, benchmarks and
+ * short-lived analysis jobs which shouldn't be slowed down by disk I/O. Such a
+ * dataset can be saved as a normal dataset using {@link #persist(Path)}.
+ * <p>
+ *     Note that all of the dataset's data is discarded when it's closed.
+ * </p>
+ */
+public class InMemoryEmailDataset extends EmailDataset {
+	private final String name;
+	private final Directory memoryIndexDirectory;
+	private final Properties metadata;
+
+	/**
+	 * Constructs an empty in-memory dataset.
+	 * @param name The name of the in-memory database. This must be unique
+	 *             among all open in-memory datasets.
+	 * @throws SQLException If the database could not be created.
+	 */
+	public InMemoryEmailDataset(String name) throws SQLException {
+		super(null, null, "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+		this.name = name;
+		this.memoryIndexDirectory = new ByteBuffersDirectory();
+		this.metadata = SchemaUpgrader.getLatestMetadata();
+	}
+
+	/**
+	 * Constructs an empty in-memory dataset with a random name.
+	 * @throws SQLException If the database could not be created.
+	 */
+	public InMemoryEmailDataset() throws SQLException {
+		this("email-dataset-" + UUID.randomUUID());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public Path getIndexDir() {
+		return null;
+	}
+
+	@Override
+	public Path getDatabaseFile() {
+		return null;
+	}
+
+	@Override
+	public Path getMetadataFile() {
+		return null;
+	}
+
+	@Override
+	public Properties getMetadata() {
+		Properties props = new Properties();
+		props.putAll(metadata);
+		return props;
+	}
+
+	@Override
+	public void saveMetadata(Properties props) {
+		metadata.clear();
+		metadata.putAll(props);
+	}
+
+	@Override
+	public Directory getIndexDirectory() {
+		return memoryIndexDirectory;
+	}
+
+	@Override
+	public Directory openIndexDirectoryForWriting() {
+		// Wrap the directory so that the index writer doesn't close it.
+		return new FilterDirectory(memoryIndexDirectory) {
+			@Override
+			public void close() {}
+		};
+	}
+
+	@Override
+	protected String getShutdownStatement() {
+		return "SHUTDOWN;";
+	}
+
+	@Override
+	public CompletableFuture<Void> close() {
+		return super.close().thenCompose(v -> Async.run(memoryIndexDirectory::close));
+	}
+
+	/**
+	 * Saves this dataset to a directory, such that it can be opened as a
+	 * normal dataset using {@link EmailDataset#open(Path)}.
+	 * @param dsDir The directory to save the dataset in. It should not already
+	 *              contain a dataset.
+	 * @return A future that completes when the dataset has been saved.
+	 */
+	public CompletableFuture<Void> persist(Path dsDir) {
+		return Async.run(() -> {
+			Path dbFile = dsDir.resolve("database.mv.db");
+			if (Files.exists(dbFile)) {
+				throw new IllegalArgumentException("Cannot persist dataset into a directory that already contains one.");
+			}
+			Files.createDirectories(dsDir);
+			persistDatabase(dsDir, dbFile);
+			persistIndex(dsDir.resolve("index"));
+			try (var writer = Files.newBufferedWriter(dsDir.resolve("metadata.properties"))) {
+				metadata.store(writer, null);
+			}
+		});
+	}
+
+	/**
+	 * Copies the database by dumping it to a compressed SQL script, which is
+	 * then run against a new database file.
+	 */
+	private void persistDatabase(Path dsDir, Path dbFile) throws SQLException, IOException {
+		Path script = dsDir.resolve("database.sql.gz");
+		String scriptPath = script.toAbsolutePath().toString().replace("'", "''");
+		try {
+			try (var stmt = getConnection().createStatement()) {
+				stmt.execute("SCRIPT TO '" + scriptPath + "' COMPRESSION GZIP");
+			}
+			try (
+					var conn = DriverManager.getConnection(getJdbcUrl(dbFile));
+					var stmt = conn.createStatement()
+			) {
+				stmt.execute("RUNSCRIPT FROM '" + scriptPath + "' COMPRESSION GZIP");
+				// The script includes this dataset's functions, which aren't part of the schema.
+				BodyCompression.unregisterFunctions(conn);
+				stmt.execute("SHUTDOWN COMPACT");
+			}
+		} finally {
+			Files.deleteIfExists(script);
+		}
+	}
+
+	private void persistIndex(Path indexDir) throws IOException {
+		Files.createDirectories(indexDir);
+		try (var fsDir = FSDirectory.open(indexDir)) {
+			for (var file : memoryIndexDirectory.listAll()) {
+				if (file.equals(IndexWriter.WRITE_LOCK_NAME)) continue;
+				fsDir.copyFrom(memoryIndexDirectory, file, file, IOContext.DEFAULT);
+			}
+		}
+	}
+}
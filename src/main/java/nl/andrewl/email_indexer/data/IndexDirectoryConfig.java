@@ -0,0 +1,155 @@
+package nl.andrewl.email_indexer.data;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Configuration that determines which Lucene {@link Directory} implementation
+ * is used to access a dataset's index, and how it's loaded.
+ */
+public class IndexDirectoryConfig {
+	public enum Type {
+		/**
+		 * Let Lucene pick the best implementation for the platform, using
+		 * {@link FSDirectory#open(Path)}.
+		 */
+		DEFAULT,
+		/**
+		 * Memory-map all index files using {@link MMapDirectory}.
+		 */
+		MMAP,
+		/**
+		 * Read index files using positional reads with {@link NIOFSDirectory}.
+		 */
+		NIO,
+		/**
+		 * Copy the whole index into the Java heap, using a
+		 * {@link ByteBuffersDirectory}. Only suitable for small datasets and
+		 * tests. Writes are still made to the on-disk index.
+		 */
+		HEAP
+	}
+
+	/**
+	 * The extensions of the files that contain Lucene's term dictionaries,
+	 * term indexes and postings lists, which are the files that are read for
+	 * every search.
+	 */
+	public static final Set<String> TERMS_AND_POSTINGS = Set.of("tim", "tip", "tmd", "doc");
+
+	private Type type = Type.DEFAULT;
+	private boolean preload = false;
+	private Set<String> preloadExtensions = new HashSet<>();
+
+	public Type getType() {
+		return type;
+	}
+
+	public IndexDirectoryConfig withType(Type type) {
+		this.type = type;
+		return this;
+	}
+
+	public boolean isPreload() {
+		return preload;
+	}
+
+	/**
+	 * Sets whether to preload all index files into physical memory when
+	 * they're opened. Only has an effect for {@link Type#MMAP}.
+	 * @param preload Whether to preload all files.
+	 * @return This config.
+	 */
+	public IndexDirectoryConfig withPreload(boolean preload) {
+		this.preload = preload;
+		return this;
+	}
+
+	public Set<String> getPreloadExtensions() {
+		return preloadExtensions;
+	}
+
+	/**
+	 * Sets the extensions of index files that should be read through once
+	 * when the directory is opened, so that they're in the page cache before
+	 * the first search. Only has an effect for {@link Type#MMAP}. See
+	 * {@link #TERMS_AND_POSTINGS}. Note that small segments are usually
+	 * packed into compound ("cfs") files.
+	 * @param extensions The file extensions, without a leading dot.
+	 * @return This config.
+	 */
+	public IndexDirectoryConfig withPreloadExtensions(Collection<String> extensions) {
+		this.preloadExtensions = new HashSet<>(extensions);
+		return this;
+	}
+
+	/**
+	 * Opens a directory for reading an index, according to this config.
+	 * @param indexDir The path to the index on disk.
+	 * @return The directory.
+	 * @throws IOException If the directory could not be opened.
+	 */
+	public Directory open(Path indexDir) throws IOException {
+		return switch (type) {
+			case DEFAULT -> FSDirectory.open(indexDir);
+			case NIO -> new NIOFSDirectory(indexDir);
+			case MMAP -> {
+				var dir = new MMapDirectory(indexDir);
+				dir.setPreload(preload);
+				if (!preload && !preloadExtensions.isEmpty()) warm(dir);
+				yield dir;
+			}
+			case HEAP -> {
+				var dir = new ByteBuffersDirectory();
+				try (var fsDir = FSDirectory.open(indexDir)) {
+					for (var name : fsDir.listAll()) {
+						if (name.equals(IndexWriter.WRITE_LOCK_NAME)) continue;
+						dir.copyFrom(fsDir, name, name, IOContext.READONCE);
+					}
+				}
+				yield dir;
+			}
+		};
+	}
+
+	/**
+	 * Opens a directory for writing an index, according to this config. Since
+	 * indexes must be persisted, a heap directory is never used for writing.
+	 * @param indexDir The path to the index on disk.
+	 * @return The directory.
+	 * @throws IOException If the directory could not be opened.
+	 */
+	public Directory openForWriting(Path indexDir) throws IOException {
+		return switch (type) {
+			case DEFAULT, HEAP -> FSDirectory.open(indexDir);
+			case NIO -> new NIOFSDirectory(indexDir);
+			case MMAP -> new MMapDirectory(indexDir);
+		};
+	}
+
+	/**
+	 * Reads through all files with one of the configured preload extensions,
+	 * so that the operating system caches their pages.
+	 */
+	private void warm(Directory dir) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		for (var name : dir.listAll()) {
+			int idx = name.lastIndexOf('.');
+			if (idx == -1 || !preloadExtensions.contains(name.substring(idx + 1))) continue;
+			try (var in = dir.openInput(name, IOContext.READONCE)) {
+				long remaining = in.length();
+				while (remaining > 0) {
+					int len = (int) Math.min(buffer.length, remaining);
+					in.readBytes(buffer, 0, len);
+					remaining -= len;
+				}
+			}
+		}
+	}
+}
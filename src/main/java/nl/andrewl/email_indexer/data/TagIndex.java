@@ -0,0 +1,238 @@
+package nl.andrewl.email_indexer.data;
+
+import nl.andrewl.email_indexer.data.search.filter.IdSetFilter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An in-memory index of which emails have which tags, as one bitmap of email
+ * ids per tag. It's loaded with a single scan of the EMAIL_TAG table, after
+ * which combinations of tags, per-tag counts and the set of untagged emails
+ * are computed without touching the database. It also keeps counters of the
+ * threads that each tag appears in, and of how often tags appear together on
+ * one email, which are updated as tags are added and removed. The index is
+ * thread-safe.
+ * <p>
+ *     A dataset's {@link DatasetCache} keeps an index that's updated by its
+ *     {@link TagRepository} instances, like the rest of the cache.
+ * </p>
+ */
+public class TagIndex {
+	private final Map<Integer, BitSet> emailsByTag = new HashMap<>();
+	/**
+	 * For each tag, the number of tagged emails in each thread, by the id of
+	 * the thread's root email.
+	 */
+	private final Map<Integer, Map<Integer, Integer>> threadEmailCounts = new HashMap<>();
+	/**
+	 * For each pair of different tags, the number of emails that have both.
+	 */
+	private final Map<Integer, Map<Integer, Integer>> cooccurrences = new HashMap<>();
+	/**
+	 * The id of the root email of each reply's thread, by the reply's id. Zero
+	 * for emails that aren't replies.
+	 */
+	private int[] threadRoots = new int[0];
+
+	/**
+	 * Loads the index of a dataset.
+	 * @param conn The connection to the dataset's database.
+	 * @return The index.
+	 * @throws SQLException If the tags could not be read.
+	 */
+	public static TagIndex load(Connection conn) throws SQLException {
+		TagIndex index = new TagIndex();
+		try (var stmt = conn.createStatement()) {
+			try (var rs = stmt.executeQuery(QueryCache.load("/sql/fetch_reply_root_ids.sql"))) {
+				while (rs.next()) index.setThreadRoot(rs.getLong(1), rs.getLong(2));
+			}
+			try (var rs = stmt.executeQuery("SELECT EMAIL_ID, TAG_ID FROM EMAIL_TAG")) {
+				while (rs.next()) index.add(rs.getLong(1), rs.getInt(2));
+			}
+		}
+		return index;
+	}
+
+	private void setThreadRoot(long emailId, long rootId) {
+		int id = Math.toIntExact(emailId);
+		if (id >= threadRoots.length) threadRoots = Arrays.copyOf(threadRoots, Math.max(id + 1, threadRoots.length * 2));
+		threadRoots[id] = Math.toIntExact(rootId);
+	}
+
+	private int getThreadRoot(int emailId) {
+		int root = emailId < threadRoots.length ? threadRoots[emailId] : 0;
+		return root == 0 ? emailId : root;
+	}
+
+	/**
+	 * Records that an email has a tag.
+	 * @param emailId The id of the email.
+	 * @param tagId The id of the tag.
+	 */
+	public synchronized void add(long emailId, int tagId) {
+		int id = Math.toIntExact(emailId);
+		BitSet emails = emailsByTag.computeIfAbsent(tagId, t -> new BitSet());
+		if (emails.get(id)) return;
+		emails.set(id);
+		updateCounters(id, tagId, 1);
+	}
+
+	/**
+	 * Records that an email no longer has a tag.
+	 * @param emailId The id of the email.
+	 * @param tagId The id of the tag.
+	 */
+	public synchronized void remove(long emailId, int tagId) {
+		BitSet emails = emailsByTag.get(tagId);
+		int id = Math.toIntExact(emailId);
+		if (emails == null || !emails.get(id)) return;
+		emails.clear(id);
+		if (emails.isEmpty()) emailsByTag.remove(tagId);
+		updateCounters(id, tagId, -1);
+	}
+
+	/**
+	 * Updates the thread and co-occurrence counters after an email's tag was
+	 * added or removed.
+	 */
+	private void updateCounters(int emailId, int tagId, int delta) {
+		var threadCounts = threadEmailCounts.computeIfAbsent(tagId, t -> new HashMap<>());
+		threadCounts.merge(getThreadRoot(emailId), delta, TagIndex::sumOrNull);
+		if (threadCounts.isEmpty()) threadEmailCounts.remove(tagId);
+		emailsByTag.forEach((otherTagId, emails) -> {
+			if (otherTagId != tagId && emails.get(emailId)) {
+				updateCooccurrence(tagId, otherTagId, delta);
+				updateCooccurrence(otherTagId, tagId, delta);
+			}
+		});
+	}
+
+	private void updateCooccurrence(int tagId, int otherTagId, int delta) {
+		var counts = cooccurrences.computeIfAbsent(tagId, t -> new HashMap<>());
+		counts.merge(otherTagId, delta, TagIndex::sumOrNull);
+		if (counts.isEmpty()) cooccurrences.remove(tagId);
+	}
+
+	private static Integer sumOrNull(int a, int b) {
+		return a + b == 0 ? null : a + b;
+	}
+
+	/**
+	 * Records that a tag was deleted, and with it, removed from all emails.
+	 * @param tagId The id of the tag.
+	 */
+	public synchronized void removeTag(int tagId) {
+		emailsByTag.remove(tagId);
+		threadEmailCounts.remove(tagId);
+		var counts = cooccurrences.remove(tagId);
+		if (counts != null) {
+			for (int otherTagId : counts.keySet()) {
+				var otherCounts = cooccurrences.get(otherTagId);
+				otherCounts.remove(tagId);
+				if (otherCounts.isEmpty()) cooccurrences.remove(otherTagId);
+			}
+		}
+	}
+
+	/**
+	 * Gets the ids of all emails that have a tag.
+	 * @param tagId The id of the tag.
+	 * @return A copy of the set of email ids.
+	 */
+	public synchronized BitSet getEmails(int tagId) {
+		BitSet emails = emailsByTag.get(tagId);
+		return emails == null ? new BitSet() : (BitSet) emails.clone();
+	}
+
+	/**
+	 * Gets the ids of all emails that have at least one tag.
+	 * @return The set of email ids.
+	 */
+	public synchronized BitSet getTaggedEmails() {
+		BitSet emails = new BitSet();
+		for (var tagEmails : emailsByTag.values()) emails.or(tagEmails);
+		return emails;
+	}
+
+	/**
+	 * Counts the emails that have a tag.
+	 * @param tagId The id of the tag.
+	 * @return The number of emails.
+	 */
+	public synchronized int count(int tagId) {
+		BitSet emails = emailsByTag.get(tagId);
+		return emails == null ? 0 : emails.cardinality();
+	}
+
+	/**
+	 * Counts the emails that have each tag. Tags without emails are left out.
+	 * @return A map of the number of emails by tag id, ordered by tag id.
+	 */
+	public synchronized Map<Integer, Integer> getCounts() {
+		Map<Integer, Integer> counts = new TreeMap<>();
+		emailsByTag.forEach((tagId, emails) -> counts.put(tagId, emails.cardinality()));
+		return counts;
+	}
+
+	/**
+	 * Gets a snapshot of the statistics of all tags.
+	 * @return The statistics.
+	 */
+	public synchronized TagStats getStats() {
+		Map<Integer, Integer> threadCounts = new TreeMap<>();
+		threadEmailCounts.forEach((tagId, counts) -> threadCounts.put(tagId, counts.size()));
+		Map<Integer, Map<Integer, Integer>> cooccurrenceCopy = new TreeMap<>();
+		cooccurrences.forEach((tagId, counts) -> cooccurrenceCopy.put(tagId, new TreeMap<>(counts)));
+		return new TagStats(getCounts(), threadCounts, cooccurrenceCopy);
+	}
+
+	/**
+	 * Gets a filter for emails that have a tag.
+	 * @param tagId The id of the tag.
+	 * @return The filter.
+	 */
+	public IdSetFilter withTag(int tagId) {
+		return new IdSetFilter(getEmails(tagId), false);
+	}
+
+	/**
+	 * Gets a filter for emails that have at least one of some tags.
+	 * @param tagIds The ids of the tags.
+	 * @return The filter.
+	 */
+	public synchronized IdSetFilter withAnyTag(Collection<Integer> tagIds) {
+		BitSet emails = new BitSet();
+		for (int tagId : tagIds) {
+			BitSet tagEmails = emailsByTag.get(tagId);
+			if (tagEmails != null) emails.or(tagEmails);
+		}
+		return new IdSetFilter(emails, false);
+	}
+
+	/**
+	 * Gets a filter for emails that have all of some tags. If no tags are
+	 * given, all emails match.
+	 * @param tagIds The ids of the tags.
+	 * @return The filter.
+	 */
+	public synchronized IdSetFilter withAllTags(Collection<Integer> tagIds) {
+		IdSetFilter filter = IdSetFilter.all();
+		for (int tagId : tagIds) filter = filter.and(withTag(tagId));
+		return filter;
+	}
+
+	/**
+	 * Gets a filter for emails that don't have any tags.
+	 * @return The filter.
+	 */
+	public IdSetFilter untagged() {
+		return new IdSetFilter(getTaggedEmails(), true);
+	}
+}
@@ -1,5 +1,6 @@
 package nl.andrewl.email_indexer.data;
 
+import nl.andrewl.email_indexer.data.search.filter.IdSetFilter;
 import nl.andrewl.email_indexer.util.DbUtils;
 
 import java.sql.Connection;
@@ -10,17 +11,30 @@ import static nl.andrewl.email_indexer.util.DbUtils.count;
 import static nl.andrewl.email_indexer.util.DbUtils.update;
 
 /**
- * Repository for interacting with tags.
+ * Repository for interacting with tags. If the dataset has a
+ * {@link DatasetCache}, lookups of tags by id and of emails' tags go through
+ * it, and changes to the tags of emails are applied to its {@link TagIndex}.
  */
 public class TagRepository {
 	private final Connection conn;
+	private final DatasetCache cache;
 
-	public TagRepository(Connection conn) {
+	/**
+	 * Constructs a repository that uses the given connection and cache.
+	 * @param conn The connection to the dataset's database.
+	 * @param cache The dataset's cache, or null to not use a cache.
+	 */
+	public TagRepository(Connection conn, DatasetCache cache) {
 		this.conn = conn;
+		this.cache = cache;
+	}
+
+	public TagRepository(Connection conn) {
+		this(conn, null);
 	}
 
 	public TagRepository(EmailDataset ds) {
-		this.conn = ds.getConnection();
+		this(ds.getConnection(), ds.getCache());
 	}
 
 	/**
@@ -29,6 +43,11 @@ public class TagRepository {
 	 * @return An optional that contains the tag, if it exists.
 	 */
 	public Optional<Tag> getTagById(int id) {
+		if (cache != null) return cache.tags().get(id, this::fetchTagById);
+		return fetchTagById(id);
+	}
+
+	private Optional<Tag> fetchTagById(int id) {
 		return DbUtils.fetchOne(conn, QueryCache.load("/sql/tag/fetch_tag_by_id.sql"), Tag::new, id);
 	}
 
@@ -63,15 +82,50 @@ public class TagRepository {
 	 * @return The number of emails with the tag.
 	 */
 	public long countTaggedEmails(int tagId) {
+		if (cache != null) {
+			try {
+				return cache.getTagIndex(conn).count(tagId);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
 		return DbUtils.count(conn, "SELECT COUNT(EMAIL_ID) FROM EMAIL_TAG WHERE TAG_ID = ?", tagId);
 	}
 
+	/**
+	 * Gets an index of which emails have which tags. If the dataset has a
+	 * cache, its index is returned, which is kept up to date by repositories.
+	 * Otherwise, a snapshot of the current tags is loaded.
+	 * @return The tag index.
+	 * @throws SQLException If the index could not be loaded.
+	 */
+	public TagIndex getTagIndex() throws SQLException {
+		if (cache != null) return cache.getTagIndex(conn);
+		return TagIndex.load(conn);
+	}
+
+	/**
+	 * Gets the email and thread counts of all tags, and how often each pair of
+	 * tags is applied to the same email. With a dataset cache, this is read
+	 * from its tag index without querying the database.
+	 * @return The tag statistics.
+	 * @throws SQLException If the tag index could not be loaded.
+	 */
+	public TagStats getStats() throws SQLException {
+		return getTagIndex().getStats();
+	}
+
 	/**
 	 * Gets a sorted list of tags for an email id.
 	 * @param emailId The id of the email.
 	 * @return A list of tags for the given email.
 	 */
 	public List<Tag> getTags(long emailId) {
+		if (cache != null) return new ArrayList<>(cache.emailTags().get(emailId, this::fetchTags));
+		return fetchTags(emailId);
+	}
+
+	private List<Tag> fetchTags(long emailId) {
 		return DbUtils.fetch(conn, QueryCache.load("/sql/tag/fetch_tags_by_email_id.sql"), Tag::new, emailId);
 	}
 
@@ -83,6 +137,7 @@ public class TagRepository {
 	 */
 	public Tag createTag(String name, String description) {
 		int id = (int) DbUtils.insertWithId(conn, "INSERT INTO TAG (NAME, DESCRIPTION) VALUES (?, ?)", name, description);
+		if (cache != null) cache.tags().invalidate(id);
 		return new Tag(id, name, description);
 	}
 
@@ -93,6 +148,10 @@ public class TagRepository {
 	 */
 	public void deleteTag(int id) {
 		update(conn, "DELETE FROM TAG WHERE ID = ?", id);
+		if (cache != null) {
+			cache.invalidateTags();
+			cache.updateTagIndex(index -> index.removeTag(id));
+		}
 	}
 
 	/**
@@ -111,6 +170,7 @@ public class TagRepository {
 	 */
 	public void setDescription(int tagId, String newDescription) {
 		update(conn, "UPDATE TAG SET DESCRIPTION = ? WHERE ID = ?", newDescription, tagId);
+		if (cache != null) cache.invalidateTags();
 	}
 
 	/**
@@ -121,6 +181,7 @@ public class TagRepository {
 	 */
 	public void setName(int tagId, String newName) {
 		update(conn, "UPDATE TAG SET NAME = ? WHERE ID = ?", newName, tagId);
+		if (cache != null) cache.invalidateTags();
 	}
 
 	/**
@@ -156,6 +217,10 @@ public class TagRepository {
 	public void addTag(long emailId, int tagId) {
 		if (!hasTag(emailId, tagId)) {
 			update(conn, "INSERT INTO EMAIL_TAG (EMAIL_ID, TAG_ID) VALUES (?, ?)", emailId, tagId);
+			if (cache != null) {
+				cache.emailTags().invalidate(emailId);
+				cache.updateTagIndex(index -> index.add(emailId, tagId));
+			}
 		}
 	}
 
@@ -168,11 +233,145 @@ public class TagRepository {
 	public void addTag(long emailId, String tagName) {
 		if (hasTag(emailId, tagName)) return;
 		DbUtils.doTransaction(conn, c -> {
-			var tag = this.getTagByName(tagName).orElse(createTag(tagName, null));
+			var tag = this.getTagByName(tagName).orElseGet(() -> createTag(tagName, null));
 			addTag(emailId, tag.id());
 		});
 	}
 
+	/**
+	 * Adds a tag to many emails at once, in a single transaction that's
+	 * recorded as one mutation. Emails that already have the tag, or that
+	 * don't exist, are skipped.
+	 * @param emailIds The ids of the emails.
+	 * @param tagId The tag to add.
+	 * @return The number of emails that the tag was added to.
+	 */
+	public int addTags(Collection<Long> emailIds, int tagId) {
+		return updateTags(emailIds, tagId, true);
+	}
+
+	/**
+	 * Adds a tag to many emails at once, like {@link #addTags(Collection, int)}.
+	 * If the tag doesn't exist yet, it's created with an empty description.
+	 * @param emailIds The ids of the emails.
+	 * @param tagName The name of the tag.
+	 * @return The number of emails that the tag was added to.
+	 */
+	public int addTags(Collection<Long> emailIds, String tagName) {
+		if (emailIds.isEmpty()) return 0;
+		var tag = getTagByName(tagName).orElseGet(() -> createTag(tagName, null));
+		return addTags(emailIds, tag.id());
+	}
+
+	/**
+	 * Removes a tag from many emails at once, in a single transaction that's
+	 * recorded as one mutation. Emails that don't have the tag are skipped.
+	 * @param emailIds The ids of the emails.
+	 * @param tagId The tag to remove.
+	 * @return The number of emails that the tag was removed from.
+	 */
+	public int removeTags(Collection<Long> emailIds, int tagId) {
+		return updateTags(emailIds, tagId, false);
+	}
+
+	/**
+	 * Removes a tag from many emails at once, like
+	 * {@link #removeTags(Collection, int)}. Does nothing if the tag doesn't
+	 * exist.
+	 * @param emailIds The ids of the emails.
+	 * @param tagName The name of the tag.
+	 * @return The number of emails that the tag was removed from.
+	 */
+	public int removeTags(Collection<Long> emailIds, String tagName) {
+		return getTagByName(tagName).map(tag -> removeTags(emailIds, tag.id())).orElse(0);
+	}
+
+	/**
+	 * Adds or removes a tag for a set of emails. The emails that actually
+	 * change are first recorded in MUTATION_EMAIL, and then tagged or untagged
+	 * based on that, so that the whole update is a few set-based statements.
+	 * The ids are bound in arrays of at most
+	 * {@link IdSetFilter#MAX_PARAMETER_IDS}, with one statement per array.
+	 */
+	private int updateTags(Collection<Long> emailIds, int tagId, boolean add) {
+		if (emailIds.isEmpty()) return 0;
+		Optional<Tag> tag = getTagById(tagId);
+		if (tag.isEmpty()) return 0;
+		BitSet idSet = new BitSet();
+		for (long id : emailIds) idSet.set(Math.toIntExact(id));
+		List<Object> idArrays = new IdSetFilter(idSet, false).getParameters();
+		try {
+			conn.setAutoCommit(false);
+			String desc = (add ? "Adding tag %s to emails." : "Removing tag %s from emails.").formatted(tag.get().name());
+			long mId = DbUtils.insertWithId(conn, "INSERT INTO MUTATION (DESCRIPTION) VALUES (?)", desc);
+			String findChanged = add ? """
+					INSERT INTO MUTATION_EMAIL (MUTATION_ID, EMAIL_ID)
+					SELECT ?, EMAIL.ID
+					FROM EMAIL
+					WHERE EMAIL.ID = ANY(?) AND NOT EXISTS (
+						SELECT EMAIL_ID FROM EMAIL_TAG WHERE EMAIL_TAG.EMAIL_ID = EMAIL.ID AND EMAIL_TAG.TAG_ID = ?
+					)""" : """
+					INSERT INTO MUTATION_EMAIL (MUTATION_ID, EMAIL_ID)
+					SELECT ?, EMAIL_ID
+					FROM EMAIL_TAG
+					WHERE EMAIL_ID = ANY(?) AND TAG_ID = ?""";
+			int count = 0;
+			try (var stmt = conn.prepareStatement(findChanged)) {
+				for (Object ids : idArrays) {
+					stmt.setLong(1, mId);
+					stmt.setObject(2, ids);
+					stmt.setInt(3, tagId);
+					count += stmt.executeUpdate();
+				}
+			}
+			if (count == 0) {
+				conn.rollback();
+				return 0;
+			}
+			if (add) {
+				update(conn, "INSERT INTO EMAIL_TAG (EMAIL_ID, TAG_ID) SELECT EMAIL_ID, ? FROM MUTATION_EMAIL WHERE MUTATION_ID = ?", tagId, mId);
+			} else {
+				update(conn, "DELETE FROM EMAIL_TAG WHERE TAG_ID = ? AND EMAIL_ID IN (SELECT EMAIL_ID FROM MUTATION_EMAIL WHERE MUTATION_ID = ?)", tagId, mId);
+			}
+			update(conn, "UPDATE MUTATION SET AFFECTED_EMAIL_COUNT = ? WHERE ID = ?", count, mId);
+			List<Long> changedIds = cache == null ? List.of() : DbUtils.fetch(
+					conn,
+					"SELECT EMAIL_ID FROM MUTATION_EMAIL WHERE MUTATION_ID = ?",
+					rs -> rs.getLong(1),
+					mId
+			);
+			conn.commit();
+			if (cache != null) {
+				for (long id : changedIds) cache.emailTags().invalidate(id);
+				cache.updateTagIndex(index -> {
+					for (long id : changedIds) {
+						if (add) {
+							index.add(id, tagId);
+						} else {
+							index.remove(id, tagId);
+						}
+					}
+				});
+			}
+			return count;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			try {
+				conn.rollback();
+			} catch (SQLException ex) {
+				ex.printStackTrace();
+			}
+			invalidateRolledBackTags();
+			return 0;
+		} finally {
+			try {
+				conn.setAutoCommit(true);
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Adds a tag to an email, and recursively to all replies of that email.
 	 * @param emailId The id of the first email to add the tag to.
@@ -181,7 +380,7 @@ public class TagRepository {
 	public void addTagRecursive(long emailId, int tagId) throws SQLException {
 		try {
 			conn.setAutoCommit(false);
-			var repo = new EmailRepository(conn);
+			var repo = new EmailRepository(conn, cache);
 			Queue<Long> emailIdQueue = new LinkedList<>();
 			emailIdQueue.add(emailId);
 			while (!emailIdQueue.isEmpty()) {
@@ -195,6 +394,7 @@ public class TagRepository {
 		} catch (SQLException e) {
 			e.printStackTrace();
 			conn.rollback();
+			invalidateRolledBackTags();
 		} finally {
 			conn.setAutoCommit(true);
 		}
@@ -208,6 +408,10 @@ public class TagRepository {
 	 */
 	public void removeTag(long emailId, int tagId) {
 		update(conn, "DELETE FROM EMAIL_TAG WHERE EMAIL_ID = ? AND TAG_ID = ?", emailId, tagId);
+		if (cache != null) {
+			cache.emailTags().invalidate(emailId);
+			cache.updateTagIndex(index -> index.remove(emailId, tagId));
+		}
 	}
 
 	/**
@@ -218,7 +422,7 @@ public class TagRepository {
 	public void removeTagRecursive(long emailId, int tagId) throws SQLException {
 		try {
 			conn.setAutoCommit(false);
-			var repo = new EmailRepository(conn);
+			var repo = new EmailRepository(conn, cache);
 			Queue<Long> emailIdQueue = new LinkedList<>();
 			emailIdQueue.add(emailId);
 			while (!emailIdQueue.isEmpty()) {
@@ -232,11 +436,23 @@ public class TagRepository {
 		} catch (SQLException e) {
 			e.printStackTrace();
 			conn.rollback();
+			invalidateRolledBackTags();
 		} finally {
 			conn.setAutoCommit(true);
 		}
 	}
 
+	/**
+	 * Drops any cached tags after a rollback, since they may have been changed
+	 * or loaded as part of the transaction.
+	 */
+	private void invalidateRolledBackTags() {
+		if (cache != null) {
+			cache.invalidateTags();
+			cache.invalidateTagIndex();
+		}
+	}
+
 	/**
 	 * Gets the list of all tags belonging to any parents of the given email.
 	 * @param emailId The id of the email.
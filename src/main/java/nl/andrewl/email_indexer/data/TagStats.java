@@ -0,0 +1,41 @@
+package nl.andrewl.email_indexer.data;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Statistics about how tags are used in a dataset. Tags that aren't applied
+ * to any emails are left out of all maps.
+ * @param emailCounts The number of emails that have each tag, by tag id.
+ * @param threadCounts The number of threads with at least one email that has
+ *                     each tag, by tag id.
+ * @param cooccurrences For each tag id, the number of emails that have both
+ *                      that tag and another one, by the other tag's id. This
+ *                      is symmetric, and doesn't contain a tag's count with
+ *                      itself.
+ */
+public record TagStats(
+		Map<Integer, Integer> emailCounts,
+		Map<Integer, Integer> threadCounts,
+		Map<Integer, Map<Integer, Integer>> cooccurrences
+) {
+	public int emailCount(int tagId) {
+		return emailCounts.getOrDefault(tagId, 0);
+	}
+
+	public int threadCount(int tagId) {
+		return threadCounts.getOrDefault(tagId, 0);
+	}
+
+	/**
+	 * Gets the number of emails that have both of two tags.
+	 * @param tagId The id of one tag.
+	 * @param otherTagId The id of the other tag.
+	 * @return The number of emails with both tags. If both ids are the same,
+	 * this is the number of emails with the tag.
+	 */
+	public int cooccurrence(int tagId, int otherTagId) {
+		if (tagId == otherTagId) return emailCount(tagId);
+		return cooccurrences.getOrDefault(tagId, Collections.emptyMap()).getOrDefault(otherTagId, 0);
+	}
+}
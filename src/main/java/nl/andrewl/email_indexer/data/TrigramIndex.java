@@ -0,0 +1,144 @@
+package nl.andrewl.email_indexer.data;
+
+import nl.andrewl.email_indexer.data.search.filter.IdSetFilter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * An in-memory index of the trigrams (sequences of three characters) in one
+ * text column of the EMAIL table, like SUBJECT or SENT_FROM. It's used to
+ * narrow down a substring search to the few emails that contain all trigrams
+ * of the substring, which the database then only has to verify, instead of
+ * scanning the whole table. Text is lowercased before it's indexed, so the
+ * candidates are the same for case-sensitive and case-insensitive searches.
+ * <p>
+ *     Each trigram has a sorted list of the ids of the emails that contain
+ *     it, which takes much less memory than a bitmap for rare trigrams. The
+ *     index is built with a single scan of the column, and never has to be
+ *     updated when emails are hidden, since the column doesn't change; ids of
+ *     deleted emails just never match.
+ * </p>
+ * <p>
+ *     Candidates only help if they're selective. When more than
+ *     {@link #MAX_CANDIDATE_FRACTION} of the indexed emails are candidates,
+ *     the database is better off scanning the table, so no candidates are
+ *     given at all.
+ * </p>
+ */
+public class TrigramIndex {
+	private static class Postings {
+		private int[] ids = new int[4];
+		private int size;
+
+		private void add(int id) {
+			if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+	}
+
+	/**
+	 * The largest fraction of the indexed emails that may be candidates for
+	 * a pattern, for the candidates to be used.
+	 */
+	public static final double MAX_CANDIDATE_FRACTION = 0.1;
+
+	private final Map<Long, Postings> postings = new HashMap<>();
+	private int rowCount;
+
+	/**
+	 * Loads the index of a column of the EMAIL table.
+	 * @param conn The connection to the dataset's database.
+	 * @param column The name of the column. This is not escaped, so it should
+	 *               never come from user input.
+	 * @return The index.
+	 * @throws SQLException If the column could not be read.
+	 */
+	public static TrigramIndex load(Connection conn, String column) throws SQLException {
+		TrigramIndex index = new TrigramIndex();
+		try (
+				var stmt = conn.createStatement();
+				var rs = stmt.executeQuery("SELECT ID, " + column + " FROM EMAIL WHERE " + column + " IS NOT NULL ORDER BY ID")
+		) {
+			while (rs.next()) {
+				int id = Math.toIntExact(rs.getLong(1));
+				index.rowCount++;
+				for (long trigram : trigrams(rs.getString(2))) {
+					index.postings.computeIfAbsent(trigram, t -> new Postings()).add(id);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Finds the emails that may match a LIKE pattern, because they contain all
+	 * trigrams of the pattern's literal parts.
+	 * @param likePattern The pattern, which may contain % and _ wildcards.
+	 * @return The ids of the candidate emails, or an empty optional if the
+	 * pattern has no trigrams to narrow the search down with, or if too many
+	 * emails are candidates for them to be worth checking separately.
+	 */
+	public Optional<BitSet> findCandidates(String likePattern) {
+		Set<Long> patternTrigrams = new HashSet<>();
+		for (String part : likePattern.split("[%_\\\\]")) patternTrigrams.addAll(trigrams(part));
+		if (patternTrigrams.isEmpty()) return Optional.empty();
+		List<Postings> lists = new ArrayList<>(patternTrigrams.size());
+		for (long trigram : patternTrigrams) {
+			Postings p = postings.get(trigram);
+			if (p == null) return Optional.of(new BitSet());
+			lists.add(p);
+		}
+		lists.sort(Comparator.comparingInt(p -> p.size));
+		int[] ids = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+		int size = ids.length;
+		for (int i = 1; i < lists.size() && size > 0; i++) {
+			size = intersect(ids, size, lists.get(i));
+		}
+		if (size > rowCount * MAX_CANDIDATE_FRACTION || size > IdSetFilter.MAX_PARAMETER_IDS) {
+			return Optional.empty();
+		}
+		BitSet candidates = new BitSet();
+		for (int i = 0; i < size; i++) candidates.set(ids[i]);
+		return Optional.of(candidates);
+	}
+
+	/**
+	 * Gets the number of emails that were indexed, which have a value in the
+	 * column.
+	 * @return The number of emails.
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Intersects a sorted array of ids with a list of postings, in place.
+	 * @return The number of ids that are left at the start of the array.
+	 */
+	private static int intersect(int[] ids, int size, Postings other) {
+		int count = 0;
+		int j = 0;
+		for (int i = 0; i < size && j < other.size; i++) {
+			while (j < other.size && other.ids[j] < ids[i]) j++;
+			if (j < other.size && other.ids[j] == ids[i]) ids[count++] = ids[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the distinct trigrams of a text, after lowercasing it.
+	 * @param text The text.
+	 * @return The set of trigrams, each packed in a long.
+	 */
+	private static Set<Long> trigrams(String text) {
+		if (text == null || text.length() < 3) return Collections.emptySet();
+		String s = text.toLowerCase(Locale.ROOT);
+		Set<Long> trigrams = new HashSet<>();
+		for (int i = 0; i + 3 <= s.length(); i++) {
+			trigrams.add(((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2));
+		}
+		return trigrams;
+	}
+}
@@ -21,7 +21,8 @@ public interface EmailDatasetExporter {
 	 * @param path The path to export to.
 	 * @return A future that completes when the dataset has been exported. This
 	 * future may complete exceptionally if an error occurs while exporting the
-	 * dataset.
+	 * dataset. The exporters in this library return a
+	 * {@link nl.andrewl.email_indexer.util.Task}, which can be cancelled.
 	 */
 	CompletableFuture<Void> export(EmailDataset ds, Path path);
 }
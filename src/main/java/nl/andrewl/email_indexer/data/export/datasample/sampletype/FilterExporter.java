@@ -3,6 +3,7 @@ package nl.andrewl.email_indexer.data.export.datasample.sampletype;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
 
 import nl.andrewl.email_indexer.data.EmailDataset;
 import nl.andrewl.email_indexer.data.EmailEntry;
@@ -13,6 +14,7 @@ import nl.andrewl.email_indexer.data.export.ExporterParameters;
 import nl.andrewl.email_indexer.data.export.datasample.datatype.TypeExporter;
 import nl.andrewl.email_indexer.data.search.EmailSearchResult;
 import nl.andrewl.email_indexer.data.search.EmailSearcher;
+import nl.andrewl.email_indexer.util.Status;
 
 /**
  * Class for any exporter that exports results from a filter
@@ -28,12 +30,17 @@ public class FilterExporter extends SampleExporter {
 		super(typeExporter, params);
 	}
 
-	protected void exportSample(EmailDataset ds, Path path) throws Exception {
+	protected void exportSample(EmailDataset ds, Path path, Status status) throws Exception {
 		if (this.params.getFilters() == null) {
 			throw new IllegalArgumentException("Filter parameter cannot be null.");
 		}
 		typeExporter.beforeExport(ds, path, this.params);
-		exportNextChunk(1, 1, new EmailRepository(ds), new TagRepository(ds), new EmailSearcher(ds));
+		try {
+			exportNextChunk(1, 1, new EmailRepository(ds), new TagRepository(ds), new EmailSearcher(ds), status);
+		} catch (CancellationException e) {
+			typeExporter.afterExport();
+			throw e;
+		}
 		typeExporter.afterExport();
 	}
 
@@ -45,21 +52,27 @@ public class FilterExporter extends SampleExporter {
 	 * @param emailRepo The email repository.
 	 * @param tagRepo   The tag repository.
 	 * @param searcher  The searcher object.
+	 * @param status    The status to report progress to.
 	 * @throws Exception Concrete implementations of TypeExporter can throw
 	 *                   exceptions.
 	 */
-	private void exportNextChunk(int page, int rank, EmailRepository emailRepo, TagRepository tagRepo, EmailSearcher searcher) throws Exception {
+	private void exportNextChunk(int page, int rank, EmailRepository emailRepo, TagRepository tagRepo, EmailSearcher searcher, Status status) throws Exception {
 		EmailSearchResult results = searcher.findAll(page, PAGE_SIZE, this.params.getFilters()).join();
+		if (page == 1) {
+			status.setTotalSteps((int) Math.min(results.totalResultCount(), this.params.getMaxResultCount()));
+		}
 		List<EmailEntryPreview> emailResults = results.emails();
 		for (int i = 0; i < results.emails().size() && rank <= this.params.getMaxResultCount(); i++) {
+			status.checkCancelled();
 			EmailEntryPreview email = emailResults.get(i);
 			Optional<EmailEntry> entry = emailRepo.findEmailById(email.id());
 			if (entry.isPresent()) {
 				typeExporter.exportEmail(entry.get(), rank++, emailRepo, tagRepo);
 			}
+			status.incrementStepsDone();
 		}
 		if (rank <= this.params.getMaxResultCount() && results.hasNextPage()) {
-			exportNextChunk(page + 1, rank, emailRepo, tagRepo, searcher);
+			exportNextChunk(page + 1, rank, emailRepo, tagRepo, searcher, status);
 		}
 	}
 }
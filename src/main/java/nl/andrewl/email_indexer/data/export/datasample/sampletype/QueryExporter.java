@@ -7,10 +7,12 @@ import nl.andrewl.email_indexer.data.TagRepository;
 import nl.andrewl.email_indexer.data.export.ExporterParameters;
 import nl.andrewl.email_indexer.data.export.datasample.datatype.TypeExporter;
 import nl.andrewl.email_indexer.data.search.EmailIndexSearcher;
+import nl.andrewl.email_indexer.util.Status;
 
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
 
 /**
  * Class for any exporter that exports results from a Lucene
@@ -21,7 +23,7 @@ public class QueryExporter extends SampleExporter {
 		super(typeExporter, params);
 	}
 
-	protected void exportSample(EmailDataset ds, Path path) throws Exception {
+	protected void exportSample(EmailDataset ds, Path path, Status status) throws Exception {
 		if (this.params.getQuery() == null || this.params.getQuery().isBlank()) {
 			throw new IllegalArgumentException("Query parameter cannot be blank or null.");
 		}
@@ -30,12 +32,20 @@ public class QueryExporter extends SampleExporter {
 		typeExporter.beforeExport(ds, path, this.params);
 		EmailRepository emailRepo = new EmailRepository(ds);
 		TagRepository tagRepo = new TagRepository(ds);
+		status.setTotalSteps(rootIds.size());
 		int rank = 1;
-		for (var id : rootIds) {
-			Optional<EmailEntry> optionalEmail = emailRepo.findEmailById(id);
-			if (optionalEmail.isPresent()) {
-				typeExporter.exportEmail(optionalEmail.get(), rank++, emailRepo, tagRepo);
+		try {
+			for (var id : rootIds) {
+				status.checkCancelled();
+				Optional<EmailEntry> optionalEmail = emailRepo.findEmailById(id);
+				if (optionalEmail.isPresent()) {
+					typeExporter.exportEmail(optionalEmail.get(), rank++, emailRepo, tagRepo);
+				}
+				status.incrementStepsDone();
 			}
+		} catch (CancellationException e) {
+			typeExporter.afterExport();
+			throw e;
 		}
 		typeExporter.afterExport();
 	}
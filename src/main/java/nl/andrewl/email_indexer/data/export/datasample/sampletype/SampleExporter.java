@@ -4,10 +4,10 @@ import nl.andrewl.email_indexer.data.EmailDataset;
 import nl.andrewl.email_indexer.data.export.EmailDatasetExporter;
 import nl.andrewl.email_indexer.data.export.ExporterParameters;
 import nl.andrewl.email_indexer.data.export.datasample.datatype.TypeExporter;
-import nl.andrewl.email_indexer.util.Async;
+import nl.andrewl.email_indexer.util.Status;
+import nl.andrewl.email_indexer.util.Task;
 
 import java.nio.file.Path;
-import java.util.concurrent.CompletableFuture;
 
 /**
  * Parent class of concrete SampleExporter implementations, that abstracts away
@@ -34,24 +34,29 @@ public abstract class SampleExporter implements EmailDatasetExporter {
 	}
 
 	/**
-	 * Implementation of export which simply wraps the {@link SampleExporter#exportSample(EmailDataset, Path)}
-	 * method in an asynchronous run call.
+	 * Implementation of export which simply wraps the {@link SampleExporter#exportSample(EmailDataset, Path, Status)}
+	 * method in an asynchronous task. The task's progress counts the exported
+	 * emails. If it's cancelled, the emails that were exported so far are
+	 * kept, and the export is finished properly.
 	 *
 	 * @param ds The dataset to export.
 	 * @param path The path to export to.
-	 * @return A future that completes when the export is finished.
+	 * @return A task that completes when the export is finished.
 	 */
 	@Override
-	public CompletableFuture<Void> export(EmailDataset ds, Path path) {
-		return Async.run(() -> exportSample(ds, path));
+	public Task<Void> export(EmailDataset ds, Path path) {
+		Status status = new Status();
+		return Task.run(status, () -> exportSample(ds, path, status));
 	}
 
 	/**
 	 * Performs the export using the set data type exporter and exporter
 	 * parameters.
 	 *
-	 * @param ds   The dataset to export.
-	 * @param path The path to export to.
+	 * @param ds     The dataset to export.
+	 * @param path   The path to export to.
+	 * @param status The status to report progress to, and to check for
+	 *               cancellation before each email.
 	 */
-	protected abstract void exportSample(EmailDataset ds, Path path) throws Exception;
+	protected abstract void exportSample(EmailDataset ds, Path path, Status status) throws Exception;
 }
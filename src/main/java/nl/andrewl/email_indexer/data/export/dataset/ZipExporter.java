@@ -2,13 +2,16 @@ package nl.andrewl.email_indexer.data.export.dataset;
 
 import net.lingala.zip4j.ZipFile;
 import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.CompressionMethod;
 import nl.andrewl.email_indexer.data.EmailDataset;
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
 import nl.andrewl.email_indexer.data.export.EmailDatasetExporter;
-import nl.andrewl.email_indexer.util.Async;
+import nl.andrewl.email_indexer.util.Status;
+import nl.andrewl.email_indexer.util.Task;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
 
 /**
  * An exporter that simply exports the dataset to a ZIP file archive.
@@ -16,11 +19,35 @@ import java.util.concurrent.CompletableFuture;
  *     Note: In order to ensure data integrity, the dataset must be temporarily
  *     closed during the export. It will be reopened at the end of the export.
  * </p>
+ * <p>
+ *     The export consists of three steps: the index, the metadata and the
+ *     database. If it's cancelled, it stops before the next step, and removes
+ *     the archive if it didn't exist before.
+ * </p>
  */
 public class ZipExporter implements EmailDatasetExporter {
+	/**
+	 * Whether to store the index files without compression, so that the
+	 * index can be served directly from the archive. See
+	 * {@link nl.andrewl.email_indexer.data.imports.ZipImporter.Mode#INDEX_IN_ARCHIVE}.
+	 */
+	private final boolean storeIndexUncompressed;
+
+	public ZipExporter(boolean storeIndexUncompressed) {
+		this.storeIndexUncompressed = storeIndexUncompressed;
+	}
+
+	public ZipExporter() {
+		this(false);
+	}
+
 	@Override
-	public CompletableFuture<Void> export(EmailDataset ds, Path path) {
-		return Async.run(() -> {
+	public Task<Void> export(EmailDataset ds, Path path) {
+		Status status = new Status(3);
+		return Task.run(status, () -> {
+			if (ds instanceof InMemoryEmailDataset) {
+				throw new IllegalArgumentException("Cannot export an in-memory dataset. Persist it first.");
+			}
 			if (Files.exists(path) && !path.getFileName().toString().endsWith(".zip")) {
 				throw new IllegalArgumentException("Cannot export dataset to non-zip file: " + path);
 			}
@@ -32,16 +59,54 @@ public class ZipExporter implements EmailDatasetExporter {
 			}
 			ZipParameters params = new ZipParameters();
 			params.setOverrideExistingFilesInZip(true);
+			ZipParameters indexParams = new ZipParameters(params);
+			if (storeIndexUncompressed) {
+				indexParams.setCompressionMethod(CompressionMethod.STORE);
+			}
+			boolean existed = Files.exists(path);
 			try (var zip = new ZipFile(path.toFile())) {
-				zip.addFolder(ds.getIndexDir().toFile(), params);
+				status.sendMessage("Adding the index.");
+				if (Files.exists(ds.getIndexDir())) {
+					zip.addFolder(ds.getIndexDir().toFile(), indexParams);
+				} else {
+					addArchivedIndex(ds.getIndexArchive(), zip, indexParams);
+				}
+				status.incrementStepsDone();
+				status.checkCancelled();
 				zip.addFile(ds.getMetadataFile().toFile(), params);
+				status.incrementStepsDone();
+				status.checkCancelled();
+				status.sendMessage("Adding the database.");
 				try {// Close the database prior to zipping it.
 					ds.close().join();
 					zip.addFile(ds.getDatabaseFile().toFile(), params);
 				} finally {// Reopen the connection, whether we were successful or not.
 					ds.establishConnection();
 				}
+				status.incrementStepsDone();
+			} catch (CancellationException e) {
+				if (!existed) Files.deleteIfExists(path);
+				throw e;
 			}
 		});
 	}
+
+	/**
+	 * Copies the index entries of a dataset whose index is still being served
+	 * from the archive it was imported from.
+	 */
+	private void addArchivedIndex(Path archive, ZipFile zip, ZipParameters indexParams) throws Exception {
+		if (archive == null) throw new IllegalStateException("Dataset has no index to export.");
+		try (var source = new ZipFile(archive.toFile())) {
+			for (var header : source.getFileHeaders()) {
+				if (header.isDirectory() || !header.getFileName().startsWith("index/")) continue;
+				ZipParameters entryParams = new ZipParameters(indexParams);
+				entryParams.setFileNameInZip(header.getFileName());
+				entryParams.setEntrySize(header.getUncompressedSize());
+				try (var in = source.getInputStream(header)) {
+					zip.addStream(in, entryParams);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,186 @@
+package nl.andrewl.email_indexer.data.imports;
+
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.enums.CompressionMethod;
+import org.apache.lucene.store.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A read-only Lucene directory that serves index files directly out of a ZIP
+ * archive, by memory-mapping the regions of the archive that contain each
+ * file's data. This only works for entries that are stored without any
+ * compression or encryption, see {@link #canServe(ZipFile, String)}.
+ */
+public class ZipArchiveDirectory extends BaseDirectory {
+	/**
+	 * The size of each mapped chunk. Lucene requires all but the last buffer
+	 * of a {@link ByteBuffersDataInput} to share the same power-of-two size.
+	 */
+	private static final int CHUNK_SIZE = 1 << 30;
+
+	/**
+	 * The fixed size of a ZIP local file header, excluding the variable-length
+	 * file name and extra field.
+	 */
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	private final Path archive;
+	private final FileChannel channel;
+	private final Map<String, Entry> entries;
+
+	private record Entry(long dataOffset, long length) {}
+
+	/**
+	 * Opens a directory over all files in the given archive that reside in
+	 * the given folder.
+	 * @param archive The ZIP archive to read from.
+	 * @param folder The folder within the archive, like "index/".
+	 * @throws IOException If the archive could not be read, or if it contains
+	 * entries that cannot be served directly.
+	 */
+	public ZipArchiveDirectory(Path archive, String folder) throws IOException {
+		super(NoLockFactory.INSTANCE);
+		this.archive = archive;
+		this.channel = FileChannel.open(archive, StandardOpenOption.READ);
+		this.entries = new HashMap<>();
+		try (var zip = new ZipFile(archive.toFile())) {
+			for (var header : zip.getFileHeaders()) {
+				if (header.isDirectory() || !header.getFileName().startsWith(folder)) continue;
+				if (!isServable(header)) {
+					throw new IOException("Cannot serve compressed or encrypted entry " + header.getFileName() + " from " + archive);
+				}
+				String name = header.getFileName().substring(folder.length());
+				entries.put(name, new Entry(findDataOffset(header), header.getUncompressedSize()));
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Determines if all files in the given folder of an archive can be served
+	 * by this directory, i.e. they are all stored uncompressed.
+	 * @param zip The archive to check.
+	 * @param folder The folder within the archive, like "index/".
+	 * @return True if the folder exists and can be served directly.
+	 * @throws IOException If the archive could not be read.
+	 */
+	public static boolean canServe(ZipFile zip, String folder) throws IOException {
+		boolean anyFound = false;
+		for (var header : zip.getFileHeaders()) {
+			if (header.isDirectory() || !header.getFileName().startsWith(folder)) continue;
+			if (!isServable(header)) return false;
+			anyFound = true;
+		}
+		return anyFound;
+	}
+
+	private static boolean isServable(FileHeader header) {
+		return header.getCompressionMethod() == CompressionMethod.STORE && !header.isEncrypted();
+	}
+
+	/**
+	 * Finds the offset of an entry's data, which comes directly after its
+	 * local header. The local header's extra field may differ from the one in
+	 * the central directory, so we need to read it from the archive.
+	 */
+	private long findDataOffset(FileHeader header) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		long offset = header.getOffsetLocalHeader();
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, offset + buf.position()) < 0) {
+				throw new IOException("Unexpected end of archive while reading header for " + header.getFileName());
+			}
+		}
+		int nameLength = Short.toUnsignedInt(buf.getShort(26));
+		int extraLength = Short.toUnsignedInt(buf.getShort(28));
+		return offset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+	}
+
+	@Override
+	public String[] listAll() {
+		ensureOpen();
+		String[] names = entries.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		return names;
+	}
+
+	@Override
+	public long fileLength(String name) throws IOException {
+		ensureOpen();
+		return getEntry(name).length();
+	}
+
+	@Override
+	public IndexInput openInput(String name, IOContext context) throws IOException {
+		ensureOpen();
+		Entry entry = getEntry(name);
+		List<ByteBuffer> buffers = new ArrayList<>();
+		long pos = 0;
+		while (pos < entry.length()) {
+			long size = Math.min(CHUNK_SIZE, entry.length() - pos);
+			buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, entry.dataOffset() + pos, size));
+			pos += size;
+		}
+		if (buffers.isEmpty()) buffers.add(ByteBuffer.allocate(0));
+		String description = "ZipArchiveDirectory(" + archive + "!" + name + ")";
+		return new ByteBuffersIndexInput(new ByteBuffersDataInput(buffers), description);
+	}
+
+	private Entry getEntry(String name) throws FileNotFoundException {
+		Entry entry = entries.get(name);
+		if (entry == null) throw new FileNotFoundException(name + " does not exist in " + archive);
+		return entry;
+	}
+
+	@Override
+	public Set<String> getPendingDeletions() {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public void close() throws IOException {
+		isOpen = false;
+		channel.close();
+	}
+
+	@Override
+	public void deleteFile(String name) {
+		throw new UnsupportedOperationException("Archived indexes are read-only.");
+	}
+
+	@Override
+	public IndexOutput createOutput(String name, IOContext context) {
+		throw new UnsupportedOperationException("Archived indexes are read-only.");
+	}
+
+	@Override
+	public IndexOutput createTempOutput(String prefix, String suffix, IOContext context) {
+		throw new UnsupportedOperationException("Archived indexes are read-only.");
+	}
+
+	@Override
+	public void sync(Collection<String> names) {
+		throw new UnsupportedOperationException("Archived indexes are read-only.");
+	}
+
+	@Override
+	public void syncMetaData() {
+		throw new UnsupportedOperationException("Archived indexes are read-only.");
+	}
+
+	@Override
+	public void rename(String source, String dest) {
+		throw new UnsupportedOperationException("Archived indexes are read-only.");
+	}
+}
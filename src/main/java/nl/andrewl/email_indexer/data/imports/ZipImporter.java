@@ -4,14 +4,57 @@ import net.lingala.zip4j.ZipFile;
 import nl.andrewl.email_indexer.data.EmailDataset;
 import nl.andrewl.email_indexer.util.Async;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
 
 /**
  * Imports datasets from ZIP files.
  */
 public class ZipImporter implements EmailDatasetImporter {
+	/**
+	 * The different ways in which a ZIP file can be opened.
+	 */
+	public enum Mode {
+		/**
+		 * Always extract the whole archive into a new directory.
+		 */
+		EXTRACT_ALL,
+		/**
+		 * Reuse a previously extracted directory if its marker file shows that
+		 * it was extracted from an identical archive. Otherwise, extract the
+		 * whole archive.
+		 */
+		REUSE_EXTRACTED,
+		/**
+		 * Like {@link #REUSE_EXTRACTED}, but only extract the database and
+		 * metadata, and serve the Lucene index read-only directly from the
+		 * archive. Falls back to extracting the index if its entries are
+		 * compressed.
+		 */
+		INDEX_IN_ARCHIVE
+	}
+
+	/**
+	 * The name of the marker file that's placed in directories that we
+	 * extract, which records the archive that it was extracted from.
+	 */
+	public static final String MARKER_FILE = ".zip-source.properties";
+
+	private final Mode mode;
+
+	public ZipImporter(Mode mode) {
+		this.mode = mode;
+	}
+
+	public ZipImporter() {
+		this(Mode.EXTRACT_ALL);
+	}
+
 	@Override
 	public CompletableFuture<EmailDataset> importFrom(Path path) {
 		return Async.supply(() -> {
@@ -19,17 +62,78 @@ public class ZipImporter implements EmailDatasetImporter {
 			if (!Files.isRegularFile(path) || !path.getFileName().toString().toLowerCase().endsWith(".zip")) {
 				throw new IllegalArgumentException(path + " is not a .zip file.");
 			}
-			String dirName = filename.substring(0, filename.lastIndexOf('.'));
-			Path openDir = path.resolveSibling(dirName);
-			while (Files.exists(openDir)) {
-				dirName = "_" + dirName;
-				openDir = path.resolveSibling(dirName);
-			}
-			Files.createDirectory(openDir);
 			try (var zip = new ZipFile(path.toFile())) {
-				zip.extractAll(openDir.toAbsolutePath().toString());
+				Properties marker = mode == Mode.EXTRACT_ALL ? null : getMarker(path, zip);
+				String dirName = filename.substring(0, filename.lastIndexOf('.'));
+				Path openDir = path.resolveSibling(dirName);
+				while (Files.exists(openDir)) {
+					if (marker != null && marker.equals(readMarker(openDir))) {
+						return openExtracted(openDir, path);
+					}
+					dirName = "_" + dirName;
+					openDir = path.resolveSibling(dirName);
+				}
+				Files.createDirectory(openDir);
+				boolean indexInArchive = mode == Mode.INDEX_IN_ARCHIVE && ZipArchiveDirectory.canServe(zip, "index/");
+				if (indexInArchive) {
+					for (var header : zip.getFileHeaders()) {
+						if (!header.getFileName().startsWith("index/")) {
+							zip.extractFile(header, openDir.toAbsolutePath().toString());
+						}
+					}
+				} else {
+					zip.extractAll(openDir.toAbsolutePath().toString());
+				}
+				if (marker != null) writeMarker(openDir, marker);
+				return openExtracted(openDir, path);
 			}
-			return new EmailDataset(openDir);
 		});
 	}
+
+	private EmailDataset openExtracted(Path openDir, Path archive) throws Exception {
+		if (Files.exists(openDir.resolve("index"))) {
+			return new EmailDataset(openDir);
+		}
+		return new EmailDataset(openDir, archive);
+	}
+
+	/**
+	 * Computes the marker properties that identify an archive. Instead of
+	 * hashing the whole (possibly multi-gigabyte) archive, we combine the
+	 * CRC-32 checksums that the archive's central directory already records
+	 * for each entry.
+	 * @param path The path to the archive.
+	 * @param zip The archive.
+	 * @return The marker properties.
+	 * @throws IOException If the archive could not be read.
+	 */
+	private Properties getMarker(Path path, ZipFile zip) throws IOException {
+		CRC32 crc = new CRC32();
+		for (var header : zip.getFileHeaders()) {
+			crc.update(header.getFileName().getBytes(StandardCharsets.UTF_8));
+			crc.update(Long.toString(header.getCrc()).getBytes(StandardCharsets.UTF_8));
+			crc.update(Long.toString(header.getUncompressedSize()).getBytes(StandardCharsets.UTF_8));
+		}
+		Properties props = new Properties();
+		props.setProperty("size", Long.toString(Files.size(path)));
+		props.setProperty("lastModified", Long.toString(Files.getLastModifiedTime(path).toMillis()));
+		props.setProperty("checksum", Long.toHexString(crc.getValue()));
+		return props;
+	}
+
+	private Properties readMarker(Path dir) throws IOException {
+		Path markerFile = dir.resolve(MARKER_FILE);
+		if (Files.notExists(markerFile)) return null;
+		Properties props = new Properties();
+		try (var reader = Files.newBufferedReader(markerFile)) {
+			props.load(reader);
+		}
+		return props;
+	}
+
+	private void writeMarker(Path dir, Properties marker) throws IOException {
+		try (var writer = Files.newBufferedWriter(dir.resolve(MARKER_FILE))) {
+			marker.store(writer, null);
+		}
+	}
 }
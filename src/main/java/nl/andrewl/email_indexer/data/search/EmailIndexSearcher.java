@@ -1,18 +1,22 @@
 package nl.andrewl.email_indexer.data.search;
 
 import nl.andrewl.email_indexer.data.EmailDataset;
+import nl.andrewl.email_indexer.data.search.filter.IdSetFilter;
 import nl.andrewl.email_indexer.util.Async;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -52,23 +56,20 @@ public class EmailIndexSearcher {
 		);
 		Query query = queryParser.parse(queryString);
 		List<Long> rootEmailIds = new ArrayList<>();
-		try (var reader = DirectoryReader.open(FSDirectory.open(dataset.getIndexDir()))) {
-			IndexSearcher searcher = new IndexSearcher(reader);
+		SearcherManager searcherManager = dataset.getSearcherManager();
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
 			TopDocs docs = searcher.search(query, Integer.MAX_VALUE, Sort.RELEVANCE, false);
-			ScoreDoc[] hits = docs.scoreDocs;
+			long[] hitRootIds = readValues(searcher, docs.scoreDocs, "rootId");
 			Set<Long> rootIds = new HashSet<>();
-			for (ScoreDoc hit : hits) {
-				Document doc = searcher.doc(hit.doc);
-				IndexableField rootIdField = doc.getField("rootId");
-				if (rootIdField != null && rootIdField.numericValue() != null) {
-					long rootId = rootIdField.numericValue().longValue();
-					if (!rootIds.contains(rootId)) {
-						rootIds.add(rootId);
-						rootEmailIds.add(rootId);
-						if (rootEmailIds.size() == maxResults) break;
-					}
+			for (long rootId : hitRootIds) {
+				if (rootId != -1 && rootIds.add(rootId)) {
+					rootEmailIds.add(rootId);
+					if (rootEmailIds.size() == maxResults) break;
 				}
 			}
+		} finally {
+			searcherManager.release(searcher);
 		}
 		return rootEmailIds;
 	}
@@ -102,14 +103,126 @@ public class EmailIndexSearcher {
 		);
 		Query query = queryParser.parse(queryString);
 		List<Long> emailIds = new ArrayList<>();
-		try (var reader = DirectoryReader.open(FSDirectory.open(dataset.getIndexDir()))) {
-			IndexSearcher searcher = new IndexSearcher(reader);
+		SearcherManager searcherManager = dataset.getSearcherManager();
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
 			TopDocs docs = searcher.search(query, maxResults, Sort.RELEVANCE, false);
-			for (ScoreDoc hit : docs.scoreDocs) {
-				Document doc = searcher.doc(hit.doc);
-				emailIds.add(doc.getField("id").numericValue().longValue());
+			for (long id : readValues(searcher, docs.scoreDocs, "id")) {
+				emailIds.add(id);
 			}
+		} finally {
+			searcherManager.release(searcher);
 		}
 		return emailIds;
 	}
+
+	/**
+	 * Finds the ids of all indexed emails whose body matches a query. The
+	 * query uses Lucene's syntax, with the body as default field, so it can be
+	 * a phrase like {@code "some text"}, or contain wildcards. Hits are only
+	 * collected, not scored or sorted, so this is fast even for many hits.
+	 * Note that hidden emails, and emails added after the index was last
+	 * generated, are never found.
+	 * @param dataset The dataset to search.
+	 * @param queryString The query to use.
+	 * @return The set of email ids.
+	 * @throws IOException If an error occurs while reading the index.
+	 * @throws ParseException If the query is invalid.
+	 */
+	public BitSet findEmailIdsByBody(EmailDataset dataset, String queryString) throws IOException, ParseException {
+		QueryParser queryParser = new QueryParser("body", new StandardAnalyzer());
+		queryParser.setAllowLeadingWildcard(true);
+		Query query = queryParser.parse(queryString);
+		BitSet emailIds = new BitSet();
+		SearcherManager searcherManager = dataset.getSearcherManager();
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
+			searcher.search(query, new SimpleCollector() {
+				private LeafReaderContext leaf;
+				private NumericDocValues ids;
+
+				@Override
+				protected void doSetNextReader(LeafReaderContext context) throws IOException {
+					leaf = context;
+					ids = context.reader().getNumericDocValues("id");
+				}
+
+				@Override
+				public void collect(int doc) throws IOException {
+					long id;
+					if (ids != null && ids.advanceExact(doc)) {
+						id = ids.longValue();
+					} else {
+						id = leaf.reader().document(doc).getField("id").numericValue().longValue();
+					}
+					emailIds.set(Math.toIntExact(id));
+				}
+
+				@Override
+				public ScoreMode scoreMode() {
+					return ScoreMode.COMPLETE_NO_SCORES;
+				}
+			});
+		} finally {
+			searcherManager.release(searcher);
+		}
+		return emailIds;
+	}
+
+	/**
+	 * Gets a filter for emails whose body matches a query, using
+	 * {@link #findEmailIdsByBody(EmailDataset, String)}. This replaces
+	 * {@link nl.andrewl.email_indexer.data.search.filter.BodyLikeFilter},
+	 * which has to scan all bodies in the database.
+	 * @param dataset The dataset to search.
+	 * @param queryString The query to use.
+	 * @return The filter.
+	 * @throws IOException If an error occurs while reading the index.
+	 * @throws ParseException If the query is invalid.
+	 */
+	public IdSetFilter bodyFilter(EmailDataset dataset, String queryString) throws IOException, ParseException {
+		return new IdSetFilter(findEmailIdsByBody(dataset, queryString), false);
+	}
+
+	/**
+	 * Reads a numeric field of each hit. Values are read from the field's doc
+	 * values, visiting hits in index order, or from the stored field if the
+	 * index was generated before doc values were added.
+	 * @param searcher The searcher that produced the hits.
+	 * @param hits The hits to read values for.
+	 * @param field The name of the field.
+	 * @return The value of each hit, in the same order as the hits, or -1 for
+	 * hits without a value.
+	 * @throws IOException If the index could not be read.
+	 */
+	private long[] readValues(IndexSearcher searcher, ScoreDoc[] hits, String field) throws IOException {
+		// Doc values can only be read in increasing order, so sort by doc, while remembering each hit's position.
+		long[] keys = new long[hits.length];
+		for (int i = 0; i < hits.length; i++) {
+			keys[i] = ((long) hits[i].doc << 32) | i;
+		}
+		Arrays.sort(keys);
+		long[] values = new long[hits.length];
+		List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+		int leafIndex = -1;
+		LeafReaderContext leaf = null;
+		NumericDocValues docValues = null;
+		for (long key : keys) {
+			int doc = (int) (key >>> 32);
+			int i = (int) key;
+			int idx = ReaderUtil.subIndex(doc, leaves);
+			if (idx != leafIndex) {
+				leafIndex = idx;
+				leaf = leaves.get(idx);
+				docValues = leaf.reader().getNumericDocValues(field);
+			}
+			if (docValues != null && docValues.advanceExact(doc - leaf.docBase)) {
+				values[i] = docValues.longValue();
+			} else {
+				IndexableField storedField = searcher.doc(doc).getField(field);
+				values[i] = storedField != null && storedField.numericValue() != null ? storedField.numericValue().longValue() : -1;
+			}
+		}
+		return values;
+	}
 }
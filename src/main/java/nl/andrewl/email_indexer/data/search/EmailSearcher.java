@@ -1,8 +1,13 @@
 package nl.andrewl.email_indexer.data.search;
 
+import nl.andrewl.email_indexer.data.DatasetCache;
 import nl.andrewl.email_indexer.data.EmailDataset;
 import nl.andrewl.email_indexer.data.EmailEntryPreview;
 import nl.andrewl.email_indexer.data.QueryCache;
+import nl.andrewl.email_indexer.data.search.filter.IdSetFilter;
+import nl.andrewl.email_indexer.data.search.filter.SentFromLikeFilter;
+import nl.andrewl.email_indexer.data.search.filter.SubjectLikeFilter;
+import nl.andrewl.email_indexer.data.search.filter.TagFilter;
 import nl.andrewl.email_indexer.util.Async;
 import nl.andrewl.email_indexer.util.ConditionBuilder;
 import nl.andrewl.email_indexer.util.DbUtils;
@@ -10,24 +15,34 @@ import nl.andrewl.email_indexer.util.DbUtils;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
 /**
  * A special repository that contains methods dedicated to providing search
  * functionality over the dataset with many filters and options, and
- * pagination.
+ * pagination. If the dataset has a {@link DatasetCache}, tag filters are
+ * evaluated using its tag index, and subject and sender filters only check
+ * the candidates found by its trigram indexes, if those are selective.
  */
 public class EmailSearcher {
 	private final Connection conn;
+	private final DatasetCache cache;
 
-	public EmailSearcher(Connection conn) {
+	public EmailSearcher(Connection conn, DatasetCache cache) {
 		this.conn = conn;
+		this.cache = cache;
+	}
+
+	public EmailSearcher(Connection conn) {
+		this(conn, null);
 	}
 
 	public EmailSearcher(EmailDataset dataset) {
-		this(dataset.getConnection());
+		this(dataset.getConnection(), dataset.getCache());
 	}
 
 	/**
@@ -52,8 +67,11 @@ public class EmailSearcher {
 	public CompletableFuture<EmailSearchResult> findAll(int page, int size, Collection<SearchFilter> filters, boolean debug) {
 		return Async.supply(() -> {
 			List<EmailEntryPreview> entries = new ArrayList<>(size);
-			String searchQuery = getSearchQuery(page, size, filters);
-			String countQuery = getSearchCountQuery(filters);
+			List<SearchFilter> resolvedFilters = resolve(filters);
+			String whereClause = getWhereClause(resolvedFilters);
+			Object[] parameters = getParameters(resolvedFilters);
+			String searchQuery = getSearchQuery(page, size, whereClause);
+			String countQuery = getSearchCountQuery(whereClause);
 			if (debug) {
 				System.out.printf(
 						"Searching for page %d of %d emails:%nUsing query:%n%s%nAnd count query:%n%s%n",
@@ -67,6 +85,10 @@ public class EmailSearcher {
 				var queryStmt = conn.prepareStatement(searchQuery);
 				var countStmt = conn.prepareStatement(countQuery)
 			) {
+				for (int i = 0; i < parameters.length; i++) {
+					queryStmt.setObject(i + 1, parameters[i]);
+					countStmt.setObject(i + 1, parameters[i]);
+				}
 				var queryRs = queryStmt.executeQuery();
 				while (queryRs.next()) entries.add(new EmailEntryPreview(queryRs));
 				var countRs = countStmt.executeQuery();
@@ -85,13 +107,87 @@ public class EmailSearcher {
 	 * @return The number of emails.
 	 */
 	public CompletableFuture<Long> countAll(Collection<SearchFilter> filters) {
-		return Async.supply(() -> DbUtils.count(conn, getSearchCountQuery(filters)));
+		return Async.supply(() -> {
+			List<SearchFilter> resolvedFilters = resolve(filters);
+			return DbUtils.count(conn, getSearchCountQuery(getWhereClause(resolvedFilters)), getParameters(resolvedFilters));
+		});
+	}
+
+	private List<SearchFilter> resolve(Collection<SearchFilter> filters) {
+		return filters.stream().map(this::resolve).toList();
 	}
 
-	private String getSearchQuery(int page, int size, Collection<SearchFilter> filters) {
+	private String getWhereClause(List<SearchFilter> filters) {
 		ConditionBuilder whereCb = ConditionBuilder.whereAnd();
-		for (var filter : filters) whereCb.with(filter.getWhereClause());
-		String whereClause = whereCb.build();
+		for (var filter : filters) {
+			String condition = filter.getWhereClause();
+			if (condition != null && !condition.isBlank()) whereCb.with(condition);
+		}
+		return whereCb.build();
+	}
+
+	/**
+	 * Gets the parameters of the filters whose conditions are part of the
+	 * where clause, in the same order.
+	 */
+	private Object[] getParameters(List<SearchFilter> filters) {
+		List<Object> parameters = new ArrayList<>();
+		for (var filter : filters) {
+			String condition = filter.getWhereClause();
+			if (condition != null && !condition.isBlank()) parameters.addAll(filter.getParameters());
+		}
+		return parameters.toArray();
+	}
+
+	/**
+	 * Replaces tag filters by equivalent filters on sets of email ids, and
+	 * limits substring filters to their candidates, if the dataset has a
+	 * cache that holds the necessary indexes. Tag filters whose sets don't
+	 * fit in a single parameter are left to the database's EMAIL_TAG index.
+	 */
+	private SearchFilter resolve(SearchFilter filter) {
+		if (cache == null) return filter;
+		try {
+			if (filter instanceof TagFilter tagFilter) {
+				IdSetFilter resolved = tagFilter.resolve(cache.getTagIndex(conn));
+				return resolved.emailIds().cardinality() <= IdSetFilter.MAX_PARAMETER_IDS ? resolved : filter;
+			} else if (filter instanceof SubjectLikeFilter subjectFilter) {
+				return withCandidates(filter, "SUBJECT", subjectFilter.subjectString());
+			} else if (filter instanceof SentFromLikeFilter sentFromFilter) {
+				return withCandidates(filter, "SENT_FROM", sentFromFilter.sentFromString());
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return filter;
+	}
+
+	/**
+	 * Adds the candidates for a substring filter on a column to the filter,
+	 * so that the database only has to verify those. The candidates are bound
+	 * as a parameter, and left out entirely if there are too many of them to
+	 * be selective; see {@link nl.andrewl.email_indexer.data.TrigramIndex}.
+	 */
+	private SearchFilter withCandidates(SearchFilter filter, String column, String pattern) throws SQLException {
+		Optional<BitSet> candidates = cache.getTrigramIndex(conn, column).findCandidates(pattern);
+		if (candidates.isEmpty()) return filter;
+		IdSetFilter candidateFilter = new IdSetFilter(candidates.get(), false);
+		return new SearchFilter() {
+			@Override
+			public String getWhereClause() {
+				return candidateFilter.getWhereClause() + " AND " + filter.getWhereClause();
+			}
+
+			@Override
+			public List<Object> getParameters() {
+				List<Object> parameters = new ArrayList<>(candidateFilter.getParameters());
+				parameters.addAll(filter.getParameters());
+				return parameters;
+			}
+		};
+	}
+
+	private String getSearchQuery(int page, int size, String whereClause) {
 		return String.format(
 				"""
 				%s
@@ -105,14 +201,12 @@ public class EmailSearcher {
 		);
 	}
 
-	private String getSearchCountQuery(Collection<SearchFilter> filters) {
+	private String getSearchCountQuery(String whereClause) {
 		String countQuery = """
 			SELECT COUNT(EMAIL.ID)
 			FROM EMAIL
 			%s
 			""";
-		ConditionBuilder whereCb = ConditionBuilder.whereAnd();
-		for (var filter : filters) whereCb.with(filter.getWhereClause());
-		return String.format(countQuery, whereCb.build());
+		return String.format(countQuery, whereClause);
 	}
 }
@@ -1,5 +1,16 @@
 package nl.andrewl.email_indexer.data.search;
 
+import java.util.List;
+
 public interface SearchFilter {
 	String getWhereClause();
+
+	/**
+	 * Gets the values of the "?" parameters in this filter's where clause, in
+	 * the order that they appear in. Most filters don't have any.
+	 * @return The parameter values.
+	 */
+	default List<Object> getParameters() {
+		return List.of();
+	}
 }
@@ -6,10 +6,14 @@ import nl.andrewl.email_indexer.data.search.SearchFilter;
  * Filter that limits to emails whose body matches a given string, using the
  * `LIKE` operator.
  * @param bodyString The substring to search for.
+ * @deprecated This reads and decompresses every body in the dataset. Use
+ * {@link nl.andrewl.email_indexer.data.search.EmailIndexSearcher#bodyFilter}
+ * instead, which searches the dataset's index.
  */
+@Deprecated
 public record BodyLikeFilter(String bodyString) implements SearchFilter {
 	@Override
 	public String getWhereClause() {
-		return "LOWER(EMAIL.BODY) LIKE '%" + bodyString.toLowerCase() + "%'";
+		return "EMAIL.ID IN (SELECT EMAIL_ID FROM EMAIL_BODY WHERE LOWER(BODY_TEXT(BODY, BODY_COMPRESSED)) LIKE '%" + bodyString.toLowerCase() + "%')";
 	}
 }
@@ -18,7 +18,7 @@ public record DateFilter(
 	@Override
 	public String getWhereClause() {
 		return String.format(
-				"EMAIL.DATE >= %s AND EMAIL.DATE <= %s",
+				"EMAIL.DATE >= TIMESTAMP WITH TIME ZONE '%s' AND EMAIL.DATE <= TIMESTAMP WITH TIME ZONE '%s'",
 				start.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME),
 				end.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)
 		);
@@ -0,0 +1,110 @@
+package nl.andrewl.email_indexer.data.search.filter;
+
+import nl.andrewl.email_indexer.data.search.SearchFilter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Filters emails to those in a set of email ids that was computed outside of
+ * the database, like by a {@link nl.andrewl.email_indexer.data.TagIndex} or
+ * a search of the dataset's index, so that the database only has to look up
+ * the ids. A set can be excluding, which means that it matches all emails
+ * except the ones in it, so that combinations like "not tagged with X" never
+ * need the ids of all emails in the dataset.
+ * <p>
+ *     The ids are bound as array parameters, instead of being written into
+ *     the SQL, so that large sets don't make for huge queries that have to be
+ *     parsed again for every search.
+ * </p>
+ * @param emailIds The ids of the emails in the set.
+ * @param excluding Whether the filter matches all emails except those in the
+ *                  set, instead of only those in the set.
+ */
+public record IdSetFilter(BitSet emailIds, boolean excluding) implements SearchFilter {
+	/**
+	 * The largest number of ids that are bound as a single parameter, which
+	 * is the largest array that H2 accepts. Larger sets use more parameters.
+	 */
+	public static final int MAX_PARAMETER_IDS = 65536;
+
+	public IdSetFilter {
+		emailIds = (BitSet) emailIds.clone();
+	}
+
+	/**
+	 * Gets a filter that matches all emails.
+	 * @return The filter.
+	 */
+	public static IdSetFilter all() {
+		return new IdSetFilter(new BitSet(), true);
+	}
+
+	/**
+	 * Gets a filter that matches the emails that are matched by both this
+	 * filter and another.
+	 * @param other The other filter.
+	 * @return The combined filter.
+	 */
+	public IdSetFilter and(IdSetFilter other) {
+		BitSet ids = (BitSet) emailIds.clone();
+		if (!excluding && !other.excluding) {
+			ids.and(other.emailIds);
+		} else if (!excluding) {
+			ids.andNot(other.emailIds);
+		} else if (!other.excluding) {
+			ids = (BitSet) other.emailIds.clone();
+			ids.andNot(emailIds);
+		} else {
+			ids.or(other.emailIds);
+		}
+		return new IdSetFilter(ids, excluding && other.excluding);
+	}
+
+	/**
+	 * Gets a filter that matches the emails that are matched by this filter,
+	 * another one, or both.
+	 * @param other The other filter.
+	 * @return The combined filter.
+	 */
+	public IdSetFilter or(IdSetFilter other) {
+		return not().and(other.not()).not();
+	}
+
+	/**
+	 * Gets a filter that matches exactly the emails that aren't matched by
+	 * this filter.
+	 * @return The inverted filter.
+	 */
+	public IdSetFilter not() {
+		return new IdSetFilter(emailIds, !excluding);
+	}
+
+	@Override
+	public String getWhereClause() {
+		if (emailIds.isEmpty()) return excluding ? "" : "FALSE";
+		int parameterCount = (emailIds.cardinality() + MAX_PARAMETER_IDS - 1) / MAX_PARAMETER_IDS;
+		String condition = String.join(" OR ", Collections.nCopies(parameterCount, "EMAIL.ID = ANY(?)"));
+		if (excluding) return "NOT (" + condition + ")";
+		return parameterCount == 1 ? condition : "(" + condition + ")";
+	}
+
+	@Override
+	public List<Object> getParameters() {
+		List<Object> parameters = new ArrayList<>();
+		int remaining = emailIds.cardinality();
+		int id = emailIds.nextSetBit(0);
+		while (remaining > 0) {
+			Long[] ids = new Long[Math.min(remaining, MAX_PARAMETER_IDS)];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = (long) id;
+				id = emailIds.nextSetBit(id + 1);
+			}
+			parameters.add(ids);
+			remaining -= ids.length;
+		}
+		return parameters;
+	}
+}
@@ -3,7 +3,6 @@ package nl.andrewl.email_indexer.data.search.filter;
 import nl.andrewl.email_indexer.data.search.SearchFilter;
 
 import java.util.List;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 /**
@@ -17,13 +16,24 @@ public record OrFilter(
 	@Override
 	public String getWhereClause() {
 		return filters.stream()
-				.map(SearchFilter::getWhereClause)
-				.filter(Objects::nonNull)
-				.filter(String::isBlank)
-				.map(s -> '(' + s + ')')
+				.filter(OrFilter::hasCondition)
+				.map(f -> '(' + f.getWhereClause() + ')')
 				.collect(Collectors.joining(" OR "));
 	}
 
+	@Override
+	public List<Object> getParameters() {
+		return filters.stream()
+				.filter(OrFilter::hasCondition)
+				.flatMap(f -> f.getParameters().stream())
+				.toList();
+	}
+
+	private static boolean hasCondition(SearchFilter filter) {
+		String clause = filter.getWhereClause();
+		return clause != null && !clause.isBlank();
+	}
+
 	public static OrFilter of(SearchFilter... filters) {
 		return new OrFilter(List.of(filters));
 	}
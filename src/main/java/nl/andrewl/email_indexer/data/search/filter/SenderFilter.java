@@ -0,0 +1,27 @@
+package nl.andrewl.email_indexer.data.search.filter;
+
+import nl.andrewl.email_indexer.data.Address;
+import nl.andrewl.email_indexer.data.search.SearchFilter;
+
+/**
+ * A filter that limits to emails sent from an exact address, or from any
+ * address in a domain, using the index on the emails' address ids.
+ * @param value The address or domain.
+ * @param domain Whether the value is a domain, instead of an address.
+ */
+public record SenderFilter(String value, boolean domain) implements SearchFilter {
+	public static SenderFilter address(String address) {
+		return new SenderFilter(address, false);
+	}
+
+	public static SenderFilter domain(String domain) {
+		return new SenderFilter(domain, true);
+	}
+
+	@Override
+	public String getWhereClause() {
+		String literal = "'" + Address.normalize(value).replace("'", "''") + "'";
+		if (domain) return "EMAIL.ADDRESS_ID IN (SELECT ID FROM ADDRESS WHERE DOMAIN = " + literal + ")";
+		return "EMAIL.ADDRESS_ID = (SELECT ID FROM ADDRESS WHERE ADDRESS = " + literal + ")";
+	}
+}
@@ -0,0 +1,23 @@
+package nl.andrewl.email_indexer.data.search.filter;
+
+import nl.andrewl.email_indexer.data.search.SearchFilter;
+
+import java.util.List;
+
+/**
+ * A filter that can be used to filter to only emails whose sender matches
+ * a given string, using the `LIKE` operator. The string is bound as a
+ * parameter, so it may contain any characters.
+ * @param sentFromString The substring to search for.
+ */
+public record SentFromLikeFilter(String sentFromString) implements SearchFilter {
+	@Override
+	public String getWhereClause() {
+		return "LOWER(EMAIL.SENT_FROM) LIKE ?";
+	}
+
+	@Override
+	public List<Object> getParameters() {
+		return List.of("%" + sentFromString.toLowerCase() + "%");
+	}
+}
@@ -1,5 +1,6 @@
 package nl.andrewl.email_indexer.data.search.filter;
 
+import nl.andrewl.email_indexer.data.TagIndex;
 import nl.andrewl.email_indexer.data.search.SearchFilter;
 
 import java.util.Collection;
@@ -38,6 +39,20 @@ public record TagFilter(
 		}
 	}
 
+	/**
+	 * Evaluates this filter using a tag index, instead of subqueries on the
+	 * EMAIL_TAG table.
+	 * @param index The index of the dataset's tags.
+	 * @return An equivalent filter on a set of email ids.
+	 */
+	public IdSetFilter resolve(TagIndex index) {
+		if (tagIds.isEmpty()) {
+			return type == Type.INCLUDE_ANY ? index.untagged() : IdSetFilter.all();
+		}
+		IdSetFilter filter = index.withAnyTag(tagIds);
+		return type == Type.INCLUDE_ANY ? filter : filter.not();
+	}
+
 	public static TagFilter includeNone() {
 		return new TagFilter(Collections.emptyList(), Type.INCLUDE_ANY);
 	}
@@ -0,0 +1,45 @@
+package nl.andrewl.email_indexer.data.upgrade;
+
+import nl.andrewl.email_indexer.data.QueryCache;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A step that brings a dataset's database from the previous version to the
+ * given one, in place. Migrations should be set-based, and safe to repeat,
+ * since a migration that's interrupted is applied again the next time the
+ * dataset is opened.
+ * @param version The version of the dataset after this migration.
+ * @param description A short description of what the migration does.
+ * @param reindex Whether the dataset's index must be regenerated after this
+ *                migration, because data that's indexed was changed.
+ * @param action The action that changes the database.
+ */
+public record Migration(
+		int version,
+		String description,
+		boolean reindex,
+		Action action
+) {
+	/**
+	 * An action that changes a dataset's database.
+	 */
+	@FunctionalInterface
+	public interface Action {
+		void apply(Connection conn) throws SQLException;
+	}
+
+	/**
+	 * Gets an action that runs the statements in an SQL resource.
+	 * @param resource The name of the resource, like "/sql/upgrade/update_indexes.sql".
+	 * @return The action.
+	 */
+	public static Action sql(String resource) {
+		return conn -> {
+			try (var stmt = conn.createStatement()) {
+				stmt.executeUpdate(QueryCache.load(resource));
+			}
+		};
+	}
+}
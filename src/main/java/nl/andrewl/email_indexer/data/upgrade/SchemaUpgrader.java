@@ -0,0 +1,178 @@
+package nl.andrewl.email_indexer.data.upgrade;
+
+import nl.andrewl.email_indexer.data.Address;
+import nl.andrewl.email_indexer.data.EmailDataset;
+import nl.andrewl.email_indexer.gen.EmailIndexGenerator;
+import nl.andrewl.email_indexer.util.DbUtils;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Brings a dataset of version 2 or later up to date with the current schema,
+ * in place, by applying the {@link Migration}s after the version in its
+ * metadata, in order. The version is saved after each migration, so datasets
+ * that are up to date are opened without touching their database. The index
+ * is never regenerated here, since that can take long, while the dataset is
+ * being opened. If a migration requires it, that's recorded in the metadata,
+ * and {@link EmailIndexGenerator#needsReindex(EmailDataset)} tells callers to
+ * regenerate the index as a task of its own.
+ * <p>
+ *     To change the schema, add a migration with the next version to
+ *     {@link #MIGRATIONS}, and make the same change to schema.sql, which is
+ *     used for new datasets.
+ * </p>
+ */
+public final class SchemaUpgrader {
+	private SchemaUpgrader() {}
+
+	/**
+	 * All migrations, ordered by version. Version 2 is the first version with
+	 * metadata; older datasets are upgraded by {@link Version1Upgrader}.
+	 */
+	public static final List<Migration> MIGRATIONS = List.of(
+			new Migration(3, "Add missing tables, and move bodies to the EMAIL_BODY table.", false, conn -> {
+				Migration.sql("/sql/upgrade/add_missing_tables.sql").apply(conn);
+				if (columnExists(conn, "EMAIL", "BODY")) moveBodies(conn);
+			}),
+			new Migration(4, "Link emails to their sender's address.", false, SchemaUpgrader::linkAddresses),
+			new Migration(5, "Replace the indexes of the EMAIL table.", false, Migration.sql("/sql/upgrade/update_indexes.sql"))
+	);
+
+	/**
+	 * The version of datasets with the current schema.
+	 */
+	public static final int LATEST_VERSION = MIGRATIONS.get(MIGRATIONS.size() - 1).version();
+
+	/**
+	 * Gets the metadata of a dataset that's generated with the current schema
+	 * and index.
+	 * @return The metadata properties.
+	 */
+	public static Properties getLatestMetadata() {
+		Properties props = new Properties();
+		props.setProperty("version", Integer.toString(LATEST_VERSION));
+		props.setProperty("indexVersion", Integer.toString(EmailIndexGenerator.INDEX_VERSION));
+		return props;
+	}
+
+	/**
+	 * Upgrades a dataset. Version 1 datasets are left alone, and so are
+	 * databases without an EMAIL table, since they're still to be generated.
+	 * @param dataset The dataset to upgrade.
+	 * @throws SQLException If the database could not be upgraded.
+	 * @throws IOException If the metadata could not be read or saved.
+	 */
+	public static void upgrade(EmailDataset dataset) throws SQLException, IOException {
+		Connection conn = dataset.getConnection();
+		Properties metadata = dataset.getMetadata();
+		int version = dataset.getVersion();
+		if (version < 2 || !tableExists(conn, "EMAIL")) return;
+		boolean reindex = false;
+		for (var migration : MIGRATIONS) {
+			if (migration.version() <= version) continue;
+			migration.action().apply(conn);
+			reindex |= migration.reindex();
+			version = migration.version();
+			metadata.setProperty("version", Integer.toString(version));
+			dataset.saveMetadata(metadata);
+		}
+		if (reindex) {
+			// No index version is older than this, so the index is outdated until it's regenerated.
+			metadata.setProperty("indexVersion", "0");
+			dataset.saveMetadata(metadata);
+		}
+	}
+
+	/**
+	 * Adds the address of each distinct sender that's not linked yet, and
+	 * links all of its emails to it. Senders are parsed in Java, since that's
+	 * how they're parsed during generation, and their ids are then set with a
+	 * single update that looks them up in a temporary table.
+	 */
+	static void linkAddresses(Connection conn) throws SQLException {
+		if (DbUtils.count(conn, "SELECT COUNT(ID) FROM EMAIL WHERE ADDRESS_ID IS NULL AND SENT_FROM IS NOT NULL") == 0) return;
+		List<String> senders = DbUtils.fetch(
+				conn,
+				"SELECT DISTINCT SENT_FROM FROM EMAIL WHERE ADDRESS_ID IS NULL AND SENT_FROM IS NOT NULL",
+				rs -> rs.getString(1)
+		);
+		try (var stmt = conn.createStatement()) {
+			stmt.executeUpdate("CREATE LOCAL TEMPORARY TABLE SENDER_ADDRESS (SENT_FROM VARCHAR(255) PRIMARY KEY, ADDRESS_ID INTEGER NOT NULL)");
+			try (
+					var findStmt = conn.prepareStatement("SELECT ID FROM ADDRESS WHERE ADDRESS = ?");
+					var addStmt = conn.prepareStatement("INSERT INTO ADDRESS (ADDRESS, DISPLAY_NAME, DOMAIN) VALUES (?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+					var mapStmt = conn.prepareStatement("INSERT INTO SENDER_ADDRESS (SENT_FROM, ADDRESS_ID) VALUES (?, ?)")
+			) {
+				for (String sender : senders) {
+					var address = Address.parse(sender);
+					if (address.isEmpty()) continue;
+					findStmt.setString(1, address.get().address());
+					int id;
+					try (var rs = findStmt.executeQuery()) {
+						if (rs.next()) {
+							id = rs.getInt(1);
+						} else {
+							addStmt.setString(1, address.get().address());
+							addStmt.setString(2, address.get().displayName());
+							addStmt.setString(3, address.get().domain());
+							addStmt.executeUpdate();
+							try (var keys = addStmt.getGeneratedKeys()) {
+								keys.next();
+								id = keys.getInt(1);
+							}
+						}
+					}
+					mapStmt.setString(1, sender);
+					mapStmt.setInt(2, id);
+					mapStmt.addBatch();
+				}
+				mapStmt.executeBatch();
+			}
+			stmt.executeUpdate("""
+					UPDATE EMAIL
+					SET ADDRESS_ID = (SELECT ADDRESS_ID FROM SENDER_ADDRESS S WHERE S.SENT_FROM = EMAIL.SENT_FROM)
+					WHERE ADDRESS_ID IS NULL AND SENT_FROM IS NOT NULL""");
+			stmt.executeUpdate("DROP TABLE SENDER_ADDRESS");
+		}
+	}
+
+	/**
+	 * Moves bodies out of the EMAIL table into EMAIL_BODY. Bodies are merged
+	 * before the old columns are dropped, so an interrupted move is simply
+	 * completed the next time.
+	 */
+	private static void moveBodies(Connection conn) throws SQLException {
+		boolean hasCompressed = columnExists(conn, "EMAIL", "BODY_COMPRESSED");
+		try (var stmt = conn.createStatement()) {
+			stmt.executeUpdate("""
+					MERGE INTO EMAIL_BODY (EMAIL_ID, BODY, BODY_COMPRESSED) KEY (EMAIL_ID)
+					SELECT ID, BODY, %s
+					FROM EMAIL
+					WHERE BODY IS NOT NULL%s""".formatted(
+							hasCompressed ? "BODY_COMPRESSED" : "NULL",
+							hasCompressed ? " OR BODY_COMPRESSED IS NOT NULL" : ""
+			));
+			stmt.executeUpdate("ALTER TABLE EMAIL DROP COLUMN BODY");
+			if (hasCompressed) stmt.executeUpdate("ALTER TABLE EMAIL DROP COLUMN BODY_COMPRESSED");
+		}
+	}
+
+	private static boolean tableExists(Connection conn, String table) {
+		return DbUtils.count(conn, """
+				SELECT COUNT(*)
+				FROM INFORMATION_SCHEMA.TABLES
+				WHERE TABLE_SCHEMA = SCHEMA() AND TABLE_NAME = ?""", table) > 0;
+	}
+
+	private static boolean columnExists(Connection conn, String table, String column) {
+		return DbUtils.count(conn, """
+				SELECT COUNT(*)
+				FROM INFORMATION_SCHEMA.COLUMNS
+				WHERE TABLE_SCHEMA = SCHEMA() AND TABLE_NAME = ? AND COLUMN_NAME = ?""", table, column) > 0;
+	}
+}
@@ -1,21 +1,50 @@
 package nl.andrewl.email_indexer.data.upgrade;
 
 import nl.andrewl.email_indexer.data.EmailDataset;
-import nl.andrewl.email_indexer.data.EmailRepository;
-import nl.andrewl.email_indexer.data.TagRepository;
 import nl.andrewl.email_indexer.gen.DatabaseGenerator;
 import nl.andrewl.email_indexer.gen.EmailIndexGenerator;
+import nl.andrewl.email_indexer.util.DbUtils;
+import nl.andrewl.email_indexer.util.FileUtils;
 import nl.andrewl.email_indexer.util.Status;
+import nl.andrewl.email_indexer.util.Task;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.ZonedDateTime;
-import java.util.Properties;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CancellationException;
 
 /**
  * Upgrades datasets from version 1 to the latest version.
+ * <p>
+ *     The old database is linked into the new one, so that emails, bodies,
+ *     tags and mutations are each copied with a single INSERT ... SELECT,
+ *     instead of row by row. Version 1 datasets identify emails by their
+ *     MESSAGE_ID, which is looked up using the new database's unique index.
+ *     The new index is generated using all available processors.
+ * </p>
  */
 public class Version1Upgrader {
+	/**
+	 * Upgrades a dataset asynchronously. See {@link #upgrade(Path, Path, Status)}.
+	 * @param originalDatasetPath The path of the version 1 dataset.
+	 * @param newDatasetDir The directory to save the upgraded dataset in.
+	 * @param status The status to report to, and to check for cancellation.
+	 * @return A task that completes when the dataset is upgraded.
+	 */
+	public Task<Void> upgradeAsync(Path originalDatasetPath, Path newDatasetDir, Status status) {
+		return Task.run(status, () -> upgrade(originalDatasetPath, newDatasetDir, status));
+	}
+
+	/**
+	 * Upgrades a dataset into a new directory. The old dataset isn't changed.
+	 * If the status is cancelled, the partially upgraded dataset is removed.
+	 * @param originalDatasetPath The path of the version 1 dataset.
+	 * @param newDatasetDir The directory to save the upgraded dataset in.
+	 * @param status The status to report to, and to check for cancellation.
+	 * @throws Exception If the dataset could not be upgraded.
+	 */
 	public void upgrade(Path originalDatasetPath, Path newDatasetDir, Status status) throws Exception {
 		status.sendMessage("Opening the old dataset from " + originalDatasetPath);
 		EmailDataset ds1 = EmailDataset.open(originalDatasetPath).join();
@@ -24,67 +53,98 @@ public class Version1Upgrader {
 			Files.createDirectories(newDatasetDir);
 		}
 
-		upgradeDatabase(newDatasetDir, ds1, status);
-		status.sendMessage("Generating indexes for the upgraded dataset.");
-		EmailDataset ds2 = new EmailDataset(newDatasetDir);
-		new EmailIndexGenerator().generateIndex(ds2);
-		// Generate metadata
-		status.sendMessage("Generating metadata for the upgraded dataset.");
-		Properties props = new Properties();
-		props.setProperty("version", "2");
-		props.store(Files.newBufferedWriter(ds2.getMetadataFile()), null);
+		try {
+			try {
+				upgradeDatabase(newDatasetDir, ds1, status);
+			} finally {
+				ds1.close().join();
+			}
+			status.checkCancelled();
+			status.sendMessage("Generating indexes for the upgraded dataset.");
+			EmailDataset ds2 = new EmailDataset(newDatasetDir);
+			try {
+				new EmailIndexGenerator(status)
+						.withThreads(Runtime.getRuntime().availableProcessors())
+						.generateIndex(ds2);
+				status.sendMessage("Generating metadata for the upgraded dataset.");
+				ds2.saveMetadata(SchemaUpgrader.getLatestMetadata());
+			} finally {
+				ds2.close().join();
+			}
+		} catch (CancellationException e) {
+			status.sendMessage("Upgrade cancelled. Removing the partially upgraded dataset.");
+			FileUtils.deleteDatasetFiles(newDatasetDir);
+			throw e;
+		}
 		status.sendMessage("Done.");
 	}
 
 	private void upgradeDatabase(Path newDatasetDir, EmailDataset ds1, Status status) throws Exception {
 		try (var dbGen = new DatabaseGenerator(newDatasetDir.resolve("database"))) {
-			status.sendMessage("Copying emails from old dataset to new one.");
-			try (
-				var stmt = ds1.getConnection().prepareStatement("SELECT * FROM EMAIL ORDER BY DATE")
-			) {
-				var rs = stmt.executeQuery();
-				while (rs.next()) {
-					String msgId = rs.getString("MESSAGE_ID");
-					dbGen.addEmail(
-						msgId,
-						rs.getString("SUBJECT"),
-						rs.getString("IN_REPLY_TO"),
-						rs.getString("SENT_FROM"),
-						rs.getObject("DATE", ZonedDateTime.class),
-						rs.getString("BODY")
-					);
-				}
-			}
-			dbGen.postProcess(status);
-			status.sendMessage("Copying tags from old dataset to new one.");
-			TagRepository tagRepo = new TagRepository(dbGen.getConn());
-			EmailRepository emailRepo = new EmailRepository(dbGen.getConn());
-			try (
-				var stmt = ds1.getConnection().prepareStatement("SELECT * FROM EMAIL_TAG")
-			) {
-				var rs = stmt.executeQuery();
-				while (rs.next()) {
-					String msgId = rs.getString("MESSAGE_ID");
-					String tagName = rs.getString("TAG");
-					emailRepo.findId(msgId).ifPresent(emailId -> {
-						tagRepo.addTag(emailId, tagName);
-					});
-				}
-			}
-			status.sendMessage("Copying mutation info from old dataset to new one.");
-			try (
-				var stmt = ds1.getConnection().prepareStatement("SELECT * FROM MUTATION");
-				var insertStmt = dbGen.getConn().prepareStatement("INSERT INTO MUTATION (ID, DESCRIPTION, PERFORMED_AT, AFFECTED_EMAIL_COUNT) VALUES (?, ?, ?, ?)")
-			) {
-				var rs = stmt.executeQuery();
-				while (rs.next()) {
-					insertStmt.setLong(1, rs.getLong(1));
-					insertStmt.setString(2, rs.getString(2));
-					insertStmt.setObject(3, rs.getObject(3, ZonedDateTime.class));
-					insertStmt.setLong(4, rs.getLong(4));
-					insertStmt.executeUpdate();
+			Connection conn = dbGen.getConn();
+			try (var stmt = conn.createStatement()) {
+				link(stmt, ds1, "V1_EMAIL", "SELECT MESSAGE_ID, SUBJECT, IN_REPLY_TO, SENT_FROM, DATE FROM EMAIL");
+				link(stmt, ds1, "V1_BODY", "SELECT MESSAGE_ID, BODY FROM EMAIL WHERE BODY IS NOT NULL");
+				link(stmt, ds1, "V1_TAG", "SELECT MESSAGE_ID, TAG FROM EMAIL_TAG");
+				link(stmt, ds1, "V1_MUTATION", "SELECT ID, DESCRIPTION, PERFORMED_AT, AFFECTED_EMAIL_COUNT FROM MUTATION");
+				try {
+					status.sendMessage("Copying emails from old dataset to new one.");
+					long count = stmt.executeUpdate("""
+							INSERT INTO EMAIL (MESSAGE_ID, SUBJECT, IN_REPLY_TO, SENT_FROM, DATE)
+							SELECT MESSAGE_ID, SUBJECT, IN_REPLY_TO, SENT_FROM, DATE
+							FROM V1_EMAIL
+							ORDER BY DATE, MESSAGE_ID""");
+					status.checkCancelled();
+					status.sendMessage("Copied %d emails. Copying their bodies.".formatted(count));
+					stmt.executeUpdate("""
+							INSERT INTO EMAIL_BODY (EMAIL_ID, BODY)
+							SELECT EMAIL.ID, V1_BODY.BODY
+							FROM V1_BODY
+							JOIN EMAIL ON EMAIL.MESSAGE_ID = V1_BODY.MESSAGE_ID""");
+					conn.commit();
+					status.checkCancelled();
+					status.sendMessage("Linking emails to their sender's address.");
+					SchemaUpgrader.linkAddresses(conn);
+					dbGen.postProcess(status);
+
+					status.checkCancelled();
+					status.sendMessage("Copying tags from old dataset to new one.");
+					stmt.executeUpdate("INSERT INTO TAG (NAME) SELECT DISTINCT TAG FROM V1_TAG WHERE TAG IS NOT NULL");
+					count = stmt.executeUpdate("""
+							INSERT INTO EMAIL_TAG (EMAIL_ID, TAG_ID)
+							SELECT DISTINCT EMAIL.ID, TAG.ID
+							FROM V1_TAG
+							JOIN EMAIL ON EMAIL.MESSAGE_ID = V1_TAG.MESSAGE_ID
+							JOIN TAG ON TAG.NAME = V1_TAG.TAG""");
+					status.sendMessage("Copied %d email tags.".formatted(count));
+
+					status.checkCancelled();
+					status.sendMessage("Copying mutation info from old dataset to new one.");
+					stmt.executeUpdate("""
+							INSERT INTO MUTATION (ID, DESCRIPTION, PERFORMED_AT, AFFECTED_EMAIL_COUNT)
+							SELECT ID, DESCRIPTION, PERFORMED_AT, AFFECTED_EMAIL_COUNT
+							FROM V1_MUTATION""");
+					// Copied ids aren't generated, so new mutations must continue after them.
+					long nextMutationId = DbUtils.count(conn, "SELECT COALESCE(MAX(ID), 0) + 1 FROM MUTATION");
+					stmt.executeUpdate("ALTER TABLE MUTATION ALTER COLUMN ID RESTART WITH " + nextMutationId);
+				} finally {
+					for (var table : new String[]{"V1_EMAIL", "V1_BODY", "V1_TAG", "V1_MUTATION"}) {
+						stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+					}
 				}
 			}
 		}
 	}
+
+	/**
+	 * Links the result of a query on the old dataset's database as a
+	 * read-only table in the new one.
+	 */
+	private static void link(Statement stmt, EmailDataset ds, String name, String query) throws SQLException {
+		stmt.executeUpdate("CREATE LINKED TABLE %s('org.h2.Driver', '%s', '', '', '(%s)') READONLY".formatted(
+				name,
+				ds.getDatabaseUrl().replace("'", "''"),
+				query
+		));
+	}
 }
@@ -0,0 +1,137 @@
+package nl.andrewl.email_indexer.gen;
+
+import nl.andrewl.email_indexer.data.BodyCompression;
+import nl.andrewl.email_indexer.util.DbUtils;
+import nl.andrewl.email_indexer.util.Status;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Component that compresses the bodies of all emails in a dataset's database,
+ * using a dictionary that's trained on a sample of those bodies. Bodies are
+ * moved from the BODY column of the EMAIL_BODY table to its BODY_COMPRESSED
+ * column, unless they don't get any smaller. This can be done for a newly
+ * generated dataset, or for an existing one, where any bodies that were added
+ * since the last compression are compressed with a new dictionary.
+ */
+public class BodyCompressor {
+	private final Status status;
+	private int sampleSize = 2000;
+	private int dictionarySize = BodyCompression.MAX_DICTIONARY_SIZE;
+
+	public BodyCompressor(Status status) {
+		this.status = status;
+	}
+
+	public BodyCompressor() {
+		this(Status.noOp());
+	}
+
+	/**
+	 * Sets the number of bodies to train the dictionary on.
+	 * @param sampleSize The number of bodies.
+	 * @return This compressor.
+	 */
+	public BodyCompressor withSampleSize(int sampleSize) {
+		this.sampleSize = sampleSize;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum size of the dictionary.
+	 * @param dictionarySize The maximum size, in bytes.
+	 * @return This compressor.
+	 */
+	public BodyCompressor withDictionarySize(int dictionarySize) {
+		this.dictionarySize = dictionarySize;
+		return this;
+	}
+
+	/**
+	 * Compresses all uncompressed bodies in a database. Each page of emails is
+	 * committed separately.
+	 * @param conn The connection to the database.
+	 * @return The number of bodies that were compressed.
+	 * @throws SQLException If the bodies could not be compressed.
+	 */
+	public long compressBodies(Connection conn) throws SQLException {
+		long count = DbUtils.count(conn, "SELECT COUNT(EMAIL_ID) FROM EMAIL_BODY WHERE BODY IS NOT NULL");
+		if (count == 0) return 0;
+		status.sendMessage("Training body compression dictionary.");
+		BodyCompression compression = BodyCompression.train(fetchSamples(conn, count), dictionarySize);
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			compression.save(conn);
+			status.sendMessage("Compressing %d bodies.".formatted(count));
+			long compressed = 0;
+			long originalBytes = 0;
+			long compressedBytes = 0;
+			long lastId = -1;
+			final int pageSize = 1000;
+			try (
+					var fetchStmt = conn.prepareStatement("""
+							SELECT EMAIL_ID, BODY
+							FROM EMAIL_BODY
+							WHERE BODY IS NOT NULL AND EMAIL_ID > ?
+							ORDER BY EMAIL_ID
+							LIMIT %d""".formatted(pageSize));
+					var updateStmt = conn.prepareStatement("UPDATE EMAIL_BODY SET BODY = NULL, BODY_COMPRESSED = ? WHERE EMAIL_ID = ?")
+			) {
+				int fetched;
+				do {
+					fetched = 0;
+					fetchStmt.setLong(1, lastId);
+					try (var rs = fetchStmt.executeQuery()) {
+						while (rs.next()) {
+							lastId = rs.getLong(1);
+							String body = rs.getString(2);
+							fetched++;
+							int size = body.getBytes(StandardCharsets.UTF_8).length;
+							byte[] data = compression.compress(body);
+							if (data.length >= size) continue;
+							updateStmt.setBytes(1, data);
+							updateStmt.setLong(2, lastId);
+							updateStmt.addBatch();
+							compressed++;
+							originalBytes += size;
+							compressedBytes += data.length;
+						}
+					}
+					updateStmt.executeBatch();
+					conn.commit();
+				} while (fetched == pageSize);
+			}
+			status.sendMessage("Compressed %d bodies from %d to %d bytes.".formatted(compressed, originalBytes, compressedBytes));
+			return compressed;
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Fetches bodies spread evenly over the whole database, to train on.
+	 */
+	private List<String> fetchSamples(Connection conn, long count) throws SQLException {
+		long stride = Math.max(1, count / Math.max(1, sampleSize));
+		List<String> samples = new ArrayList<>(sampleSize);
+		try (var stmt = conn.prepareStatement("""
+				SELECT BODY
+				FROM EMAIL_BODY
+				WHERE BODY IS NOT NULL AND MOD(EMAIL_ID, ?) = 0
+				LIMIT ?""")) {
+			stmt.setLong(1, stride);
+			stmt.setInt(2, sampleSize);
+			var rs = stmt.executeQuery();
+			while (rs.next()) samples.add(rs.getString(1));
+		}
+		return samples;
+	}
+}
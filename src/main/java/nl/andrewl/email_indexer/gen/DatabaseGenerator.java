@@ -1,5 +1,6 @@
 package nl.andrewl.email_indexer.gen;
 
+import nl.andrewl.email_indexer.data.Address;
 import nl.andrewl.email_indexer.data.EmailDataset;
 import nl.andrewl.email_indexer.data.QueryCache;
 import nl.andrewl.email_indexer.util.DbUtils;
@@ -10,24 +11,48 @@ import nl.andrewl.mboxparser.EmailHandler;
 import java.nio.file.Path;
 import java.sql.*;
 import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
 
 /**
  * This component parses a set of mbox files to build relational database
  * containing the emails and their tree-structured relationships.
  */
-public class DatabaseGenerator implements AutoCloseable, EmailHandler {
+public class DatabaseGenerator implements AutoCloseable, EmailHandler, DecodedEmailHandler {
 	private final Connection conn;
 	private final PreparedStatement emailInsertStatement;
+	private final PreparedStatement bodyInsertStatement;
 	private final PreparedStatement emailExistsStatement;
+	private final PreparedStatement addressInsertStatement;
+	/**
+	 * The id of each address that was added so far, by normalized address.
+	 */
+	private final Map<String, Integer> addressIds = new HashMap<>();
 
 	public DatabaseGenerator(Path dbFile) throws SQLException {
-		this.conn = DriverManager.getConnection(EmailDataset.getJdbcUrl(dbFile));
+		this(EmailDataset.getJdbcUrl(dbFile));
+	}
+
+	/**
+	 * Constructs a generator that writes to the database at the given JDBC
+	 * URL, which may for example be an in-memory database.
+	 * @param jdbcUrl The JDBC URL of the database.
+	 * @throws SQLException If the database could not be initialized.
+	 */
+	public DatabaseGenerator(String jdbcUrl) throws SQLException {
+		this.conn = DriverManager.getConnection(jdbcUrl);
 		initDatabase();
 		this.conn.setAutoCommit(false);
 		this.emailInsertStatement = this.conn.prepareStatement("""
-			INSERT INTO EMAIL (MESSAGE_ID, SUBJECT, IN_REPLY_TO, SENT_FROM, DATE, BODY)
-			VALUES (?, ?, ?, ?, ?, ?)""");
+			INSERT INTO EMAIL (MESSAGE_ID, SUBJECT, IN_REPLY_TO, SENT_FROM, ADDRESS_ID, DATE)
+			VALUES (?, ?, ?, ?, ?, ?)""", Statement.RETURN_GENERATED_KEYS);
+		this.bodyInsertStatement = this.conn.prepareStatement("INSERT INTO EMAIL_BODY (EMAIL_ID, BODY) VALUES (?, ?)");
 		this.emailExistsStatement = this.conn.prepareStatement("SELECT COUNT(MESSAGE_ID) FROM EMAIL WHERE MESSAGE_ID = ?;");
+		this.addressInsertStatement = this.conn.prepareStatement(
+				"INSERT INTO ADDRESS (ADDRESS, DISPLAY_NAME, DOMAIN) VALUES (?, ?, ?)",
+				Statement.RETURN_GENERATED_KEYS
+		);
 	}
 
 	private void initDatabase() throws SQLException {
@@ -36,22 +61,67 @@ public class DatabaseGenerator implements AutoCloseable, EmailHandler {
 		}
 	}
 
-	public void addEmail(Email email) throws SQLException {
-		addEmail(email.messageId, email.subject, email.inReplyTo, email.sentFrom, email.date, email.readBodyAsText());
+	public Optional<Long> addEmail(Email email) throws SQLException {
+		return addEmail(email.messageId, email.subject, email.inReplyTo, email.sentFrom, email.date, email.readBodyAsText());
+	}
+
+	public Optional<Long> addEmail(DecodedEmail email) throws SQLException {
+		return addEmail(email.messageId, email.subject, email.inReplyTo, email.sentFrom, email.date, email.getBody());
 	}
 
-	public synchronized void addEmail(String messageId, String subject, String inReplyTo, String sentFrom, ZonedDateTime date, String body) throws SQLException {
+	/**
+	 * Adds an email to the database, unless an email with the same message id
+	 * was already added.
+	 * @return An optional that contains the id of the new email, or an empty
+	 * optional if it was a duplicate.
+	 * @throws SQLException If the email could not be inserted.
+	 */
+	public synchronized Optional<Long> addEmail(String messageId, String subject, String inReplyTo, String sentFrom, ZonedDateTime date, String body) throws SQLException {
 		emailExistsStatement.setString(1, messageId);
 		try (var rs = emailExistsStatement.executeQuery()) {
-			if (rs.next() && rs.getLong(1) > 0) return;
+			if (rs.next() && rs.getLong(1) > 0) return Optional.empty();
 		}
 		emailInsertStatement.setString(1, messageId);
 		emailInsertStatement.setString(2, subject);
 		emailInsertStatement.setString(3, inReplyTo);
 		emailInsertStatement.setString(4, sentFrom);
-		emailInsertStatement.setObject(5, date);
-		emailInsertStatement.setString(6, body);
+		emailInsertStatement.setObject(5, getAddressId(sentFrom));
+		emailInsertStatement.setObject(6, date);
 		emailInsertStatement.executeUpdate();
+		long id;
+		try (var rs = emailInsertStatement.getGeneratedKeys()) {
+			rs.next();
+			id = rs.getLong(1);
+		}
+		if (body != null) {
+			bodyInsertStatement.setLong(1, id);
+			bodyInsertStatement.setString(2, body);
+			bodyInsertStatement.executeUpdate();
+		}
+		return Optional.of(id);
+	}
+
+	/**
+	 * Gets the id of a sender's address, adding it if it wasn't seen before.
+	 * @param sentFrom The sender of an email.
+	 * @return The id of the address, or null if there is no address.
+	 * @throws SQLException If the address could not be inserted.
+	 */
+	private Integer getAddressId(String sentFrom) throws SQLException {
+		var address = Address.parse(sentFrom);
+		if (address.isEmpty()) return null;
+		Integer id = addressIds.get(address.get().address());
+		if (id != null) return id;
+		addressInsertStatement.setString(1, address.get().address());
+		addressInsertStatement.setString(2, address.get().displayName());
+		addressInsertStatement.setString(3, address.get().domain());
+		addressInsertStatement.executeUpdate();
+		try (var rs = addressInsertStatement.getGeneratedKeys()) {
+			rs.next();
+			id = rs.getInt(1);
+		}
+		addressIds.put(address.get().address(), id);
+		return id;
 	}
 
 	public Connection getConn() {
@@ -63,53 +133,44 @@ public class DatabaseGenerator implements AutoCloseable, EmailHandler {
 	 * <ul>
 	 *     <li>Determine and set each email's PARENT_ID, based on their IN_REPLY_TO.</li>
 	 * </ul>
+	 * The parent of each reply is looked up with a single update, which uses
+	 * the unique index on MESSAGE_ID.
 	 * @param status A status tracker.
 	 */
 	public synchronized void postProcess(Status status) {
 		long count = DbUtils.count(conn, "SELECT COUNT(ID) FROM EMAIL WHERE IN_REPLY_TO IS NOT NULL");
 		status.sendMessage("Applying parent-id lookup for %d emails.".formatted(count));
-		final int pageSize = 1000;
-		int pageCount = (int) (count / pageSize) + (count % pageSize == 0 ? 0 : 1);
 		DbUtils.doTransaction(conn, c -> {
-			for (int page = 1; page <= pageCount; page++) {
-				status.sendMessage("Processing page %d of %d.".formatted(page, pageCount));
-				try (
-					var fetchStmt = c.prepareStatement("""
-						SELECT ID, IN_REPLY_TO
-						FROM EMAIL
-						WHERE IN_REPLY_TO IS NOT NULL
-						LIMIT %d OFFSET %d""".formatted(pageSize, (page - 1) * pageSize));
-					var fetchByMessageId = c.prepareStatement("""
-						SELECT ID
-						FROM EMAIL
-						WHERE MESSAGE_ID = ?""");
-					var updateParentId = c.prepareStatement("""
+			try (var stmt = c.createStatement()) {
+				long updated = stmt.executeUpdate("""
 						UPDATE EMAIL
-						SET PARENT_ID = ?
-						WHERE ID = ?""")
-				) {
-					var rs = fetchStmt.executeQuery();
-					while (rs.next()) {
-						long id = rs.getLong(1);
-						String inReplyTo = rs.getString(2);
-						fetchByMessageId.setString(1, inReplyTo);
-						var msgIdRs = fetchByMessageId.executeQuery();
-						if (msgIdRs.next()) {
-							long parentId = msgIdRs.getLong(1);
-							updateParentId.setLong(1, parentId);
-							updateParentId.setLong(2, id);
-							updateParentId.executeUpdate();
-						}
-					}
-				}
+						SET PARENT_ID = (SELECT P.ID FROM EMAIL P WHERE P.MESSAGE_ID = EMAIL.IN_REPLY_TO)
+						WHERE IN_REPLY_TO IS NOT NULL
+						AND EXISTS (SELECT 1 FROM EMAIL P WHERE P.MESSAGE_ID = EMAIL.IN_REPLY_TO)""");
+				status.sendMessage("Found the parent of %d emails.".formatted(updated));
 			}
 		});
 	}
 
+	/**
+	 * Closes this generator, after an operation that used it was stopped
+	 * before it could close it. Errors are only printed, since the database
+	 * is about to be discarded anyway.
+	 */
+	public void closeIfOpen() {
+		try {
+			if (!conn.isClosed()) close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
 	@Override
 	public void close() throws Exception {
 		this.emailExistsStatement.close();
 		this.emailInsertStatement.close();
+		this.bodyInsertStatement.close();
+		this.addressInsertStatement.close();
 		this.conn.commit();
 		this.conn.close();
 	}
@@ -122,4 +183,13 @@ public class DatabaseGenerator implements AutoCloseable, EmailHandler {
 			e.printStackTrace();
 		}
 	}
+
+	@Override
+	public void emailReceived(DecodedEmail email) {
+		try {
+			addEmail(email);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
 }
@@ -0,0 +1,95 @@
+package nl.andrewl.email_indexer.gen;
+
+import nl.andrewl.mboxparser.Email;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+
+/**
+ * An email that's being ingested, whose body is decoded to text at most once.
+ * The parsed {@link Email} is only kept until its body is first needed, after
+ * which its raw bytes are released, so that a message's body is never held in
+ * memory as both bytes and text.
+ * <p>
+ *     Like {@link Email}, the header fields are public so that sanitation
+ *     stages can modify them directly.
+ * </p>
+ */
+public class DecodedEmail {
+	public String messageId;
+	public String subject;
+	public String inReplyTo;
+	public String sentFrom;
+	public ZonedDateTime date;
+
+	private final String charset;
+	private Email source;
+	private String body;
+
+	public DecodedEmail(Email email) {
+		this.messageId = email.messageId;
+		this.subject = email.subject;
+		this.inReplyTo = email.inReplyTo;
+		this.sentFrom = email.sentFrom;
+		this.date = email.date;
+		this.charset = email.charset;
+		this.source = email;
+	}
+
+	/**
+	 * Gets the charset that the email's body was encoded with.
+	 * @return The charset, or null if the email didn't declare one.
+	 */
+	public String getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Determines if the email has a non-empty body, without decoding it.
+	 * @return True if the email has a body.
+	 */
+	public boolean hasBody() {
+		if (source != null) return source.body != null && source.body.length > 0;
+		return body != null && !body.isEmpty();
+	}
+
+	/**
+	 * Gets the email's body, decoding it if that hasn't been done yet.
+	 * @return The body text, or null if there is no body.
+	 */
+	public String getBody() {
+		if (source != null) {
+			body = source.body == null ? null : source.readBodyAsText();
+			source = null;
+		}
+		return body;
+	}
+
+	public void setBody(String body) {
+		this.body = body;
+		this.source = null;
+	}
+
+	/**
+	 * Converts this email back to a parsed {@link Email}, for handlers that
+	 * don't support decoded emails. Its body is UTF-8 encoded.
+	 * @return The parsed email.
+	 */
+	public Email toEmail() {
+		Email email = new Email();
+		email.messageId = messageId;
+		email.subject = subject;
+		email.inReplyTo = inReplyTo;
+		email.sentFrom = sentFrom;
+		email.date = date;
+		String text = getBody();
+		if (text != null) {
+			email.body = text.getBytes(StandardCharsets.UTF_8);
+			email.charset = StandardCharsets.UTF_8.name();
+			email.transferEncoding = "8bit";
+		} else {
+			email.charset = charset;
+		}
+		return email;
+	}
+}
@@ -0,0 +1,19 @@
+package nl.andrewl.email_indexer.gen;
+
+import nl.andrewl.mboxparser.Email;
+import nl.andrewl.mboxparser.EmailHandler;
+
+/**
+ * A handler for emails that have been decoded and sanitized by a
+ * {@link SanitizingEmailHandler}. It can also be given parsed emails
+ * directly, which are then wrapped without being sanitized.
+ */
+@FunctionalInterface
+public interface DecodedEmailHandler extends EmailHandler {
+	void emailReceived(DecodedEmail email);
+
+	@Override
+	default void emailReceived(Email email) {
+		emailReceived(new DecodedEmail(email));
+	}
+}
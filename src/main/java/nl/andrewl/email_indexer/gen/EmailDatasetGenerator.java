@@ -1,9 +1,15 @@
 package nl.andrewl.email_indexer.gen;
 
 import nl.andrewl.email_indexer.data.EmailDataset;
-import nl.andrewl.email_indexer.util.Async;
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
+import nl.andrewl.email_indexer.data.upgrade.SchemaUpgrader;
+import nl.andrewl.email_indexer.util.FileUtils;
 import nl.andrewl.email_indexer.util.Status;
+import nl.andrewl.email_indexer.util.Task;
 import nl.andrewl.mboxparser.MBoxParser;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
@@ -15,7 +21,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Component that generates email datasets from a set of directories containing
@@ -23,6 +31,11 @@ import java.util.concurrent.CompletableFuture;
  */
 public class EmailDatasetGenerator {
 	private final Status status;
+	private SanitationPipeline sanitationPipeline = SanitationPipeline.defaults();
+	private int sanitationThreads = 0;
+	private boolean singlePassIndexing = false;
+	private NearDuplicateDetector nearDuplicateDetector = null;
+	private boolean bodyCompression = false;
 
 	/**
 	 * Constructs the generator with the given status tracker.
@@ -40,48 +53,216 @@ public class EmailDatasetGenerator {
 		this(Status.noOp());
 	}
 
+	/**
+	 * Sets the pipeline that all parsed emails pass through before they're
+	 * added to the dataset. Its per-stage metrics are reported through this
+	 * generator's status after all emails are parsed.
+	 * @param pipeline The pipeline to use.
+	 * @return This generator.
+	 */
+	public EmailDatasetGenerator withSanitationPipeline(SanitationPipeline pipeline) {
+		this.sanitationPipeline = pipeline;
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads to sanitize emails with, in parallel to
+	 * parsing. Emails are still added to the dataset in the order they're
+	 * parsed in.
+	 * @param threads The number of threads, or 0 to sanitize emails on the
+	 *                parsing thread.
+	 * @return This generator.
+	 */
+	public EmailDatasetGenerator withSanitationThreads(int threads) {
+		if (threads < 0) throw new IllegalArgumentException("Thread count must not be negative.");
+		this.sanitationThreads = threads;
+		return this;
+	}
+
+	/**
+	 * Sets whether emails should be indexed as they're added to the database,
+	 * instead of reading them all back from the database to index them after
+	 * they've been added. This way, each email's body is only decoded and
+	 * analyzed once.
+	 * @param singlePassIndexing Whether to use single-pass indexing.
+	 * @return This generator.
+	 */
+	public EmailDatasetGenerator withSinglePassIndexing(boolean singlePassIndexing) {
+		this.singlePassIndexing = singlePassIndexing;
+		return this;
+	}
+
+	/**
+	 * Sets a detector to find emails that are near-duplicates of earlier
+	 * emails. It's added to the end of a copy of the sanitation pipeline, so
+	 * the given pipeline isn't changed, unless the pipeline already contains
+	 * it. Depending on the detector's action, the
+	 * duplicates are either dropped, or saved in the dataset's
+	 * DUPLICATE_CLUSTER table.
+	 * @param detector The detector to use, or null to disable detection.
+	 * @return This generator.
+	 */
+	public EmailDatasetGenerator withNearDuplicateDetection(NearDuplicateDetector detector) {
+		this.nearDuplicateDetector = detector;
+		return this;
+	}
+
+	/**
+	 * Sets whether email bodies should be compressed, using a dictionary
+	 * that's trained on the dataset's own bodies. This makes the dataset's
+	 * database much smaller, at the cost of some time to decompress bodies
+	 * when they're read.
+	 * @param bodyCompression Whether to compress bodies.
+	 * @return This generator.
+	 */
+	public EmailDatasetGenerator withBodyCompression(boolean bodyCompression) {
+		this.bodyCompression = bodyCompression;
+		return this;
+	}
+
 	/**
 	 * Generates a new Email Dataset using mbox files from a given directory,
 	 * and places the resulting dataset in the given target location.
 	 * @param mboxFileDirs The directories to read mbox files from.
 	 * @param dsDir The directory to save the dataset at.
-	 * @return A completion stage that completes when the dataset is created.
+	 * @return A task that completes when the dataset is created. If it's
+	 * cancelled, the partially generated dataset is removed.
 	 */
-	public CompletableFuture<Void> generate(Collection<Path> mboxFileDirs, Path dsDir) {
-		return Async.run(() -> {
+	public Task<Void> generate(Collection<Path> mboxFileDirs, Path dsDir) {
+		return Task.run(status, () -> {
 			status.sendMessage("Starting dataset generation.");
 			Files.createDirectories(dsDir);
 			status.sendMessage("Created dataset directory: " + dsDir);
 			DatabaseGenerator dbGen = new DatabaseGenerator(dsDir.resolve("database"));
 			status.sendMessage("Initialized embedded database.");
-			List<Path> mboxFiles = new ArrayList<>();
-			for (var dir : mboxFileDirs) mboxFiles.addAll(findMboxFiles(dir));
-			status.setTotalSteps(mboxFiles.size() + 1);
-			status.sendMessage("Found %d files to parse.".formatted(mboxFiles.size()));
-			MBoxParser parser = new MBoxParser(new SanitizingEmailHandler(dbGen));
+			try {
+				if (singlePassIndexing) {
+					Path indexDir = dsDir.resolve("index");
+					Files.createDirectories(indexDir);
+					try (var indexDirectory = FSDirectory.open(indexDir)) {
+						populateDatabase(dbGen, mboxFileDirs, indexDirectory);
+					}
+				} else {
+					populateDatabase(dbGen, mboxFileDirs, null);
+					EmailDataset dataset = new EmailDataset(dsDir);
+					try {
+						status.sendMessage("Generating index.");
+						new EmailIndexGenerator(status).generateIndex(dataset);
+					} finally {
+						dataset.close().join();
+					}
+				}
+			} catch (CancellationException e) {
+				status.sendMessage("Generation cancelled. Removing the partial dataset.");
+				dbGen.closeIfOpen();
+				FileUtils.deleteDatasetFiles(dsDir);
+				throw e;
+			}
+
+			// Generate metadata
+			Properties props = SchemaUpgrader.getLatestMetadata();
+			try (var writer = Files.newBufferedWriter(dsDir.resolve("metadata.properties"))) {
+				props.store(writer, null);
+			}
+
+			status.sendMessage("Dataset generation complete.");
+		});
+	}
+
+	/**
+	 * Generates a new Email Dataset using mbox files from a given directory,
+	 * and keeps the resulting dataset entirely in memory. The dataset can
+	 * later be saved with {@link InMemoryEmailDataset#persist(Path)}.
+	 * @param mboxFileDirs The directories to read mbox files from.
+	 * @return A task that completes when the dataset is created. If it's
+	 * cancelled, the partially generated dataset is discarded.
+	 */
+	public Task<InMemoryEmailDataset> generateInMemory(Collection<Path> mboxFileDirs) {
+		return Task.supply(status, () -> {
+			status.sendMessage("Starting in-memory dataset generation.");
+			InMemoryEmailDataset dataset = new InMemoryEmailDataset();
+			DatabaseGenerator dbGen = new DatabaseGenerator(dataset.getDatabaseUrl());
+			status.sendMessage("Initialized in-memory database.");
+			try {
+				if (singlePassIndexing) {
+					try (var indexDirectory = dataset.openIndexDirectoryForWriting()) {
+						populateDatabase(dbGen, mboxFileDirs, indexDirectory);
+					}
+				} else {
+					populateDatabase(dbGen, mboxFileDirs, null);
+					status.sendMessage("Generating index.");
+					new EmailIndexGenerator(status).generateIndex(dataset);
+				}
+			} catch (CancellationException e) {
+				status.sendMessage("Generation cancelled. Discarding the partial dataset.");
+				dbGen.closeIfOpen();
+				dataset.close().join();
+				throw e;
+			}
+			status.sendMessage("Dataset generation complete.");
+			return dataset;
+		});
+	}
+
+	/**
+	 * Parses all mbox files in the given directories into the database, and
+	 * then closes the database generator. If an index directory is given, the
+	 * emails are indexed into it at the same time.
+	 */
+	private void populateDatabase(DatabaseGenerator dbGen, Collection<Path> mboxFileDirs, Directory indexDirectory) throws Exception {
+		List<Path> mboxFiles = new ArrayList<>();
+		for (var dir : mboxFileDirs) mboxFiles.addAll(findMboxFiles(dir));
+		status.setTotalSteps(mboxFiles.size() + 1);
+		status.sendMessage("Found %d files to parse.".formatted(mboxFiles.size()));
+		// The detector's stage is added to a copy, so that the given pipeline isn't changed.
+		SanitationPipeline pipeline = sanitationPipeline;
+		if (nearDuplicateDetector != null) {
+			nearDuplicateDetector.reset();
+			if (!pipeline.hasStage(NearDuplicateDetector.STAGE_NAME)) {
+				pipeline = pipeline.copy().add(SanitationPipeline.Stage.filter(NearDuplicateDetector.STAGE_NAME, nearDuplicateDetector));
+			}
+		}
+		pipeline.resetMetrics();
+		EmailIndexGenerator indexGen = new EmailIndexGenerator(status);
+		IndexWriter indexWriter = indexDirectory == null ? null : indexGen.openWriter(indexDirectory);
+		DecodedEmailHandler downstream = indexWriter == null ? dbGen : new IndexingEmailHandler(dbGen, indexWriter);
+		ExecutorService executor = sanitationThreads > 0 ? Executors.newFixedThreadPool(sanitationThreads) : null;
+		try {
+			var handler = new SanitizingEmailHandler(downstream, pipeline, executor, Math.max(1, sanitationThreads * 64));
+			MBoxParser parser = new MBoxParser(handler);
 			for (var file : mboxFiles) {
+				status.checkCancelled();
 				status.sendMessage("Parsing file: " + file);
 				parser.parse(file);
+				handler.awaitCompletion();
 				status.incrementStepsDone();
 			}
+			for (var stage : pipeline.getStages()) {
+				status.sendMessage("Sanitation stage " + stage);
+			}
+			status.checkCancelled();
 			status.sendMessage("Performing post-processing on parsed emails.");
 			dbGen.postProcess(status);
+			if (nearDuplicateDetector != null && nearDuplicateDetector.getAction() == NearDuplicateDetector.Action.RECORD) {
+				status.sendMessage("Saving %d near-duplicate emails.".formatted(nearDuplicateDetector.getDuplicates().size()));
+				nearDuplicateDetector.writeClusters(dbGen.getConn());
+			}
+			if (bodyCompression) {
+				new BodyCompressor(status).compressBodies(dbGen.getConn());
+			}
+			status.checkCancelled();
+			if (indexWriter != null) {
+				indexGen.updateRootIds(dbGen.getConn(), indexWriter);
+				indexWriter.close();
+				status.sendMessage("Indexing complete.");
+			}
 			status.incrementStepsDone();
-			dbGen.close();
-			status.sendMessage("All emails added to the database.");
-
-			EmailDataset dataset = new EmailDataset(dsDir);
-			status.sendMessage("Generating index.");
-			new EmailIndexGenerator(status).generateIndex(dataset);
-			dataset.close().join();
-
-			// Generate metadata
-			Properties props = new Properties();
-			props.setProperty("version", "2");
-			props.store(Files.newBufferedWriter(dataset.getMetadataFile()), null);
-
-			status.sendMessage("Dataset generation complete.");
-		});
+		} finally {
+			if (executor != null) executor.shutdownNow();
+			if (indexWriter != null && indexWriter.isOpen()) indexWriter.rollback();
+		}
+		dbGen.close();
+		status.sendMessage("All emails added to the database.");
 	}
 
 	private List<Path> findMboxFiles(Path dir) throws IOException {
@@ -1,33 +1,56 @@
 package nl.andrewl.email_indexer.gen;
 
+import nl.andrewl.email_indexer.data.BodyCompression;
 import nl.andrewl.email_indexer.data.EmailDataset;
-import nl.andrewl.email_indexer.data.EmailEntryPreview;
-import nl.andrewl.email_indexer.data.EmailRepository;
-import nl.andrewl.email_indexer.data.search.EmailSearchResult;
-import nl.andrewl.email_indexer.data.search.EmailSearcher;
-import nl.andrewl.email_indexer.data.search.SearchFilter;
-import nl.andrewl.email_indexer.data.search.filter.HiddenFilter;
-import nl.andrewl.email_indexer.util.FileUtils;
+import nl.andrewl.email_indexer.data.QueryCache;
+import nl.andrewl.email_indexer.util.DbUtils;
 import nl.andrewl.email_indexer.util.Status;
-import org.apache.lucene.analysis.Analyzer;
+import nl.andrewl.email_indexer.util.Task;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.*;
-import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.Collection;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Component that generates Lucene search indexes from various sources.
+ * <p>
+ *     Each email is indexed as a document with its searchable subject and
+ *     body, and with its id and the id of its thread's root email as numeric
+ *     doc values. The root id is only known once all emails have been linked
+ *     to their parents, so documents are first added with their own id as
+ *     root id, which is then corrected for replies by
+ *     {@link #updateRootIds(Connection, IndexWriter)}.
+ * </p>
  */
 public class EmailIndexGenerator {
+	/**
+	 * The version of the format of the documents in generated indexes, which
+	 * is recorded in a dataset's metadata. Increment it when documents are
+	 * changed, so that existing datasets report that they need to be
+	 * reindexed, through {@link #needsReindex(EmailDataset)}.
+	 * Version 1 indexes stored root ids instead of keeping them as doc values.
+	 */
+	public static final int INDEX_VERSION = 2;
+
 	private final Status status;
+	private int threads = 0;
 
 	public EmailIndexGenerator(Status status) {
 		this.status = status;
@@ -37,66 +60,211 @@ public class EmailIndexGenerator {
 		this(Status.noOp());
 	}
 
+	/**
+	 * Sets the number of threads to analyze and add documents with, in
+	 * parallel to reading emails from the database. The index writer is
+	 * thread-safe, so documents are simply added from all threads.
+	 * @param threads The number of threads, or 0 to add documents on the
+	 *                calling thread.
+	 * @return This generator.
+	 */
+	public EmailIndexGenerator withThreads(int threads) {
+		if (threads < 0) throw new IllegalArgumentException("Thread count must not be negative.");
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * Checks whether a dataset's index must be regenerated, because it was
+	 * generated with an older {@link #INDEX_VERSION}, or because a schema
+	 * upgrade changed data that's indexed. Datasets are opened without
+	 * reindexing them, so this is up to the caller, using
+	 * {@link #generateIndexAsync(EmailDataset)}.
+	 * @param dataset The dataset to check.
+	 * @return True if the dataset should be reindexed.
+	 * @throws IOException If the dataset's metadata could not be read.
+	 */
+	public static boolean needsReindex(EmailDataset dataset) throws IOException {
+		return dataset.getIndexVersion() < INDEX_VERSION;
+	}
+
+	/**
+	 * Generates the indexes for a dataset asynchronously. See
+	 * {@link #generateIndex(EmailDataset)}.
+	 * @param dataset The dataset to index.
+	 * @return A task that completes when the index is generated. If it's
+	 * cancelled, the dataset keeps its previous index.
+	 */
+	public Task<Void> generateIndexAsync(EmailDataset dataset) {
+		return Task.run(status, () -> generateIndex(dataset));
+	}
+
 	/**
 	 * Generates the indexes for a dataset, based entirely on non-hidden emails.
+	 * All emails are read in a single query, in order of their id. The new
+	 * index only replaces the old one once it's complete, so if the status is
+	 * cancelled, the new index is rolled back and the old one is kept. Once
+	 * it's complete, the current {@link #INDEX_VERSION} is recorded in the
+	 * dataset's metadata.
 	 * @param dataset The dataset to index.
 	 * @throws IOException If an error occurs while reading or writing.
 	 */
 	public void generateIndex(EmailDataset dataset) throws IOException {
-		if (Files.exists(dataset.getIndexDir())) {
-			FileUtils.deleteFiles(dataset.getIndexDir());
-		} else {
-			Files.createDirectory(dataset.getIndexDir());
-		}
-		Analyzer analyzer = new StandardAnalyzer();
-		IndexWriterConfig config = new IndexWriterConfig(analyzer);
-		EmailRepository repo = new EmailRepository(dataset);
-		EmailSearcher searcher = new EmailSearcher(dataset);
+		Connection conn = dataset.getConnection();
+		ExecutorService executor = threads > 0 ? Executors.newFixedThreadPool(threads) : null;
 		try (
-				Directory emailDirectory = FSDirectory.open(dataset.getIndexDir());
-				IndexWriter emailIndexWriter = new IndexWriter(emailDirectory, config)
+				Directory emailDirectory = dataset.openIndexDirectoryForWriting();
+				IndexWriter emailIndexWriter = openWriter(emailDirectory);
+				var stmt = conn.prepareStatement(QueryCache.load("/sql/fetch_indexable_emails.sql"))
 		) {
-			Collection<SearchFilter> filters = new HashSet<>();
-			filters.add(new HiddenFilter(false));
-			long count = searcher.countAll(filters).join();
+			long count = DbUtils.count(conn, """
+					SELECT COUNT(EMAIL.ID)
+					FROM EMAIL
+					JOIN EMAIL_BODY B ON B.EMAIL_ID = EMAIL.ID
+					WHERE EMAIL.HIDDEN = FALSE AND (B.BODY IS NOT NULL OR B.BODY_COMPRESSED IS NOT NULL)""");
 			status.sendMessage("Indexing %d emails.".formatted(count));
-			final int pageSize = 1000;
-			int pageCount = (int) (count / pageSize) + (count % pageSize == 0 ? 0 : 1);
-			for (int page = 1; page <= pageCount; page++) {
-				status.sendMessage("Fetching page %d of %d.".formatted(page, pageCount));
-				EmailSearchResult result = searcher.findAll(page, pageSize, filters).join();
-				indexPage(result, repo, emailIndexWriter);
+			status.setTotalSteps((int) count);
+			try {
+				addDocuments(conn, stmt, emailIndexWriter, executor);
+				status.checkCancelled();
+				updateRootIds(conn, emailIndexWriter);
+			} catch (CancellationException e) {
+				// Nothing was committed yet, so rolling back keeps the previous index.
+				emailIndexWriter.rollback();
+				status.sendMessage("Indexing cancelled. Keeping the previous index.");
+				throw e;
 			}
 			status.sendMessage("Indexing complete.");
+		} catch (SQLException e) {
+			throw new IOException("Could not fetch emails to index.", e);
+		} finally {
+			if (executor != null) executor.shutdownNow();
+		}
+		dataset.closeIndex();
+		saveIndexVersion(dataset);
+	}
+
+	/**
+	 * Records the current index version in a dataset's metadata. Datasets
+	 * that are still being generated don't have metadata yet; they're given
+	 * the latest metadata once they're done.
+	 */
+	private static void saveIndexVersion(EmailDataset dataset) throws IOException {
+		Path metadataFile = dataset.getMetadataFile();
+		if (metadataFile != null && Files.notExists(metadataFile)) return;
+		Properties metadata = dataset.getMetadata();
+		metadata.setProperty("indexVersion", Integer.toString(INDEX_VERSION));
+		dataset.saveMetadata(metadata);
+	}
+
+	/**
+	 * Reads all indexable emails, and adds their documents to the index,
+	 * using the executor if there is one. Cancellation is checked after every
+	 * 1000 emails.
+	 */
+	private void addDocuments(Connection conn, PreparedStatement stmt, IndexWriter writer, ExecutorService executor) throws SQLException, IOException {
+		long indexed = 0;
+		Deque<Future<?>> inFlight = new ArrayDeque<>();
+		int maxInFlight = Math.max(1, threads * 64);
+		try (var rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				String body = BodyCompression.bodyText(conn, rs.getString(3), rs.getBytes(4));
+				Document doc = createDocument(rs.getLong(1), rs.getString(2), body);
+				if (executor == null) {
+					writer.addDocument(doc);
+				} else {
+					if (inFlight.size() >= maxInFlight) await(inFlight.removeFirst());
+					inFlight.addLast(executor.submit(() -> {
+						writer.addDocument(doc);
+						return null;
+					}));
+				}
+				if (++indexed % 1000 == 0) {
+					status.addStepsDone(1000);
+					status.checkCancelled();
+				}
+			}
+		} finally {
+			// Also when stopping early, so that no documents are added after the writer is closed.
+			while (!inFlight.isEmpty()) await(inFlight.removeFirst());
 		}
+		status.addStepsDone((int) (indexed % 1000));
 	}
 
-	private void indexPage(EmailSearchResult result, EmailRepository repo, IndexWriter emailIndexWriter) {
-		status.sendMessage("Indexing page %d containing %d emails.".formatted(result.page(), result.emails().size()));
-		for (var email : result.emails()) {
-			addToIndex(email, repo, emailIndexWriter);
+	/**
+	 * Waits for a document to be added by another thread.
+	 * @param future The future of the task that adds the document.
+	 * @throws IOException If the document could not be added.
+	 */
+	private static void await(Future<?> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while indexing.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) throw ioe;
+			throw new IOException("Could not index an email.", e.getCause());
 		}
-		status.sendMessage("Completed index of page %d.".formatted(result.page()));
 	}
 
-	private void addToIndex(EmailEntryPreview email, EmailRepository repo, IndexWriter emailIndexWriter) {
-		repo.getBody(email.id()).ifPresent(body -> {
-			Document doc = new Document();
-			FieldType indexedStringType = new FieldType();
-			indexedStringType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
-			indexedStringType.setStored(false);
-			indexedStringType.freeze();
-			doc.add(new StoredField("id", email.id()));
-			doc.add(new TextField("subject", email.subject(), Field.Store.NO));
-			doc.add(new TextField("body", body, Field.Store.NO));
-			// Store the root id. If we couldn't find a root id, use this email's id.
-			long rootId = repo.findRootEmailByChildId(email.id()).map(EmailEntryPreview::id).orElse(email.id());
-			doc.add(new StoredField("rootId", rootId));
-			try {
-				emailIndexWriter.addDocument(doc);
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Opens a writer that replaces any existing index in the given directory
+	 * once it's committed.
+	 * @param directory The directory to write the index to.
+	 * @return The index writer.
+	 * @throws IOException If the writer could not be opened.
+	 */
+	public IndexWriter openWriter(Directory directory) throws IOException {
+		IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+		config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+		return new IndexWriter(directory, config);
+	}
+
+	/**
+	 * Creates the index document for an email. Its root id is initially set
+	 * to the email's own id.
+	 * @param id The email's id.
+	 * @param subject The email's subject.
+	 * @param body The email's body.
+	 * @return The document.
+	 */
+	public static Document createDocument(long id, String subject, String body) {
+		Document doc = new Document();
+		// The id is indexed as a term so that the document's root id can be updated later.
+		doc.add(new StringField("id", Long.toString(id), Field.Store.NO));
+		doc.add(new StoredField("id", id));
+		doc.add(new NumericDocValuesField("id", id));
+		if (subject != null) doc.add(new TextField("subject", subject, Field.Store.NO));
+		doc.add(new TextField("body", body, Field.Store.NO));
+		doc.add(new NumericDocValuesField("rootId", id));
+		return doc;
+	}
+
+	/**
+	 * Sets the root id of all indexed replies, based on the parent ids in the
+	 * database. This should be done after
+	 * {@link DatabaseGenerator#postProcess(Status)}. Emails whose thread
+	 * doesn't lead back to a root email (for example because of cyclic
+	 * references) keep their own id as root id.
+	 * @param conn A connection to the dataset's database.
+	 * @param writer The writer of the dataset's index.
+	 * @throws IOException If the index could not be updated.
+	 */
+	public void updateRootIds(Connection conn, IndexWriter writer) throws IOException {
+		status.sendMessage("Updating root ids of indexed replies.");
+		long count = 0;
+		try (
+				var stmt = conn.prepareStatement(QueryCache.load("/sql/fetch_reply_root_ids.sql"));
+				var rs = stmt.executeQuery()
+		) {
+			while (rs.next()) {
+				writer.updateNumericDocValue(new Term("id", Long.toString(rs.getLong(1))), "rootId", rs.getLong(2));
+				count++;
 			}
-		});
+		} catch (SQLException e) {
+			throw new IOException("Could not fetch root ids.", e);
+		}
+		status.sendMessage("Updated root ids of %d replies.".formatted(count));
 	}
 }
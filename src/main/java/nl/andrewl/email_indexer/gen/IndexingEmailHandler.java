@@ -0,0 +1,34 @@
+package nl.andrewl.email_indexer.gen;
+
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * A handler that adds each email to the database, and immediately indexes it
+ * too, so that a dataset can be generated in a single pass over its emails.
+ * See {@link EmailIndexGenerator#updateRootIds} for completing the index once
+ * all emails have been added.
+ */
+public class IndexingEmailHandler implements DecodedEmailHandler {
+	private final DatabaseGenerator dbGen;
+	private final IndexWriter indexWriter;
+
+	public IndexingEmailHandler(DatabaseGenerator dbGen, IndexWriter indexWriter) {
+		this.dbGen = dbGen;
+		this.indexWriter = indexWriter;
+	}
+
+	@Override
+	public void emailReceived(DecodedEmail email) {
+		try {
+			var id = dbGen.addEmail(email);
+			if (id.isPresent()) {
+				indexWriter.addDocument(EmailIndexGenerator.createDocument(id.get(), email.subject, email.getBody()));
+			}
+		} catch (SQLException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
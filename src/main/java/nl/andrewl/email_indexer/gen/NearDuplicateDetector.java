@@ -0,0 +1,356 @@
+package nl.andrewl.email_indexer.gen;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A sanitation stage that finds emails whose bodies are near-duplicates of an
+ * email that was seen earlier, like cross-posted or re-sent messages with a
+ * different message id. Depending on its {@link Action}, it either drops such
+ * emails, or keeps them and records which earlier email they duplicate, so
+ * that this can be saved in the DUPLICATE_CLUSTER table.
+ * <p>
+ *     Each body is summarized as a 64-bit SimHash of its word pairs, and two
+ *     bodies are near-duplicates if their hashes differ in at most a
+ *     configured number of bits, k. To avoid comparing every pair of emails,
+ *     the hashes are split into b blocks, like in Manku et al.'s "Detecting
+ *     Near-Duplicates for Web Crawling": two near-duplicates differ in at most
+ *     k blocks, so they're identical in at least b - k of them. For every
+ *     combination of b - k blocks there's a table, keyed by those bits of the
+ *     hashes, and only emails that share a key in some table are compared.
+ * </p>
+ * <p>
+ *     The more blocks that make up a key, the fewer emails share it. When the
+ *     tables' buckets grow too large on average, the hashes are split into
+ *     one more block, so that keys stay at about log2(n) bits for n emails,
+ *     and a lookup compares only a few candidates per table. Each table needs
+ *     about 8 bytes per email.
+ * </p>
+ * <p>
+ *     Emails are compared in the order they're received, so when emails are
+ *     sanitized in parallel, which email of a cluster is kept may differ
+ *     between runs.
+ * </p>
+ */
+public class NearDuplicateDetector implements Predicate<DecodedEmail> {
+	/**
+	 * The name of the stage that this detector is added as.
+	 */
+	public static final String STAGE_NAME = "near-duplicates";
+
+	public enum Action {
+		/**
+		 * Drop near-duplicate emails, so they're not added to the dataset.
+		 */
+		DROP,
+		/**
+		 * Keep near-duplicate emails, and record them as part of the cluster
+		 * of the first email they duplicate.
+		 */
+		RECORD
+	}
+
+	/**
+	 * A recorded near-duplicate email.
+	 * @param messageId The message id of the duplicate email.
+	 * @param clusterMessageId The message id of the first email in its cluster.
+	 * @param distance The number of bits that the emails' hashes differ by.
+	 */
+	public record Duplicate(String messageId, String clusterMessageId, int distance) {}
+
+	/**
+	 * The largest average number of emails that may share a key in each table,
+	 * before the hashes are split into more, smaller blocks.
+	 */
+	private static final int MAX_BUCKET_SIZE = 16;
+	/**
+	 * The largest number of tables, which limits the memory that's used for
+	 * large maximum distances.
+	 */
+	private static final int MAX_TABLES = 128;
+
+	private Action action = Action.RECORD;
+	private int maxDistance = 6;
+	private int minShingles = 10;
+
+	// The hashes and message ids of all emails that aren't duplicates, by index.
+	private long[] hashes;
+	private String[] messageIds;
+	private int size;
+	// The number of blocks that hashes are split into, and for each table, the bits of its key.
+	private int blockCount;
+	private long[] tableMasks;
+	private int keyBits;
+	// For each table and bucket, the index + 1 of the last email in that bucket, or 0 if it's empty.
+	private int[][] heads;
+	// For each table and email, the index + 1 of the previous email in the same bucket, or 0.
+	private int[][] next;
+	private final List<Duplicate> duplicates = new ArrayList<>();
+
+	public Action getAction() {
+		return action;
+	}
+
+	public NearDuplicateDetector withAction(Action action) {
+		this.action = action;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of bits that two bodies' hashes may differ by
+	 * for them to be considered near-duplicates, which is 6 by default. Higher
+	 * values find more duplicates, but need more memory and comparisons.
+	 * @param maxDistance The maximum distance, between 0 and 15.
+	 * @return This detector.
+	 */
+	public synchronized NearDuplicateDetector withMaxDistance(int maxDistance) {
+		if (maxDistance < 0 || maxDistance > 15) throw new IllegalArgumentException("Max distance must be between 0 and 15.");
+		this.maxDistance = maxDistance;
+		this.hashes = null;
+		return this;
+	}
+
+	/**
+	 * Sets the minimum number of word pairs that a body must have to be
+	 * checked. Very short bodies, like "+1", are often identical without being
+	 * duplicates.
+	 * @param minShingles The minimum number of word pairs.
+	 * @return This detector.
+	 */
+	public NearDuplicateDetector withMinShingles(int minShingles) {
+		this.minShingles = minShingles;
+		return this;
+	}
+
+	/**
+	 * Forgets all emails and duplicates that were seen so far.
+	 */
+	public synchronized void reset() {
+		hashes = null;
+		duplicates.clear();
+	}
+
+	/**
+	 * Gets all near-duplicates that were recorded so far.
+	 * @return The list of duplicates.
+	 */
+	public synchronized List<Duplicate> getDuplicates() {
+		return List.copyOf(duplicates);
+	}
+
+	/**
+	 * Checks an email against all earlier emails.
+	 * @param email The email to check.
+	 * @return False if the email is a near-duplicate and should be dropped.
+	 */
+	@Override
+	public boolean test(DecodedEmail email) {
+		String body = email.getBody();
+		if (body == null) return true;
+		long hash = simHash(body, minShingles);
+		if (hash == 0) return true;
+		synchronized (this) {
+			if (hashes == null) init();
+			int match = findMatch(hash, email.messageId);
+			if (match == -1) {
+				add(hash, email.messageId);
+				return true;
+			}
+			if (messageIds[match].equals(email.messageId)) return true;// Exact re-deliveries are handled by the database.
+			if (action == Action.DROP) return false;
+			duplicates.add(new Duplicate(email.messageId, messageIds[match], Long.bitCount(hash ^ hashes[match])));
+			return true;
+		}
+	}
+
+	/**
+	 * Saves all recorded duplicates to the DUPLICATE_CLUSTER table of a
+	 * dataset's database. Duplicates whose emails aren't in the database are
+	 * skipped.
+	 * @param conn The connection to the database.
+	 * @throws SQLException If the duplicates could not be saved.
+	 */
+	public synchronized void writeClusters(Connection conn) throws SQLException {
+		try (var stmt = conn.prepareStatement("""
+				MERGE INTO DUPLICATE_CLUSTER (EMAIL_ID, CLUSTER_EMAIL_ID, DISTANCE)
+				SELECT E.ID, C.ID, ?
+				FROM EMAIL E, EMAIL C
+				WHERE E.MESSAGE_ID = ? AND C.MESSAGE_ID = ?""")) {
+			for (var duplicate : duplicates) {
+				stmt.setInt(1, duplicate.distance());
+				stmt.setString(2, duplicate.messageId());
+				stmt.setString(3, duplicate.clusterMessageId());
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+	}
+
+	/**
+	 * Gets the number of blocks that hashes are currently split into.
+	 */
+	synchronized int getBlockCount() {
+		return blockCount;
+	}
+
+	private void init() {
+		hashes = new long[16];
+		messageIds = new String[16];
+		size = 0;
+		setBlockCount(maxDistance + 1);
+	}
+
+	/**
+	 * Finds the closest earlier email whose hash differs from the given one in
+	 * at most the maximum distance, preferring one with the same message id.
+	 * @return The index of the email, or -1 if there's none.
+	 */
+	private int findMatch(long hash, String messageId) {
+		int best = -1;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int t = 0; t < tableMasks.length; t++) {
+			long key = hash & tableMasks[t];
+			for (int i = heads[t][bucket(key)]; i != 0; i = next[t][i - 1]) {
+				long candidate = hashes[i - 1];
+				if ((candidate & tableMasks[t]) != key) continue;
+				int distance = Long.bitCount(hash ^ candidate);
+				if (distance > maxDistance) continue;
+				if (messageIds[i - 1].equals(messageId)) return i - 1;
+				if (distance < bestDistance) {
+					best = i - 1;
+					bestDistance = distance;
+				}
+			}
+		}
+		return best;
+	}
+
+	private void add(long hash, String messageId) {
+		if (size == hashes.length) {
+			hashes = Arrays.copyOf(hashes, size * 2);
+			messageIds = Arrays.copyOf(messageIds, size * 2);
+			rebuildTables();
+		}
+		hashes[size] = hash;
+		messageIds[size] = messageId;
+		link(size++);
+		if (keyBits < 32 && size > (long) MAX_BUCKET_SIZE << keyBits && binomial(blockCount + 1, maxDistance) <= MAX_TABLES) {
+			setBlockCount(blockCount + 1);
+		}
+	}
+
+	/**
+	 * Splits hashes into a number of blocks, which are as equal in width as
+	 * possible, and creates a table for every combination of all but
+	 * {@link #maxDistance} of them.
+	 */
+	private void setBlockCount(int blockCount) {
+		this.blockCount = blockCount;
+		long[] blocks = new long[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			int start = i * 64 / blockCount;
+			int width = (i + 1) * 64 / blockCount - start;
+			blocks[i] = (width == 64 ? -1L : (1L << width) - 1) << start;
+		}
+		List<Long> masks = new ArrayList<>();
+		combineBlocks(blocks, 0, blockCount - maxDistance, 0, masks);
+		tableMasks = masks.stream().mapToLong(Long::longValue).toArray();
+		keyBits = masks.stream().mapToInt(Long::bitCount).min().orElse(64);
+		rebuildTables();
+	}
+
+	private static void combineBlocks(long[] blocks, int start, int remaining, long mask, List<Long> masks) {
+		if (remaining == 0) {
+			masks.add(mask);
+			return;
+		}
+		for (int i = start; i <= blocks.length - remaining; i++) {
+			combineBlocks(blocks, i + 1, remaining - 1, mask | blocks[i], masks);
+		}
+	}
+
+	private void rebuildTables() {
+		heads = new int[tableMasks.length][hashes.length];
+		next = new int[tableMasks.length][hashes.length];
+		for (int i = 0; i < size; i++) link(i);
+	}
+
+	private void link(int index) {
+		for (int t = 0; t < tableMasks.length; t++) {
+			int bucket = bucket(hashes[index] & tableMasks[t]);
+			next[t][index] = heads[t][bucket];
+			heads[t][bucket] = index + 1;
+		}
+	}
+
+	private int bucket(long key) {
+		return (int) (mix(key) & (hashes.length - 1));
+	}
+
+	private static long binomial(int n, int k) {
+		long result = 1;
+		for (int i = 1; i <= k; i++) {
+			result = result * (n - k + i) / i;
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the SimHash of a text, using each pair of consecutive words
+	 * as a feature. Words are sequences of letters and digits, compared
+	 * case-insensitively.
+	 * @param text The text to hash.
+	 * @param minShingles The minimum number of word pairs that the text must
+	 *                    contain.
+	 * @return The hash, or 0 if the text has too few word pairs.
+	 */
+	public static long simHash(CharSequence text, int minShingles) {
+		int[] weights = new int[64];
+		int shingles = 0;
+		long previousWord = 0;
+		boolean hasPrevious = false;
+		int i = 0;
+		int length = text.length();
+		while (i < length) {
+			while (i < length && !Character.isLetterOrDigit(text.charAt(i))) i++;
+			if (i == length) break;
+			// FNV-1a hash of the word.
+			long word = 0xcbf29ce484222325L;
+			while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+				word ^= Character.toLowerCase(text.charAt(i++));
+				word *= 0x100000001b3L;
+			}
+			if (hasPrevious) {
+				long shingle = mix(previousWord * 31 + word);
+				for (int bit = 0; bit < 64; bit++) {
+					weights[bit] += ((shingle >>> bit) & 1) == 1 ? 1 : -1;
+				}
+				shingles++;
+			}
+			previousWord = word;
+			hasPrevious = true;
+		}
+		if (shingles < Math.max(1, minShingles)) return 0;
+		long hash = 0;
+		for (int bit = 0; bit < 64; bit++) {
+			if (weights[bit] > 0) hash |= 1L << bit;
+		}
+		return hash;
+	}
+
+	/**
+	 * The MurmurHash3 finalizer, which spreads the bits of a hash.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
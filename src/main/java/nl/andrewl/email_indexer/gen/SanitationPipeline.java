@@ -0,0 +1,261 @@
+package nl.andrewl.email_indexer.gen;
+
+import nl.andrewl.email_indexer.gen.transform.AddressCleaner;
+import nl.andrewl.email_indexer.gen.transform.BodyReplyRemover;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * An ordered list of named stages that each email passes through before it's
+ * added to a dataset. A stage is either a filter, which may drop the email, or
+ * a transformer, which modifies it. Each stage keeps track of how many emails
+ * it processed and dropped, and how much time it spent doing so.
+ * <p>
+ *     The pipeline is thread-safe: many emails may be processed concurrently,
+ *     and stages may be changed at any time, although emails that are already
+ *     being processed will still pass through the old list of stages.
+ * </p>
+ */
+public class SanitationPipeline {
+	/**
+	 * A single named step in the pipeline, with its metrics.
+	 */
+	public static final class Stage {
+		private final String name;
+		private final Predicate<DecodedEmail> action;
+		private final boolean filter;
+
+		private final LongAdder processed = new LongAdder();
+		private final LongAdder dropped = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+
+		private Stage(String name, Predicate<DecodedEmail> action, boolean filter) {
+			this.name = name;
+			this.action = action;
+			this.filter = filter;
+		}
+
+		/**
+		 * Creates a stage that drops all emails that don't satisfy a condition.
+		 * @param name The unique name of the stage.
+		 * @param condition The condition that emails must satisfy to be kept.
+		 * @return The stage.
+		 */
+		public static Stage filter(String name, Predicate<DecodedEmail> condition) {
+			return new Stage(name, condition, true);
+		}
+
+		/**
+		 * Creates a stage that modifies emails.
+		 * @param name The unique name of the stage.
+		 * @param transformer The transformer to apply to each email.
+		 * @return The stage.
+		 */
+		public static Stage transform(String name, Consumer<DecodedEmail> transformer) {
+			return new Stage(name, email -> {
+				transformer.accept(email);
+				return true;
+			}, false);
+		}
+
+		private boolean apply(DecodedEmail email) {
+			long start = System.nanoTime();
+			try {
+				boolean keep = action.test(email);
+				if (!keep) dropped.increment();
+				return keep;
+			} finally {
+				nanos.add(System.nanoTime() - start);
+				processed.increment();
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isFilter() {
+			return filter;
+		}
+
+		public long getProcessedCount() {
+			return processed.sum();
+		}
+
+		public long getDroppedCount() {
+			return dropped.sum();
+		}
+
+		public long getTotalNanos() {
+			return nanos.sum();
+		}
+
+		public void resetMetrics() {
+			processed.reset();
+			dropped.reset();
+			nanos.reset();
+		}
+
+		@Override
+		public String toString() {
+			return "%s: processed %d, dropped %d, %.1f ms".formatted(
+					name,
+					getProcessedCount(),
+					getDroppedCount(),
+					getTotalNanos() / 1_000_000.0
+			);
+		}
+	}
+
+	private final List<Stage> stages = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Creates a pipeline with the default stages that are used when
+	 * generating datasets: emails without a charset, body or message id are
+	 * dropped, quoted replies are removed from bodies, and addresses are
+	 * cleaned up.
+	 * @return The pipeline.
+	 */
+	public static SanitationPipeline defaults() {
+		return new SanitationPipeline()
+				.add(Stage.filter("require-charset", email -> email.getCharset() != null))
+				.add(Stage.filter("require-body", DecodedEmail::hasBody))
+				.add(Stage.filter("require-message-id", email -> email.messageId != null && !email.messageId.isBlank()))
+				.add(Stage.transform("remove-replies", new BodyReplyRemover()))
+				.add(Stage.transform("clean-addresses", new AddressCleaner()));
+	}
+
+	/**
+	 * Creates a new pipeline with the same stages as this one, which can be
+	 * changed without affecting this pipeline. The stages themselves are
+	 * shared, so their metrics include emails that pass through either
+	 * pipeline.
+	 * @return The copy of this pipeline.
+	 */
+	public synchronized SanitationPipeline copy() {
+		SanitationPipeline copy = new SanitationPipeline();
+		copy.stages.addAll(stages);
+		return copy;
+	}
+
+	/**
+	 * Adds a stage to the end of the pipeline.
+	 * @param stage The stage to add.
+	 * @return This pipeline.
+	 */
+	public synchronized SanitationPipeline add(Stage stage) {
+		return insert(stages.size(), stage);
+	}
+
+	/**
+	 * Inserts a stage directly before another one.
+	 * @param existingName The name of the stage to insert before.
+	 * @param stage The stage to insert.
+	 * @return This pipeline.
+	 */
+	public synchronized SanitationPipeline insertBefore(String existingName, Stage stage) {
+		return insert(indexOf(existingName), stage);
+	}
+
+	/**
+	 * Inserts a stage directly after another one.
+	 * @param existingName The name of the stage to insert after.
+	 * @param stage The stage to insert.
+	 * @return This pipeline.
+	 */
+	public synchronized SanitationPipeline insertAfter(String existingName, Stage stage) {
+		return insert(indexOf(existingName) + 1, stage);
+	}
+
+	/**
+	 * Inserts a stage at a position in the pipeline.
+	 * @param index The position to insert the stage at.
+	 * @param stage The stage to insert.
+	 * @return This pipeline.
+	 */
+	public synchronized SanitationPipeline insert(int index, Stage stage) {
+		for (var s : stages) {
+			if (s.getName().equals(stage.getName())) {
+				throw new IllegalArgumentException("A stage named " + stage.getName() + " already exists.");
+			}
+		}
+		stages.add(index, stage);
+		return this;
+	}
+
+	/**
+	 * Removes a stage from the pipeline.
+	 * @param name The name of the stage to remove.
+	 * @return This pipeline.
+	 */
+	public synchronized SanitationPipeline remove(String name) {
+		stages.remove(indexOf(name));
+		return this;
+	}
+
+	/**
+	 * Moves a stage to another position in the pipeline.
+	 * @param name The name of the stage to move.
+	 * @param index The new position of the stage.
+	 * @return This pipeline.
+	 */
+	public synchronized SanitationPipeline move(String name, int index) {
+		Stage stage = stages.remove(indexOf(name));
+		stages.add(index, stage);
+		return this;
+	}
+
+	public synchronized boolean hasStage(String name) {
+		for (var stage : stages) {
+			if (stage.getName().equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets a stage by its name.
+	 * @param name The name of the stage.
+	 * @return The stage.
+	 * @throws NoSuchElementException If there's no stage with that name.
+	 */
+	public synchronized Stage getStage(String name) {
+		return stages.get(indexOf(name));
+	}
+
+	/**
+	 * Gets a snapshot of the stages in this pipeline, in order.
+	 * @return The list of stages.
+	 */
+	public List<Stage> getStages() {
+		return List.copyOf(stages);
+	}
+
+	public void resetMetrics() {
+		stages.forEach(Stage::resetMetrics);
+	}
+
+	/**
+	 * Passes an email through all stages, until it's dropped by a filter.
+	 * @param email The email to process.
+	 * @return True if the email passed through all stages, or false if it
+	 * was dropped.
+	 */
+	public boolean process(DecodedEmail email) {
+		for (var stage : stages) {
+			if (!stage.apply(email)) return false;
+		}
+		return true;
+	}
+
+	private int indexOf(String name) {
+		for (int i = 0; i < stages.size(); i++) {
+			if (stages.get(i).getName().equals(name)) return i;
+		}
+		throw new NoSuchElementException("No stage named " + name);
+	}
+}
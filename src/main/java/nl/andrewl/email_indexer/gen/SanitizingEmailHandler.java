@@ -1,46 +1,125 @@
 package nl.andrewl.email_indexer.gen;
 
-import nl.andrewl.email_indexer.gen.transform.AddressCleaner;
-import nl.andrewl.email_indexer.gen.transform.BodyReplyRemover;
 import nl.andrewl.mboxparser.Email;
 import nl.andrewl.mboxparser.EmailHandler;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
- * A simple handler that helps to sanitize emails by removing those without a
- * charset, and doing a best-effort attempt to remove annoying indented reply
- * content.
+ * A simple handler that helps to sanitize emails by passing them through a
+ * {@link SanitationPipeline} before handing them to another handler. By
+ * default, this removes emails without a charset, and does a best-effort
+ * attempt to remove annoying indented reply content. Emails are wrapped as a
+ * {@link DecodedEmail}, so that their body is decoded only once, no matter
+ * how many stages and downstream handlers read it.
+ * <p>
+ *     If an executor is given, emails are sanitized in parallel on that
+ *     executor. They're still handed to the downstream handler one at a time,
+ *     in the order they were received, and from the thread that calls
+ *     {@link #emailReceived(Email)} or {@link #awaitCompletion()}, so the
+ *     downstream handler doesn't need to be thread-safe. In that case,
+ *     {@link #awaitCompletion()} must be called after the last email.
+ * </p>
  */
 public class SanitizingEmailHandler implements EmailHandler {
-	private final EmailHandler handler;
-	private final List<Function<Email, Boolean>> filterFunctions;
-	private final List<Consumer<Email>> transformers;
+	private final DecodedEmailHandler handler;
+	private final SanitationPipeline pipeline;
+	private final Executor executor;
+	private final int maxInFlight;
+	private final Deque<CompletableFuture<DecodedEmail>> inFlight;
 
-	public SanitizingEmailHandler(EmailHandler handler) {
+	/**
+	 * Constructs a handler that sanitizes emails in parallel.
+	 * @param handler The handler to give sanitized emails to.
+	 * @param pipeline The pipeline to pass emails through.
+	 * @param executor The executor to sanitize emails on, or null to do it
+	 *                 on the calling thread.
+	 * @param maxInFlight The maximum number of emails that may be waiting to
+	 *                    be handed to the downstream handler. When reached,
+	 *                    the caller blocks until the oldest one is done.
+	 */
+	public SanitizingEmailHandler(DecodedEmailHandler handler, SanitationPipeline pipeline, Executor executor, int maxInFlight) {
+		if (maxInFlight < 1) throw new IllegalArgumentException("Max in-flight emails must be at least 1.");
 		this.handler = handler;
+		this.pipeline = pipeline;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new ArrayDeque<>(maxInFlight);
+	}
+
+	public SanitizingEmailHandler(DecodedEmailHandler handler, SanitationPipeline pipeline) {
+		this(handler, pipeline, null, 1);
+	}
+
+	public SanitizingEmailHandler(DecodedEmailHandler handler) {
+		this(handler, SanitationPipeline.defaults());
+	}
+
+	/**
+	 * Constructs a handler that sanitizes emails in parallel, and gives them
+	 * to a handler of parsed emails. Sanitized emails are converted back
+	 * using {@link DecodedEmail#toEmail()}, so prefer giving a
+	 * {@link DecodedEmailHandler} instead.
+	 * @param handler The handler to give sanitized emails to.
+	 * @param pipeline The pipeline to pass emails through.
+	 * @param executor The executor to sanitize emails on, or null to do it
+	 *                 on the calling thread.
+	 * @param maxInFlight The maximum number of emails that may be waiting to
+	 *                    be handed to the downstream handler.
+	 */
+	public SanitizingEmailHandler(EmailHandler handler, SanitationPipeline pipeline, Executor executor, int maxInFlight) {
+		this(adapt(handler), pipeline, executor, maxInFlight);
+	}
+
+	public SanitizingEmailHandler(EmailHandler handler, SanitationPipeline pipeline) {
+		this(adapt(handler), pipeline);
+	}
 
-		this.filterFunctions = new ArrayList<>();
-		filterFunctions.add(email -> email.charset != null);
-		filterFunctions.add(email -> email.body != null && email.body.length > 0);
-		filterFunctions.add(email -> email.messageId != null && !email.messageId.isBlank());
+	public SanitizingEmailHandler(EmailHandler handler) {
+		this(adapt(handler));
+	}
 
-		this.transformers = new ArrayList<>();
-		transformers.add(new BodyReplyRemover());
-		transformers.add(new AddressCleaner());
+	private static DecodedEmailHandler adapt(EmailHandler handler) {
+		if (handler instanceof DecodedEmailHandler decodedHandler) return decodedHandler;
+		return email -> handler.emailReceived(email.toEmail());
+	}
+
+	public SanitationPipeline getPipeline() {
+		return pipeline;
 	}
 
 	@Override
-	public void emailReceived(Email email) {
-		for (var f : filterFunctions) {
-			if (!f.apply(email)) return;
+	public void emailReceived(Email parsedEmail) {
+		DecodedEmail email = new DecodedEmail(parsedEmail);
+		if (executor == null) {
+			if (pipeline.process(email)) handler.emailReceived(email);
+			return;
+		}
+		if (inFlight.size() >= maxInFlight) {
+			deliver(inFlight.removeFirst());
 		}
-		for (var t : transformers) {
-			t.accept(email);
+		inFlight.addLast(CompletableFuture.supplyAsync(() -> pipeline.process(email) ? email : null, executor));
+		// Opportunistically hand over any emails that are already done, without waiting.
+		while (!inFlight.isEmpty() && inFlight.peekFirst().isDone()) {
+			deliver(inFlight.removeFirst());
 		}
-		handler.emailReceived(email);
+	}
+
+	/**
+	 * Waits for all emails that are still being sanitized, and hands them to
+	 * the downstream handler. This does nothing if no executor is used.
+	 */
+	public void awaitCompletion() {
+		while (!inFlight.isEmpty()) {
+			deliver(inFlight.removeFirst());
+		}
+	}
+
+	private void deliver(CompletableFuture<DecodedEmail> future) {
+		DecodedEmail email = future.join();
+		if (email != null) handler.emailReceived(email);
 	}
 }
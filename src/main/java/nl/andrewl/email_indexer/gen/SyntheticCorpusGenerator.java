@@ -0,0 +1,316 @@
+package nl.andrewl.email_indexer.gen;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates directories of mbox files containing synthetic mailing list
+ * traffic, for testing and benchmarking at scales that the real sample data
+ * doesn't reach. The output is fully determined by the generator's settings,
+ * so the same seed always produces byte-for-byte identical files.
+ * <p>
+ *     Messages are organized in threads, where each message has a random
+ *     number of replies up to the configured fan-out, until the configured
+ *     depth is reached. Replies quote their parent's body, and a small
+ *     fraction of messages are re-delivered with the same Message-ID, as
+ *     happens in real archives. Bodies are written in a variety of charsets.
+ * </p>
+ */
+public class SyntheticCorpusGenerator {
+	private static final ZonedDateTime START_DATE = ZonedDateTime.of(2006, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+	private static final DateTimeFormatter FROM_LINE_DATE = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ENGLISH);
+	private static final Charset[] CHARSETS = {
+			StandardCharsets.UTF_8,
+			StandardCharsets.ISO_8859_1,
+			StandardCharsets.US_ASCII,
+			Charset.forName("windows-1252")
+	};
+	private static final String[] WORDS = {
+			"the", "cluster", "node", "patch", "build", "test", "failure", "release", "vote", "issue",
+			"namenode", "datanode", "map", "reduce", "job", "task", "tracker", "block", "replica", "config",
+			"should", "could", "would", "think", "agree", "commit", "branch", "trunk", "merge", "review",
+			"memory", "disk", "network", "timeout", "exception", "stack", "trace", "log", "file", "system",
+			"performance", "scale", "latency", "throughput", "index", "search", "query", "cache", "heap", "thread",
+			"café", "naïve", "résumé", "façade", "Größe", "déjà", "señor", "über", "smörgåsbord", "jalapeño"
+	};
+	private static final String[] TOPICS = {
+			"Build failure", "Release plan", "Proposal", "Patch review", "Performance regression",
+			"Question about", "Discussion", "Bug report", "Vote", "Design doc"
+	};
+
+	private long seed = 1;
+	private int messageCount = 10_000;
+	private int maxThreadDepth = 6;
+	private int maxFanOut = 3;
+	private double duplicateRate = 0.01;
+	private int minBodySize = 200;
+	private int maxBodySize = 8_000;
+	private int maxQuotedLines = 40;
+	private int senderCount = 500;
+	private int messagesPerFile = 50_000;
+
+	// State that's only used during a single call to generate().
+	private Random rand;
+	private OutputStream out;
+	private int messagesWritten;
+	private int messagesInFile;
+	private int fileIndex;
+	private ZonedDateTime date;
+	private Path dir;
+	private List<Path> files;
+
+	public SyntheticCorpusGenerator withSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Sets the total number of messages to generate, including duplicates.
+	 * @param messageCount The number of messages.
+	 * @return This generator.
+	 */
+	public SyntheticCorpusGenerator withMessageCount(int messageCount) {
+		if (messageCount < 0) throw new IllegalArgumentException("Message count must not be negative.");
+		this.messageCount = messageCount;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum depth of a thread, where a thread with only a root
+	 * message has a depth of 1.
+	 * @param maxThreadDepth The maximum depth.
+	 * @return This generator.
+	 */
+	public SyntheticCorpusGenerator withMaxThreadDepth(int maxThreadDepth) {
+		if (maxThreadDepth < 1) throw new IllegalArgumentException("Max thread depth must be at least 1.");
+		this.maxThreadDepth = maxThreadDepth;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of direct replies to any message. The actual
+	 * number is chosen uniformly between 0 and this value.
+	 * @param maxFanOut The maximum fan-out.
+	 * @return This generator.
+	 */
+	public SyntheticCorpusGenerator withMaxFanOut(int maxFanOut) {
+		if (maxFanOut < 0) throw new IllegalArgumentException("Max fan-out must not be negative.");
+		this.maxFanOut = maxFanOut;
+		return this;
+	}
+
+	/**
+	 * Sets the probability that a message is followed by a re-delivery of
+	 * itself, with the same Message-ID.
+	 * @param duplicateRate The probability, between 0 and 1.
+	 * @return This generator.
+	 */
+	public SyntheticCorpusGenerator withDuplicateRate(double duplicateRate) {
+		if (duplicateRate < 0 || duplicateRate > 1) throw new IllegalArgumentException("Duplicate rate must be between 0 and 1.");
+		this.duplicateRate = duplicateRate;
+		return this;
+	}
+
+	/**
+	 * Sets the range of sizes of a message's own text, in characters, not
+	 * counting any quoted content. Sizes are skewed towards the minimum.
+	 * @param minBodySize The minimum size.
+	 * @param maxBodySize The maximum size.
+	 * @return This generator.
+	 */
+	public SyntheticCorpusGenerator withBodySize(int minBodySize, int maxBodySize) {
+		if (minBodySize < 1 || maxBodySize < minBodySize) throw new IllegalArgumentException("Invalid body size range.");
+		this.minBodySize = minBodySize;
+		this.maxBodySize = maxBodySize;
+		return this;
+	}
+
+	public SyntheticCorpusGenerator withMaxQuotedLines(int maxQuotedLines) {
+		this.maxQuotedLines = maxQuotedLines;
+		return this;
+	}
+
+	public SyntheticCorpusGenerator withSenderCount(int senderCount) {
+		if (senderCount < 1) throw new IllegalArgumentException("Sender count must be at least 1.");
+		this.senderCount = senderCount;
+		return this;
+	}
+
+	public SyntheticCorpusGenerator withMessagesPerFile(int messagesPerFile) {
+		if (messagesPerFile < 1) throw new IllegalArgumentException("Messages per file must be at least 1.");
+		this.messagesPerFile = messagesPerFile;
+		return this;
+	}
+
+	/**
+	 * Generates the corpus in the given directory. Messages are streamed to
+	 * disk as they're generated, so memory usage doesn't depend on the
+	 * number of messages.
+	 * @param dir The directory to write mbox files to. It will be created if
+	 *            it doesn't exist yet.
+	 * @return The list of mbox files that were written.
+	 * @throws IOException If the files could not be written.
+	 */
+	public synchronized List<Path> generate(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		this.dir = dir;
+		this.rand = new Random(seed);
+		this.files = new ArrayList<>();
+		this.messagesWritten = 0;
+		this.messagesInFile = 0;
+		this.fileIndex = 0;
+		this.date = START_DATE;
+		try {
+			int threadIndex = 0;
+			while (messagesWritten < messageCount) {
+				String subject = TOPICS[rand.nextInt(TOPICS.length)] + " #" + threadIndex++;
+				writeThread(null, subject, null, 1);
+			}
+		} finally {
+			if (out != null) out.close();
+			out = null;
+			rand = null;
+		}
+		return files;
+	}
+
+	/**
+	 * Writes a message and, recursively, its replies.
+	 */
+	private void writeThread(String parentId, String subject, String parentBody, int depth) throws IOException {
+		if (messagesWritten >= messageCount) return;
+		String messageId = "<synthetic." + seed + "." + messagesWritten + "@example.org>";
+		String sender = pickSender();
+		date = date.plusSeconds(30 + rand.nextInt(3600));
+		String body = generateBody(sender, parentBody);
+		Charset charset = CHARSETS[rand.nextInt(CHARSETS.length)];
+		String fullSubject = parentId == null ? subject : "Re: " + subject;
+		writeMessage(messageId, parentId, fullSubject, sender, body, charset);
+		if (messagesWritten < messageCount && rand.nextDouble() < duplicateRate) {
+			writeMessage(messageId, parentId, fullSubject, sender, body, charset);
+		}
+		if (depth >= maxThreadDepth) return;
+		int replies = rand.nextInt(maxFanOut + 1);
+		for (int i = 0; i < replies; i++) {
+			writeThread(messageId, subject, body, depth + 1);
+		}
+	}
+
+	private void writeMessage(String messageId, String parentId, String subject, String sender, String body, Charset charset) throws IOException {
+		if (out == null || messagesInFile >= messagesPerFile) startNewFile();
+		String address = sender.toLowerCase(Locale.ROOT).replace(' ', '.') + "@example.org";
+		StringBuilder headers = new StringBuilder(512);
+		headers.append("From ").append(address).append(' ').append(FROM_LINE_DATE.format(date)).append('\n');
+		headers.append("Message-ID: ").append(messageId).append('\n');
+		if (parentId != null) {
+			headers.append("In-Reply-To: ").append(parentId).append('\n');
+			headers.append("References: ").append(parentId).append('\n');
+		}
+		headers.append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(date)).append('\n');
+		headers.append("From: \"").append(sender).append("\" <").append(address).append(">\n");
+		headers.append("To: dev@example.org\n");
+		headers.append("Subject: ").append(subject).append('\n');
+		headers.append("MIME-Version: 1.0\n");
+		headers.append("Content-Type: text/plain; charset=").append(charset.name()).append('\n');
+		headers.append("Content-Transfer-Encoding: ").append(charset == StandardCharsets.US_ASCII ? "7bit" : "8bit").append("\n\n");
+		out.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+		// Replace characters that the message's charset can't represent, instead of writing '?'.
+		String text = charset.newEncoder().canEncode(body) ? body : toAscii(body);
+		out.write(text.getBytes(charset));
+		out.write('\n');
+		messagesWritten++;
+		messagesInFile++;
+	}
+
+	private void startNewFile() throws IOException {
+		if (out != null) out.close();
+		Path file = dir.resolve("synthetic-%05d.mbox".formatted(fileIndex++));
+		out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+		files.add(file);
+		messagesInFile = 0;
+	}
+
+	/**
+	 * Picks a sender such that a few senders write most of the messages, like
+	 * on real mailing lists.
+	 */
+	private String pickSender() {
+		double r = rand.nextDouble();
+		return "User " + (int) (r * r * r * senderCount);
+	}
+
+	private String generateBody(String sender, String parentBody) {
+		int size = minBodySize + (int) (Math.pow(rand.nextDouble(), 3) * (maxBodySize - minBodySize));
+		StringBuilder sb = new StringBuilder(size + 256);
+		sb.append("Hi all,\n\n");
+		int lineStart = sb.length();
+		boolean sentenceStart = true;
+		while (sb.length() < size) {
+			String word = WORDS[rand.nextInt(WORDS.length)];
+			if (sentenceStart) {
+				word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+				sentenceStart = false;
+			}
+			sb.append(word);
+			if (rand.nextInt(12) == 0) {
+				sb.append('.');
+				sentenceStart = true;
+			}
+			if (sb.length() - lineStart > 72) {
+				sb.append(rand.nextInt(6) == 0 ? "\n\n" : "\n");
+				lineStart = sb.length();
+			} else {
+				sb.append(' ');
+			}
+		}
+		sb.append("\n\nThanks,\n").append(sender).append('\n');
+		if (parentBody != null) {
+			sb.append('\n');
+			boolean outlookStyle = rand.nextInt(5) == 0;
+			if (outlookStyle) {
+				sb.append("-----Original Message-----\n");
+			} else {
+				sb.append("On ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(date)).append(", someone wrote:\n");
+			}
+			int quotedLines = 0;
+			for (String line : parentBody.split("\n")) {
+				if (quotedLines++ >= maxQuotedLines) break;
+				if (!outlookStyle) sb.append(line.startsWith(">") ? ">" : "> ");
+				sb.append(line).append('\n');
+			}
+		}
+		return escapeFromLines(sb.toString());
+	}
+
+	/**
+	 * Escapes body lines that would otherwise be read as the start of a new
+	 * message, as is done by mboxrd.
+	 */
+	private static String escapeFromLines(String body) {
+		if (!body.startsWith("From ") && !body.contains("\nFrom ")) return body;
+		return body.replaceAll("(?m)^(>*From )", ">$1");
+	}
+
+	private static String toAscii(String s) {
+		String stripped = Normalizer.normalize(s, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+		StringBuilder sb = new StringBuilder(stripped.length());
+		for (int i = 0; i < stripped.length(); i++) {
+			char c = stripped.charAt(i);
+			sb.append(c < 128 ? c : '_');
+		}
+		return sb.toString();
+	}
+}
@@ -1,12 +1,12 @@
 package nl.andrewl.email_indexer.gen.transform;
 
-import nl.andrewl.mboxparser.Email;
+import nl.andrewl.email_indexer.gen.DecodedEmail;
 
 import java.util.function.Consumer;
 
-public class AddressCleaner implements Consumer<Email> {
+public class AddressCleaner implements Consumer<DecodedEmail> {
     @Override
-    public void accept(Email email) {
+    public void accept(DecodedEmail email) {
         email.messageId = strip("<", ">", email.messageId);
         email.inReplyTo = strip("<", ">", email.inReplyTo);
         email.sentFrom = strip("<", ">", email.sentFrom);
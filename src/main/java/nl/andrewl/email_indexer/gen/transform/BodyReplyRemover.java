@@ -1,25 +1,61 @@
 package nl.andrewl.email_indexer.gen.transform;
 
-import nl.andrewl.mboxparser.Email;
+import nl.andrewl.email_indexer.gen.DecodedEmail;
 
-import java.nio.charset.StandardCharsets;
 import java.util.function.Consumer;
 
-public class BodyReplyRemover implements Consumer<Email> {
+/**
+ * Removes quoted reply content from an email's body. Lines starting with ">"
+ * are dropped, and everything after an "-----Original Message-----" marker is
+ * discarded.
+ * <p>
+ *     This runs for every email that's ingested, so the body is scanned only
+ *     once, and kept lines are copied straight into the result without
+ *     creating intermediate strings.
+ * </p>
+ */
+public class BodyReplyRemover implements Consumer<DecodedEmail> {
+    private static final String ORIGINAL_MESSAGE_MARKER = "-----Original Message-----";
+
     @Override
-    public void accept(Email email) {
-        String[] lines = email.readBodyAsText().split("\n");
-        StringBuilder sb = new StringBuilder(email.body.length);
-        for (var line : lines) {
+    public void accept(DecodedEmail email) {
+        email.setBody(removeReplies(email.getBody()));
+    }
+
+    /**
+     * Removes quoted reply content from some text. Every kept line is
+     * terminated with a single newline, and trailing empty lines are removed.
+     * @param text The text to remove replies from.
+     * @return The remaining text.
+     */
+    public static String removeReplies(String text) {
+        // Trailing empty lines are ignored, but an empty text is treated as a single empty line.
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == '\n') end--;
+        if (end == 0) return text.isEmpty() ? "\n" : "";
+
+        StringBuilder sb = new StringBuilder(end + 1);
+        int lineStart = 0;
+        while (lineStart < end) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd == -1) lineEnd = end;
+            // Find the bounds of the line without its leading and trailing whitespace, like String.trim().
+            int first = lineStart;
+            while (first < lineEnd && text.charAt(first) <= ' ') first++;
+            int last = lineEnd;
+            while (last > first && text.charAt(last - 1) <= ' ') last--;
+
             // Quit if we see this: it means we're about to read a quoted original message in a reply.
-            if (line.trim().equalsIgnoreCase("-----Original Message-----")) break;
+            if (last - first == ORIGINAL_MESSAGE_MARKER.length() &&
+                    text.regionMatches(true, first, ORIGINAL_MESSAGE_MARKER, 0, ORIGINAL_MESSAGE_MARKER.length())) {
+                break;
+            }
             // Only add lines that don't start with ">" since this character is used to indicate quotes in 99% of cases.
-            if (!line.trim().startsWith(">")) {
-                sb.append(line).append("\n");
+            if (first == last || text.charAt(first) != '>') {
+                sb.append(text, lineStart, lineEnd).append('\n');
             }
+            lineStart = lineEnd + 1;
         }
-        email.body = sb.toString().getBytes(StandardCharsets.UTF_8);
-        email.charset = StandardCharsets.UTF_8.name();
-        email.transferEncoding = "8bit";
+        return sb.toString();
     }
 }
@@ -44,6 +44,27 @@ public class FileUtils {
 		}
 	}
 
+	/**
+	 * Deletes the files of a dataset that was only partially created in a
+	 * directory: its database, index and metadata. Any other files in the
+	 * directory are left alone.
+	 * @param dsDir The dataset's directory.
+	 */
+	public static void deleteDatasetFiles(Path dsDir) {
+		try {
+			Files.deleteIfExists(dsDir.resolve("database.mv.db"));
+			Files.deleteIfExists(dsDir.resolve("database.trace.db"));
+			Files.deleteIfExists(dsDir.resolve("metadata.properties"));
+			Path indexDir = dsDir.resolve("index");
+			if (Files.isDirectory(indexDir)) {
+				deleteFiles(indexDir);
+				Files.deleteIfExists(indexDir);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	public static Path getClasspathResourceAsPath(String name) {
 		URL url = Thread.currentThread().getContextClassLoader().getResource(name);
 		if (url == null) return null;
@@ -0,0 +1,153 @@
+package nl.andrewl.email_indexer.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * A thread-safe cache that evicts its least recently used entries once their
+ * total weight exceeds a maximum. By default, each entry weighs 1, so the
+ * maximum weight is a maximum number of entries.
+ * <p>
+ *     Values are loaded outside the cache's lock, so a slow load doesn't
+ *     block other lookups. If two threads load the same key at the same time,
+ *     both load it, and the last value is kept. A value whose load overlapped
+ *     with an invalidation isn't cached, since it may already be stale.
+ * </p>
+ * @param <K> The type of keys.
+ * @param <V> The type of values.
+ */
+public class LruCache<K, V> {
+	/**
+	 * A snapshot of a cache's statistics.
+	 * @param hits The number of lookups that were served from the cache.
+	 * @param misses The number of lookups that had to load their value.
+	 * @param evictions The number of entries that were evicted to make room.
+	 * @param size The number of entries in the cache.
+	 * @param weight The total weight of the entries in the cache.
+	 */
+	public record Stats(long hits, long misses, long evictions, int size, long weight) {
+		/**
+		 * Gets the fraction of lookups that were served from the cache.
+		 * @return The hit rate, between 0 and 1.
+		 */
+		public double hitRate() {
+			long lookups = hits + misses;
+			return lookups == 0 ? 0 : (double) hits / lookups;
+		}
+
+		@Override
+		public String toString() {
+			return "%d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries, weight %d".formatted(
+					hits, misses, hitRate() * 100, evictions, size, weight
+			);
+		}
+	}
+
+	private record Entry<V>(V value, long weight) {}
+
+	private final long maxWeight;
+	private final ToLongBiFunction<K, V> weigher;
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long weight;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/**
+	 * Constructs a cache with a custom weight for each entry.
+	 * @param maxWeight The maximum total weight of all entries.
+	 * @param weigher A function that gets the weight of an entry.
+	 */
+	public LruCache(long maxWeight, ToLongBiFunction<K, V> weigher) {
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Constructs a cache that holds a maximum number of entries.
+	 * @param maxSize The maximum number of entries.
+	 */
+	public LruCache(int maxSize) {
+		this(maxSize, (k, v) -> 1);
+	}
+
+	/**
+	 * Gets a value from the cache, or loads and caches it if it's not cached.
+	 * @param key The key to get the value for.
+	 * @param loader A function that loads the value for a key.
+	 * @return The value.
+	 */
+	public V get(K key, Function<K, V> loader) {
+		long invalidationsBeforeLoad;
+		synchronized (this) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null) {
+				hits++;
+				return entry.value();
+			}
+			misses++;
+			invalidationsBeforeLoad = invalidations;
+		}
+		V value = loader.apply(key);
+		synchronized (this) {
+			if (invalidations == invalidationsBeforeLoad) put(key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Puts a value in the cache, replacing any existing value. Values that
+	 * are heavier than the whole cache are not cached.
+	 * @param key The key.
+	 * @param value The value.
+	 */
+	public synchronized void put(K key, V value) {
+		long w = weigher.applyAsLong(key, value);
+		Entry<V> previous = entries.remove(key);
+		if (previous != null) weight -= previous.weight();
+		if (w > maxWeight) return;
+		entries.put(key, new Entry<>(value, w));
+		weight += w;
+		Iterator<Entry<V>> it = entries.values().iterator();
+		while (weight > maxWeight && it.hasNext()) {
+			weight -= it.next().weight();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Removes a value from the cache.
+	 * @param key The key of the value to remove.
+	 */
+	public synchronized void invalidate(K key) {
+		Entry<V> entry = entries.remove(key);
+		if (entry != null) weight -= entry.weight();
+		invalidations++;
+	}
+
+	/**
+	 * Removes all values from the cache.
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+		weight = 0;
+		invalidations++;
+	}
+
+	/**
+	 * Resets the hit, miss and eviction counters.
+	 */
+	public synchronized void resetStats() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(hits, misses, evictions, entries.size(), weight);
+	}
+}
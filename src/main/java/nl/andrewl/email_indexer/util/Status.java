@@ -1,23 +1,108 @@
 package nl.andrewl.email_indexer.util;
 
-import java.util.HashSet;
+import java.time.Duration;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 /**
  * A thread-safe object that can be used to track the status of an asynchronous
  * task, including messages emitted by that task, and possibly an indication of
- * the progress of the task.
+ * the progress of the task. The throughput and estimated remaining time of
+ * the task are derived from its progress.
+ * <p>
+ *     Messages and progress are delivered to consumers asynchronously, so that
+ *     a slow consumer never blocks the task. Messages are buffered up to
+ *     {@link #MESSAGE_CAPACITY}, and when a consumer falls behind, further
+ *     messages are skipped and the number of skipped messages is reported
+ *     instead. Progress is coalesced: consumers are only given the latest
+ *     progress, at most once every {@link #PROGRESS_INTERVAL}. Progress that
+ *     is held back by that is delivered once the interval is over, so the
+ *     consumers never keep showing stale progress. Use
+ *     {@link #flush()} to wait until everything sent so far is delivered.
+ * </p>
+ * <p>
+ *     A status can also be used to cancel its task. Tasks check for this at
+ *     points where they can stop safely, using {@link #checkCancelled()}.
+ *     Each {@link Task} has its own cancellation, so a status can be reused
+ *     for later tasks after one was cancelled, and cancelling one task
+ *     doesn't stop others that report to the same status.
+ * </p>
  */
 public class Status {
-	private final Set<Consumer<String>> messageConsumers = new HashSet<>();
-	private final Set<Consumer<Float>> progressConsumers = new HashSet<>();
+	/**
+	 * The maximum number of messages that wait to be delivered.
+	 */
+	public static final int MESSAGE_CAPACITY = 1000;
+	/**
+	 * The minimum time between two deliveries of progress.
+	 */
+	public static final Duration PROGRESS_INTERVAL = Duration.ofMillis(50);
 
-	private Integer totalSteps;
-	private int stepsDone = 0;
+	private static final Executor DELIVERY_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "status-delivery");
+		t.setDaemon(true);
+		return t;
+	});
+	private static final ScheduledExecutorService TRAILING_DELIVERY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "status-trailing-delivery");
+		t.setDaemon(true);
+		return t;
+	});
 
-	public Status(Integer totalSteps) {
+	private final Set<Consumer<String>> messageConsumers = new CopyOnWriteArraySet<>();
+	private final Set<Consumer<Float>> progressConsumers = new CopyOnWriteArraySet<>();
+
+	private volatile Integer totalSteps;
+	private final AtomicLong stepsDone = new AtomicLong();
+	private volatile long startedAt = System.nanoTime();
+	// Whether work that's done outside of a task was cancelled.
+	private volatile boolean cancelled = false;
+	// The cancellation flags of the tasks that are running with this status.
+	private final Set<AtomicBoolean> runningTasks = ConcurrentHashMap.newKeySet();
+	// The cancellation flag of the task that's running on the current thread.
+	private final ThreadLocal<AtomicBoolean> currentTask = new ThreadLocal<>();
+
+	private final Executor deliveryExecutor;
+	private final BlockingQueue<String> messages = new ArrayBlockingQueue<>(MESSAGE_CAPACITY);
+	private final AtomicInteger skippedMessages = new AtomicInteger();
+	private final AtomicBoolean deliveryScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean trailingDeliveryScheduled = new AtomicBoolean(false);
+	private final ReentrantLock deliveryLock = new ReentrantLock();
+	private volatile long lastProgressScheduledAt = 0;
+	// Only accessed while holding the delivery lock.
+	private float lastDeliveredProgress = Float.NaN;
+
+	/**
+	 * Creates a status that delivers messages and progress to its consumers
+	 * using the given executor. Using {@code Runnable::run} delivers them on
+	 * the task's own thread, except for progress that's delivered after the
+	 * {@link #PROGRESS_INTERVAL}, which is delivered on a shared timer thread.
+	 * @param totalSteps The total number of steps, or null if the task's
+	 *                   progress isn't tracked.
+	 * @param deliveryExecutor The executor to deliver messages and progress on.
+	 */
+	public Status(Integer totalSteps, Executor deliveryExecutor) {
 		this.totalSteps = totalSteps;
+		this.deliveryExecutor = deliveryExecutor;
+	}
+
+	public Status(Integer totalSteps) {
+		this(totalSteps, DELIVERY_EXECUTOR);
 	}
 
 	public Status() {
@@ -34,20 +119,49 @@ public class Status {
 		return this;
 	}
 
-	public void setTotalSteps(int totalSteps) {
+	/**
+	 * Starts tracking the progress of a (new) phase of the task, which
+	 * consists of the given number of steps. The steps done, and the time
+	 * that the throughput is measured from, are reset.
+	 * @param totalSteps The number of steps.
+	 */
+	public synchronized void setTotalSteps(int totalSteps) {
+		this.startedAt = System.nanoTime();
+		this.stepsDone.set(0);
 		this.totalSteps = totalSteps;
+		scheduleProgressDelivery(true);
+	}
+
+	/**
+	 * Sends a message to this status' consumers, without waiting for them. If
+	 * too many messages are waiting to be delivered, the message is skipped.
+	 * @param message The message to send.
+	 */
+	public void sendMessage(String message) {
+		if (messageConsumers.isEmpty()) return;
+		if (!messages.offer(message)) {
+			skippedMessages.incrementAndGet();
+		}
+		scheduleDelivery();
 	}
 
-	public synchronized void sendMessage(String message) {
-		messageConsumers.forEach(c -> c.accept(message));
+	public void incrementStepsDone() {
+		addStepsDone(1);
 	}
 
-	public synchronized void incrementStepsDone() {
-		if (!supportsProgress()) {
+	/**
+	 * Records that a number of steps were done. This may be called from many
+	 * threads at once.
+	 * @param steps The number of steps.
+	 */
+	public void addStepsDone(int steps) {
+		Integer total = totalSteps;
+		if (total == null) {
 			throw new UnsupportedOperationException("This status object does not support progress tracking.");
 		}
-		stepsDone++;
-		progressConsumers.forEach(c -> c.accept(getProgress()));
+		long done = stepsDone.addAndGet(steps);
+		// Always deliver the progress at the moment that the phase is finished.
+		scheduleProgressDelivery(done >= total && done - steps < total);
 	}
 
 	public boolean supportsProgress() {
@@ -55,8 +169,195 @@ public class Status {
 	}
 
 	public float getProgress() {
-		if (!supportsProgress()) return 0;
-		return (float) stepsDone / totalSteps;
+		Integer total = totalSteps;
+		if (total == null || total == 0) return 0;
+		return (float) stepsDone.get() / total;
+	}
+
+	/**
+	 * Gets the average number of steps that were done per second, since the
+	 * total number of steps was set.
+	 * @return The throughput in steps per second.
+	 */
+	public double getThroughput() {
+		double seconds = (System.nanoTime() - startedAt) / 1e9;
+		return seconds > 0 ? stepsDone.get() / seconds : 0;
+	}
+
+	/**
+	 * Estimates the time that it takes to do the remaining steps, at the
+	 * current throughput.
+	 * @return The estimated remaining time, or an empty optional if there's
+	 * no progress to base an estimate on yet.
+	 */
+	public Optional<Duration> getEstimatedTimeRemaining() {
+		Integer total = totalSteps;
+		double throughput = getThroughput();
+		if (total == null || throughput <= 0) return Optional.empty();
+		double seconds = Math.max(0, total - stepsDone.get()) / throughput;
+		return Optional.of(Duration.ofNanos((long) (seconds * 1e9)));
+	}
+
+	/**
+	 * Delivers all messages that were sent so far, and the latest progress, to
+	 * the consumers, and waits until that's done.
+	 */
+	public void flush() {
+		deliveryLock.lock();
+		try {
+			deliverPending();
+		} finally {
+			deliveryLock.unlock();
+		}
+	}
+
+	/**
+	 * Asks the tasks that are running with this status to stop, at the next
+	 * point where they can do so safely. Tasks that are started later aren't
+	 * affected. Work that uses this status outside of a {@link Task} has
+	 * nothing to scope the cancellation to, so it stays cancelled.
+	 */
+	public void cancel() {
+		cancelled = true;
+		for (var taskCancelled : runningTasks) taskCancelled.set(true);
+	}
+
+	/**
+	 * Checks whether the work on the current thread was cancelled.
+	 * @return True if the task that's running on this thread was cancelled,
+	 * or, outside of a task, if this status was cancelled.
+	 */
+	public boolean isCancelled() {
+		AtomicBoolean taskCancelled = currentTask.get();
+		return taskCancelled != null ? taskCancelled.get() : cancelled;
+	}
+
+	/**
+	 * Stops the task if it was cancelled, by throwing an exception. Tasks call
+	 * this at points where they can stop safely, and undo their partial work
+	 * when the exception is thrown.
+	 * @throws CancellationException If the task was cancelled.
+	 */
+	public void checkCancelled() {
+		if (isCancelled()) throw new CancellationException("The task was cancelled.");
+	}
+
+	/**
+	 * Marks the start of a task on the current thread, so that cancellation
+	 * is checked using the task's own flag.
+	 * @param taskCancelled The task's cancellation flag.
+	 * @return The flag of the task that was running on this thread before,
+	 * if any, to restore with {@link #exitTask(AtomicBoolean, AtomicBoolean)}.
+	 */
+	AtomicBoolean enterTask(AtomicBoolean taskCancelled) {
+		runningTasks.add(taskCancelled);
+		AtomicBoolean previous = currentTask.get();
+		currentTask.set(taskCancelled);
+		return previous;
+	}
+
+	/**
+	 * Marks the end of a task on the current thread.
+	 * @param taskCancelled The task's cancellation flag.
+	 * @param previous The flag that {@link #enterTask(AtomicBoolean)} returned.
+	 */
+	void exitTask(AtomicBoolean taskCancelled, AtomicBoolean previous) {
+		runningTasks.remove(taskCancelled);
+		if (previous == null) {
+			currentTask.remove();
+		} else {
+			currentTask.set(previous);
+		}
+	}
+
+	/**
+	 * Schedules the delivery of progress, unless it was already scheduled
+	 * within the last {@link #PROGRESS_INTERVAL}. In that case, a delivery is
+	 * scheduled for when the interval is over, so that the latest progress
+	 * is delivered even if no other update comes in.
+	 * @param force Whether to schedule the delivery regardless of the interval,
+	 *              like when a phase starts or ends.
+	 */
+	private void scheduleProgressDelivery(boolean force) {
+		if (progressConsumers.isEmpty()) return;
+		long now = System.nanoTime();
+		long sinceLast = now - lastProgressScheduledAt;
+		if (force || sinceLast >= PROGRESS_INTERVAL.toNanos()) {
+			lastProgressScheduledAt = now;
+			scheduleDelivery();
+		} else if (trailingDeliveryScheduled.compareAndSet(false, true)) {
+			try {
+				TRAILING_DELIVERY_SCHEDULER.schedule(() -> {
+					trailingDeliveryScheduled.set(false);
+					lastProgressScheduledAt = System.nanoTime();
+					scheduleDelivery();
+				}, PROGRESS_INTERVAL.toNanos() - sinceLast, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				trailingDeliveryScheduled.set(false);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that a delivery is scheduled, if none is pending already.
+	 * Only one delivery is pending at any time, so updates that are made in
+	 * the meantime are coalesced into it.
+	 */
+	private void scheduleDelivery() {
+		if (deliveryScheduled.compareAndSet(false, true)) {
+			try {
+				deliveryExecutor.execute(this::deliver);
+			} catch (RejectedExecutionException e) {
+				deliveryScheduled.set(false);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void deliver() {
+		deliveryLock.lock();
+		try {
+			// Anything that's sent after this schedules another delivery.
+			deliveryScheduled.set(false);
+			deliverPending();
+		} finally {
+			deliveryLock.unlock();
+		}
+	}
+
+	private void deliverPending() {
+		String message;
+		while ((message = messages.poll()) != null) {
+			deliverMessage(message);
+		}
+		int skipped = skippedMessages.getAndSet(0);
+		if (skipped > 0) {
+			deliverMessage("(%d messages were skipped)".formatted(skipped));
+		}
+		if (supportsProgress()) {
+			float progress = getProgress();
+			if (progress != lastDeliveredProgress) {
+				lastDeliveredProgress = progress;
+				for (var consumer : progressConsumers) {
+					try {
+						consumer.accept(progress);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	private void deliverMessage(String message) {
+		for (var consumer : messageConsumers) {
+			try {
+				consumer.accept(message);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	public static Status noOp() {
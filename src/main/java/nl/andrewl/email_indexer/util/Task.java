@@ -0,0 +1,115 @@
+package nl.andrewl.email_indexer.util;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handle to a long-running operation, like generating, indexing, exporting
+ * or upgrading a dataset. It's a future that completes when the operation is
+ * done, which also gives access to the {@link Status} that the operation
+ * reports its progress through.
+ * <p>
+ *     Cancellation is cooperative: {@link #cancel(boolean)} only asks the
+ *     operation to stop, which it does at the next point where it's safe to do
+ *     so, after undoing its partial changes. Only then does this future
+ *     complete with a {@link CancellationException}, so once it's done, the
+ *     dataset is consistent again. Only this task is cancelled, even if other
+ *     tasks report to the same status, like those of a single generator.
+ * </p>
+ * <p>
+ *     The status is flushed before this future completes, so all of the
+ *     operation's messages are delivered by then. This future always
+ *     completes, even if the operation fails with an {@link Error}.
+ * </p>
+ * @param <T> The type of the operation's result.
+ */
+public class Task<T> extends CompletableFuture<T> {
+	private final Status status;
+	private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+	private Task(Status status) {
+		this.status = status;
+	}
+
+	/**
+	 * Runs an operation using {@link ForkJoinPool#commonPool()}.
+	 * @param status The status that the operation reports to, and checks for
+	 *               cancellation.
+	 * @param runnable The operation.
+	 * @return The task.
+	 */
+	public static Task<Void> run(Status status, Async.UnsafeRunnable runnable) {
+		return supply(status, () -> {
+			runnable.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Runs an operation that produces a result using
+	 * {@link ForkJoinPool#commonPool()}.
+	 * @param status The status that the operation reports to, and checks for
+	 *               cancellation.
+	 * @param supplier The operation.
+	 * @return The task.
+	 * @param <T> The type of the operation's result.
+	 */
+	public static <T> Task<T> supply(Status status, Async.UnsafeSupplier<T> supplier) {
+		Task<T> task = new Task<>(status);
+		ForkJoinPool.commonPool().submit(() -> {
+			AtomicBoolean previousTask = status.enterTask(task.cancelled);
+			try {
+				status.checkCancelled();
+				T result = supplier.supply();
+				status.flush();
+				task.complete(result);
+			} catch (Throwable t) {
+				// Errors too, or else the task would never complete.
+				status.flush();
+				task.completeExceptionally(t);
+			} finally {
+				status.exitTask(task.cancelled, previousTask);
+			}
+		});
+		return task;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Asks the operation to stop. Unlike other futures, this one isn't done
+	 * right away, but once the operation has stopped and undone its partial
+	 * changes.
+	 * @param mayInterruptIfRunning Ignored, since operations are never
+	 *                              interrupted.
+	 * @return False if the operation was already done, or true otherwise.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (isDone()) return false;
+		cancelled.set(true);
+		return true;
+	}
+
+	/**
+	 * Gets the operation's throughput in its current phase.
+	 * @return The number of items that are processed per second.
+	 */
+	public double getThroughput() {
+		return status.getThroughput();
+	}
+
+	/**
+	 * Estimates the time until the operation's current phase is done.
+	 * @return The estimated remaining time, if it's known.
+	 */
+	public Optional<Duration> getEstimatedTimeRemaining() {
+		return status.getEstimatedTimeRemaining();
+	}
+}
@@ -6,7 +6,9 @@ SELECT
     EMAIL.IN_REPLY_TO,
     EMAIL.SENT_FROM,
     EMAIL.DATE,
-    EMAIL.BODY,
-    EMAIL.HIDDEN
+    B.BODY,
+    EMAIL.HIDDEN,
+    B.BODY_COMPRESSED
 FROM EMAIL
+LEFT JOIN EMAIL_BODY B ON B.EMAIL_ID = EMAIL.ID
 WHERE EMAIL.ID = ?
@@ -0,0 +1,9 @@
+SELECT
+    EMAIL.ID,
+    EMAIL.SUBJECT,
+    B.BODY,
+    B.BODY_COMPRESSED
+FROM EMAIL
+JOIN EMAIL_BODY B ON B.EMAIL_ID = EMAIL.ID
+WHERE EMAIL.HIDDEN = FALSE AND (B.BODY IS NOT NULL OR B.BODY_COMPRESSED IS NOT NULL)
+ORDER BY EMAIL.ID
@@ -0,0 +1,13 @@
+/* Finds the root of each reply's thread, by walking down from all root emails. */
+WITH RECURSIVE THREAD (ID, ROOT_ID) AS (
+    SELECT EMAIL.ID, EMAIL.ID
+    FROM EMAIL
+    WHERE EMAIL.PARENT_ID IS NULL
+    UNION ALL
+    SELECT EMAIL.ID, THREAD.ROOT_ID
+    FROM EMAIL
+    JOIN THREAD ON EMAIL.PARENT_ID = THREAD.ID
+)
+SELECT ID, ROOT_ID
+FROM THREAD
+WHERE ID <> ROOT_ID
@@ -6,9 +6,7 @@ SELECT
     EMAIL.SENT_FROM,
     EMAIL.DATE,
     EMAIL.HIDDEN
-FROM EMAIL
-LEFT JOIN EMAIL_TAG ET ON EMAIL.ID = ET.EMAIL_ID
-LEFT JOIN TAG ON ET.TAG_ID = TAG.ID
-WHERE TAG.ID = ?
-GROUP BY EMAIL.ID
-ORDER BY MAX(EMAIL.DATE) DESC
+FROM EMAIL_TAG ET
+JOIN EMAIL ON EMAIL.ID = ET.EMAIL_ID
+WHERE ET.TAG_ID = ?
+ORDER BY EMAIL.DATE DESC
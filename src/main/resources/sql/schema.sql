@@ -1,3 +1,12 @@
+/* The distinct addresses that emails were sent from, so that emails can be found by sender or domain using an index. */
+CREATE TABLE ADDRESS (
+    ID INTEGER PRIMARY KEY AUTO_INCREMENT,
+    ADDRESS VARCHAR(255) NOT NULL UNIQUE,
+    DISPLAY_NAME VARCHAR(255),
+    DOMAIN VARCHAR(255)
+);
+CREATE INDEX IDX_ADDRESS_DOMAIN ON ADDRESS(DOMAIN);
+
 CREATE TABLE EMAIL (
     ID BIGINT PRIMARY KEY AUTO_INCREMENT,
     PARENT_ID BIGINT NULL DEFAULT NULL REFERENCES EMAIL(ID)
@@ -6,13 +15,29 @@ CREATE TABLE EMAIL (
     SUBJECT VARCHAR(1024),
     IN_REPLY_TO VARCHAR(255),
     SENT_FROM VARCHAR(255),
+    ADDRESS_ID INTEGER NULL DEFAULT NULL REFERENCES ADDRESS(ID)
+        ON UPDATE CASCADE ON DELETE SET NULL,
     DATE TIMESTAMP WITH TIME ZONE,
-    BODY LONGTEXT,
     HIDDEN BOOL NOT NULL DEFAULT FALSE,
     CHECK (PARENT_ID IS NULL OR PARENT_ID <> ID)
 );
-CREATE INDEX IDX_EMAIL_DATE ON EMAIL(DATE);
-CREATE INDEX IDX_EMAIL_HIDDEN ON EMAIL(HIDDEN);
+/* Foreign key columns like PARENT_ID and ADDRESS_ID are indexed by H2 itself. This index matches the search ordering, so that pages are read in order. */
+CREATE INDEX IDX_EMAIL_DATE_MESSAGE_ID ON EMAIL(DATE DESC, MESSAGE_ID);
+CREATE INDEX IDX_EMAIL_IN_REPLY_TO ON EMAIL(IN_REPLY_TO);
+
+/* Bodies are kept apart from the other email data, so that queries which don't need them read far fewer pages. */
+CREATE TABLE EMAIL_BODY (
+    EMAIL_ID BIGINT PRIMARY KEY REFERENCES EMAIL(ID)
+        ON UPDATE CASCADE ON DELETE CASCADE,
+    BODY LONGTEXT,
+    /* The body compressed with a dictionary from BODY_DICTIONARY, if BODY is null. */
+    BODY_COMPRESSED VARBINARY
+);
+
+CREATE TABLE BODY_DICTIONARY (
+    ID BIGINT PRIMARY KEY,
+    DICTIONARY VARBINARY(32768) NOT NULL
+);
 
 CREATE TABLE TAG (
     ID INTEGER PRIMARY KEY AUTO_INCREMENT,
@@ -44,4 +69,12 @@ CREATE TABLE MUTATION_EMAIL (
     EMAIL_ID BIGINT NOT NULL REFERENCES EMAIL(ID)
         ON UPDATE CASCADE ON DELETE CASCADE,
     PRIMARY KEY (MUTATION_ID, EMAIL_ID)
-);
\ No newline at end of file
+);
+/* Emails whose bodies are near-duplicates of an earlier email, as found during generation. The first email of each cluster isn't included. */
+CREATE TABLE DUPLICATE_CLUSTER (
+    EMAIL_ID BIGINT PRIMARY KEY REFERENCES EMAIL(ID)
+        ON UPDATE CASCADE ON DELETE CASCADE,
+    CLUSTER_EMAIL_ID BIGINT NOT NULL REFERENCES EMAIL(ID)
+        ON UPDATE CASCADE ON DELETE CASCADE,
+    DISTANCE INTEGER NOT NULL
+);
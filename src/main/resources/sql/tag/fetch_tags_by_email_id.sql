@@ -2,7 +2,7 @@ SELECT
     TAG.ID,
     TAG.NAME,
     TAG.DESCRIPTION
-FROM TAG
-LEFT JOIN EMAIL_TAG ET ON TAG.ID = ET.TAG_ID
+FROM EMAIL_TAG ET
+JOIN TAG ON TAG.ID = ET.TAG_ID
 WHERE ET.EMAIL_ID = ?
 ORDER BY TAG.NAME
@@ -0,0 +1,27 @@
+/* Adds tables that were introduced after a version 2 dataset may have been generated. Safe to run many times. */
+CREATE TABLE IF NOT EXISTS EMAIL_BODY (
+    EMAIL_ID BIGINT PRIMARY KEY REFERENCES EMAIL(ID)
+        ON UPDATE CASCADE ON DELETE CASCADE,
+    BODY LONGTEXT,
+    BODY_COMPRESSED VARBINARY
+);
+CREATE TABLE IF NOT EXISTS BODY_DICTIONARY (
+    ID BIGINT PRIMARY KEY,
+    DICTIONARY VARBINARY(32768) NOT NULL
+);
+CREATE TABLE IF NOT EXISTS DUPLICATE_CLUSTER (
+    EMAIL_ID BIGINT PRIMARY KEY REFERENCES EMAIL(ID)
+        ON UPDATE CASCADE ON DELETE CASCADE,
+    CLUSTER_EMAIL_ID BIGINT NOT NULL REFERENCES EMAIL(ID)
+        ON UPDATE CASCADE ON DELETE CASCADE,
+    DISTANCE INTEGER NOT NULL
+);
+CREATE TABLE IF NOT EXISTS ADDRESS (
+    ID INTEGER PRIMARY KEY AUTO_INCREMENT,
+    ADDRESS VARCHAR(255) NOT NULL UNIQUE,
+    DISPLAY_NAME VARCHAR(255),
+    DOMAIN VARCHAR(255)
+);
+CREATE INDEX IF NOT EXISTS IDX_ADDRESS_DOMAIN ON ADDRESS(DOMAIN);
+ALTER TABLE EMAIL ADD COLUMN IF NOT EXISTS ADDRESS_ID INTEGER NULL DEFAULT NULL REFERENCES ADDRESS(ID)
+    ON UPDATE CASCADE ON DELETE SET NULL;
@@ -0,0 +1,5 @@
+/* Replaces the indexes of older datasets by the ones in the current schema. Safe to run many times. */
+DROP INDEX IF EXISTS IDX_EMAIL_DATE;
+DROP INDEX IF EXISTS IDX_EMAIL_HIDDEN;
+CREATE INDEX IF NOT EXISTS IDX_EMAIL_DATE_MESSAGE_ID ON EMAIL(DATE DESC, MESSAGE_ID);
+CREATE INDEX IF NOT EXISTS IDX_EMAIL_IN_REPLY_TO ON EMAIL(IN_REPLY_TO);
@@ -2,23 +2,34 @@ package nl.andrewl.email_indexer.gen;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.h2.store.fs.FileUtils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import nl.andrewl.email_indexer.data.AddressRepository;
+import nl.andrewl.email_indexer.data.DatasetCache;
 import nl.andrewl.email_indexer.data.EmailDataset;
 import nl.andrewl.email_indexer.data.EmailRepository;
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
+import nl.andrewl.email_indexer.data.IndexDirectoryConfig;
+import nl.andrewl.email_indexer.data.QueryCache;
 import nl.andrewl.email_indexer.data.Tag;
 import nl.andrewl.email_indexer.data.TagRepository;
 import nl.andrewl.email_indexer.data.export.ExporterParameters;
@@ -28,12 +39,19 @@ import nl.andrewl.email_indexer.data.export.datasample.datatype.TxtExporter;
 import nl.andrewl.email_indexer.data.export.datasample.sampletype.FilterExporter;
 import nl.andrewl.email_indexer.data.export.datasample.sampletype.QueryExporter;
 import nl.andrewl.email_indexer.data.export.dataset.ZipExporter;
+import nl.andrewl.email_indexer.data.imports.ZipImporter;
 import nl.andrewl.email_indexer.data.search.EmailIndexSearcher;
+import nl.andrewl.email_indexer.data.search.EmailSearcher;
 import nl.andrewl.email_indexer.data.search.SearchFilter;
+import nl.andrewl.email_indexer.data.search.filter.BodyLikeFilter;
 import nl.andrewl.email_indexer.data.search.filter.HiddenFilter;
 import nl.andrewl.email_indexer.data.search.filter.RootFilter;
+import nl.andrewl.email_indexer.data.search.filter.SenderFilter;
+import nl.andrewl.email_indexer.data.search.filter.SentFromLikeFilter;
+import nl.andrewl.email_indexer.data.search.filter.SubjectLikeFilter;
 import nl.andrewl.email_indexer.data.search.filter.TagFilter;
 import nl.andrewl.email_indexer.util.DbUtils;
+import nl.andrewl.email_indexer.util.Status;
 
 /**
  * A test which runs through some common dataset workflows.
@@ -67,6 +85,365 @@ public class EmailDatasetIntegrationTests {
 		ds.close().join();
 	}
 
+	@Test
+	public void testGenerateInMemory() throws IOException, ParseException {
+		InMemoryEmailDataset memDs = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		long emailCount = new EmailRepository(memDs).countEmails();
+		assertTrue(emailCount > 0);
+		var results = new EmailIndexSearcher().search(memDs, "t*", 100);
+		assertTrue(results.size() > 0);
+		Path dsDir = TEST_DIR.resolve("__test_gen_in_memory");
+		memDs.persist(dsDir).join();
+		memDs.close().join();
+		// Reopen the persisted dataset and check that it's the same.
+		EmailDataset ds = EmailDataset.open(dsDir).join();
+		assertEquals(emailCount, new EmailRepository(ds).countEmails());
+		assertEquals(results, new EmailIndexSearcher().search(ds, "t*", 100));
+		ds.close().join();
+	}
+
+	@Test
+	public void testSinglePassIndexing() throws IOException, ParseException {
+		Set<Path> dirs = Set.of(Path.of("test_emails"));
+		InMemoryEmailDataset twoPass = new EmailDatasetGenerator().generateInMemory(dirs).join();
+		InMemoryEmailDataset singlePass = new EmailDatasetGenerator().withSinglePassIndexing(true).generateInMemory(dirs).join();
+		Path dsDir = TEST_DIR.resolve("__test_gen_single_pass");
+		new EmailDatasetGenerator().withSinglePassIndexing(true).generate(dirs, dsDir).join();
+		EmailDataset singlePassDs = EmailDataset.open(dsDir).join();
+		var searcher = new EmailIndexSearcher();
+		for (var query : List.of("t*", "hadoop", "namenode AND datanode")) {
+			var expectedThreads = Set.copyOf(searcher.search(twoPass, query, 10_000));
+			var expectedEmails = Set.copyOf(searcher.searchEmails(twoPass, query, 10_000));
+			assertFalse(expectedThreads.isEmpty());
+			for (var ds : List.of(singlePass, singlePassDs)) {
+				assertEquals(expectedThreads, Set.copyOf(searcher.search(ds, query, 10_000)));
+				assertEquals(expectedEmails, Set.copyOf(searcher.searchEmails(ds, query, 10_000)));
+			}
+		}
+		twoPass.close().join();
+		singlePass.close().join();
+		singlePassDs.close().join();
+	}
+
+	@Test
+	public void testBodyCompression() {
+		Set<Path> dirs = Set.of(Path.of("test_emails"));
+		InMemoryEmailDataset plain = new EmailDatasetGenerator().generateInMemory(dirs).join();
+		InMemoryEmailDataset compressed = new EmailDatasetGenerator().withBodyCompression(true).generateInMemory(dirs).join();
+		assertTrue(DbUtils.count(compressed.getConnection(), "SELECT COUNT(EMAIL_ID) FROM EMAIL_BODY WHERE BODY_COMPRESSED IS NOT NULL") > 0);
+		var plainRepo = new EmailRepository(plain);
+		var compressedRepo = new EmailRepository(compressed);
+		var ids = DbUtils.fetch(plain.getConnection(), "SELECT ID FROM EMAIL", rs -> rs.getLong(1));
+		for (long id : ids) {
+			assertEquals(plainRepo.findEmailById(id), compressedRepo.findEmailById(id));
+			assertEquals(plainRepo.getBody(id), compressedRepo.getBody(id));
+		}
+		List<SearchFilter> filters = List.of(new BodyLikeFilter("namenode"));
+		long count = new EmailSearcher(plain).countAll(filters).join();
+		assertTrue(count > 0);
+		assertEquals(count, new EmailSearcher(compressed).countAll(filters).join());
+		plain.close().join();
+		compressed.close().join();
+	}
+
+	@Test
+	public void testFunctionsAreNotPersisted() throws SQLException {
+		EmailDataset ds = genDataset("__test_functions");
+		assertTrue(new EmailSearcher(ds).countAll(List.of(new BodyLikeFilter("namenode"))).join() > 0);
+		Path dbFile = ds.getDatabaseFile();
+		ds.close().join();
+		// The database can be opened without the BODY_TEXT function's class.
+		try (var conn = DriverManager.getConnection(EmailDataset.getJdbcUrl(dbFile))) {
+			assertEquals(0, DbUtils.count(conn, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.ROUTINES WHERE ROUTINE_NAME = 'BODY_TEXT'"));
+		}
+	}
+
+	@Test
+	public void testBodyQuery() throws IOException, ParseException {
+		InMemoryEmailDataset ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		var searcher = new EmailSearcher(ds);
+		var indexSearcher = new EmailIndexSearcher();
+		long likeCount = searcher.countAll(List.of(new BodyLikeFilter("namenode"))).join();
+		long indexedCount = searcher.countAll(List.of(indexSearcher.bodyFilter(ds, "namenode"))).join();
+		assertTrue(indexedCount > 0);
+		assertTrue(indexedCount <= likeCount);
+		assertTrue(searcher.countAll(List.of(indexSearcher.bodyFilter(ds, "\"namenode is\""))).join() <= indexedCount);
+		assertEquals(0, searcher.countAll(List.of(indexSearcher.bodyFilter(ds, "xyzzyplugh"))).join());
+
+		var repo = new EmailRepository(ds);
+		assertEquals(indexedCount, repo.hideAllEmailsByBodyQuery("namenode"));
+		assertEquals(0, repo.hideAllEmailsByBodyQuery("namenode"));
+		assertEquals(0, searcher.countAll(List.of(new HiddenFilter(false), indexSearcher.bodyFilter(ds, "namenode"))).join());
+		ds.close().join();
+	}
+
+	@Test
+	public void testTrigramFilters() {
+		InMemoryEmailDataset ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		List<SearchFilter> filters = List.of(
+				new SubjectLikeFilter("re"),
+				new SubjectLikeFilter("hadoop"),
+				new SubjectLikeFilter("HDFS-"),
+				new SubjectLikeFilter("name%node"),
+				new SubjectLikeFilter("xyzzyplugh"),
+				new SentFromLikeFilter("@apache.org"),
+				new SentFromLikeFilter("a_ache")
+		);
+		var plainSearcher = new EmailSearcher(ds);
+		List<Long> expectedCounts = new ArrayList<>();
+		for (var filter : filters) expectedCounts.add(plainSearcher.countAll(List.of(filter)).join());
+		assertTrue(expectedCounts.get(1) > 0);
+
+		ds.setCache(new DatasetCache());
+		var indexedSearcher = new EmailSearcher(ds);
+		for (int i = 0; i < filters.size(); i++) {
+			assertEquals(expectedCounts.get(i), indexedSearcher.countAll(List.of(filters.get(i))).join(), filters.get(i).toString());
+		}
+		String sentFrom = DbUtils.fetchOne(ds.getConnection(), "SELECT SENT_FROM FROM EMAIL LIMIT 1", rs -> rs.getString(1)).orElseThrow();
+		String pattern = "%" + sentFrom.substring(1, sentFrom.length() - 1) + "%";
+		long expected = DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM EMAIL WHERE SENT_FROM LIKE ?", pattern);
+		assertEquals(expected, new EmailRepository(ds).hideAllEmailsBySentFrom(pattern));
+		ds.close().join();
+	}
+
+	@Test
+	public void testAddresses() {
+		InMemoryEmailDataset ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		var addressRepo = new AddressRepository(ds);
+		assertEquals(0, DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM EMAIL WHERE SENT_FROM IS NOT NULL AND ADDRESS_ID IS NULL"));
+		var topSenders = addressRepo.countEmailsBySender(3);
+		assertEquals(3, topSenders.size());
+		String topSender = topSenders.keySet().iterator().next();
+		long expected = DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM EMAIL WHERE LOWER(SENT_FROM) = ?", topSender);
+		assertEquals(expected, topSenders.get(topSender));
+		assertEquals(expected, addressRepo.countEmailsByAddress(topSender.toUpperCase()));
+
+		String domain = addressRepo.findByAddress(topSender).orElseThrow().domain();
+		long domainCount = new EmailSearcher(ds).countAll(List.of(SenderFilter.domain(domain))).join();
+		assertEquals(addressRepo.countEmailsByDomain(100).get(domain), domainCount);
+		assertEquals(expected, new EmailSearcher(ds).countAll(List.of(SenderFilter.address(topSender))).join());
+		assertEquals(domainCount, new EmailRepository(ds).hideAllEmailsByDomain(domain));
+		assertEquals(0, new EmailRepository(ds).hideAllEmailsByAddress(topSender));
+		ds.close().join();
+	}
+
+	@Test
+	public void testCache() {
+		InMemoryEmailDataset ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		DatasetCache cache = new DatasetCache();
+		ds.setCache(cache);
+		var emailRepo = new EmailRepository(ds);
+		var tagRepo = new TagRepository(ds);
+		long id = DbUtils.fetchOne(ds.getConnection(), "SELECT ID FROM EMAIL WHERE PARENT_ID IS NULL LIMIT 1", rs -> rs.getLong(1)).orElseThrow();
+		var email = emailRepo.findEmailById(id).orElseThrow();
+		assertEquals(email, new EmailRepository(ds).findEmailById(id).orElseThrow());
+		assertEquals(1, cache.getStats().get("emails").hits());
+
+		// Mutations through the repositories should never leave stale data in the cache.
+		emailRepo.findPreviewById(id);
+		emailRepo.hideEmail(id);
+		assertTrue(emailRepo.findEmailById(id).orElseThrow().hidden());
+		assertTrue(emailRepo.findPreviewById(id).orElseThrow().hidden());
+		assertTrue(tagRepo.getTags(id).isEmpty());
+		Tag tag = tagRepo.createTag("cached", null);
+		tagRepo.addTag(id, tag.id());
+		assertEquals(List.of(tag), tagRepo.getTags(id));
+		tagRepo.setName(tag.id(), "renamed");
+		assertEquals("renamed", tagRepo.getTags(id).get(0).name());
+		assertEquals("renamed", tagRepo.getTagById(tag.id()).orElseThrow().name());
+		tagRepo.removeTag(id, tag.id());
+		assertTrue(tagRepo.getTags(id).isEmpty());
+		emailRepo.deleteAllHidden();
+		assertTrue(emailRepo.findEmailById(id).isEmpty());
+		ds.close().join();
+	}
+
+	@Test
+	public void testTagIndex() throws SQLException {
+		InMemoryEmailDataset ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		var tagRepo = new TagRepository(ds);
+		int a = tagRepo.createTag("A", null).id();
+		int b = tagRepo.createTag("B", null).id();
+		List<Long> ids = DbUtils.fetch(ds.getConnection(), "SELECT ID FROM EMAIL ORDER BY ID", rs -> rs.getLong(1));
+		for (int i = 0; i < ids.size(); i++) {
+			if (i % 2 == 0) tagRepo.addTag(ids.get(i), a);
+			if (i % 3 == 0) tagRepo.addTag(ids.get(i), b);
+		}
+		List<TagFilter> filters = List.of(
+				TagFilter.includeNone(),
+				TagFilter.excludeNone(),
+				TagFilter.including(List.of(a, b)),
+				TagFilter.excluding(List.of(a)),
+				TagFilter.including(List.of(Integer.MAX_VALUE))
+		);
+		var sqlSearcher = new EmailSearcher(ds.getConnection());
+		List<Long> expectedCounts = new ArrayList<>();
+		for (var filter : filters) expectedCounts.add(sqlSearcher.countAll(List.of(filter)).join());
+
+		ds.setCache(new DatasetCache());
+		tagRepo = new TagRepository(ds);
+		var indexedSearcher = new EmailSearcher(ds);
+		for (int i = 0; i < filters.size(); i++) {
+			assertEquals(expectedCounts.get(i), indexedSearcher.countAll(List.of(filters.get(i))).join());
+		}
+		var index = tagRepo.getTagIndex();
+		assertEquals((ids.size() + 5) / 6, indexedSearcher.countAll(List.of(index.withAllTags(List.of(a, b)))).join());
+		assertEquals(ids.size() / 2, indexedSearcher.countAll(List.of(index.withTag(a).not())).join());
+		assertEquals(expectedCounts.get(0), indexedSearcher.countAll(List.of(index.withTag(a).or(index.withTag(b)).not())).join());
+
+		// Changes through the repository should be applied to the index.
+		tagRepo.removeTag(ids.get(0), a);
+		assertEquals((ids.size() + 1) / 2 - 1, tagRepo.countTaggedEmails(a));
+		tagRepo.deleteTag(b);
+		assertEquals(ids.size() - index.count(a), indexedSearcher.countAll(List.of(TagFilter.includeNone())).join());
+		ds.close().join();
+	}
+
+	@Test
+	public void testTagStats() throws SQLException {
+		InMemoryEmailDataset ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		ds.setCache(new DatasetCache());
+		var tagRepo = new TagRepository(ds);
+		int a = tagRepo.createTag("A", null).id();
+		int b = tagRepo.createTag("B", null).id();
+		int c = tagRepo.createTag("C", null).id();
+		assertTrue(tagRepo.getStats().emailCounts().isEmpty());// Loads the index before any tags are applied.
+
+		long rootId = DbUtils.fetchOne(ds.getConnection(), "SELECT PARENT_ID FROM EMAIL WHERE PARENT_ID IS NOT NULL LIMIT 1", rs -> rs.getLong(1)).orElseThrow();
+		tagRepo.addTagRecursive(rootId, a);
+		List<Long> ids = DbUtils.fetch(ds.getConnection(), "SELECT ID FROM EMAIL ORDER BY ID", rs -> rs.getLong(1));
+		for (int i = 0; i < ids.size(); i += 2) tagRepo.addTag(ids.get(i), b);
+		for (int i = 0; i < ids.size(); i += 3) tagRepo.addTag(ids.get(i), c);
+		tagRepo.removeTag(ids.get(0), b);
+
+		var stats = tagRepo.getStats();
+		assertEquals(1, stats.threadCount(a));
+		assertTrue(stats.emailCount(a) > 1);
+		for (int tag : List.of(a, b, c)) {
+			assertEquals(tagRepo.countTaggedEmails(tag), stats.emailCount(tag));
+			for (int other : List.of(a, b, c)) {
+				long both = DbUtils.count(
+						ds.getConnection(),
+						"SELECT COUNT(*) FROM EMAIL_TAG T1 JOIN EMAIL_TAG T2 ON T1.EMAIL_ID = T2.EMAIL_ID WHERE T1.TAG_ID = ? AND T2.TAG_ID = ?",
+						tag, other
+				);
+				assertEquals(both, stats.cooccurrence(tag, other));
+			}
+		}
+		// The incrementally updated statistics should match freshly loaded ones.
+		assertEquals(new TagRepository(ds.getConnection()).getStats(), stats);
+
+		tagRepo.deleteTag(b);
+		stats = tagRepo.getStats();
+		assertEquals(0, stats.emailCount(b));
+		assertEquals(0, stats.cooccurrence(a, b));
+		assertEquals(new TagRepository(ds.getConnection()).getStats(), stats);
+		ds.close().join();
+	}
+
+	@Test
+	public void testBatchTags() throws SQLException {
+		InMemoryEmailDataset ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		ds.setCache(new DatasetCache());
+		var tagRepo = new TagRepository(ds);
+		var emailRepo = new EmailRepository(ds);
+		List<Long> ids = DbUtils.fetch(ds.getConnection(), "SELECT ID FROM EMAIL ORDER BY ID", rs -> rs.getLong(1));
+		List<Long> half = ids.subList(0, ids.size() / 2);
+		tagRepo.addTag(ids.get(0), "batch");
+		assertEquals(ids.size() - 1, tagRepo.addTags(ids, "batch"));
+		assertEquals(0, tagRepo.addTags(ids, "batch"));
+		var mutation = emailRepo.getAllMutations().get(0);
+		assertEquals(ids.size() - 1, mutation.affectedEmailCount());
+		assertEquals(ids.size() - 1, DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM MUTATION_EMAIL WHERE MUTATION_ID = ?", mutation.id()));
+
+		assertEquals(half.size(), tagRepo.removeTags(half, "batch"));
+		assertEquals(0, tagRepo.removeTags(half, "batch"));
+		assertEquals(0, tagRepo.removeTags(half, "missing"));
+		int tagId = tagRepo.getTagByName("batch").orElseThrow().id();
+		assertFalse(tagRepo.hasTag(half.get(0), tagId));
+		assertTrue(tagRepo.getTags(half.get(0)).isEmpty());
+		assertTrue(tagRepo.hasTag(ids.get(ids.size() - 1), tagId));
+		assertEquals(ids.size() - half.size(), tagRepo.countTaggedEmails(tagId));
+		assertEquals(new TagRepository(ds.getConnection()).getStats(), tagRepo.getStats());
+		ds.close().join();
+	}
+
+	@Test
+	public void testBatchTagsOnManyEmails() throws SQLException {
+		// More emails than fit in a single array parameter.
+		try (var conn = createLargeDatabase(70_000)) {
+			var tagRepo = new TagRepository(conn);
+			List<Long> ids = DbUtils.fetch(conn, "SELECT ID FROM EMAIL", rs -> rs.getLong(1));
+			assertEquals(ids.size(), tagRepo.addTags(ids, "many"));
+			int tagId = tagRepo.getTagByName("many").orElseThrow().id();
+			assertEquals(ids.size(), tagRepo.countTaggedEmails(tagId));
+			assertEquals(1, new EmailRepository(conn).getAllMutations().size());
+			assertEquals(ids.size(), tagRepo.removeTags(ids, tagId));
+			assertEquals(0, tagRepo.countTaggedEmails(tagId));
+		}
+	}
+
+	@Test
+	public void testHideAndUndo() {
+		InMemoryEmailDataset ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+		var repo = new EmailRepository(ds);
+		String sentFrom = DbUtils.fetchOne(
+				ds.getConnection(),
+				"SELECT SENT_FROM FROM EMAIL GROUP BY SENT_FROM ORDER BY COUNT(*) DESC LIMIT 1",
+				rs -> rs.getString(1)
+		).orElseThrow();
+		long expected = DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM EMAIL WHERE SENT_FROM = ?", sentFrom);
+		assertEquals(expected, repo.hideAllEmailsBySentFrom(sentFrom));
+		assertEquals(0, repo.hideAllEmailsBySentFrom(sentFrom));
+		var mutation = repo.getAllMutations().get(0);
+		assertEquals(expected, mutation.affectedEmailCount());
+		assertEquals(expected, DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM EMAIL WHERE HIDDEN"));
+
+		assertEquals(expected, repo.showEmailsHiddenBy(mutation.id()));
+		assertEquals(0, DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM EMAIL WHERE HIDDEN"));
+		assertEquals(2, repo.getAllMutations().size());
+		ds.close().join();
+	}
+
+	@Test
+	public void testHideManyEmails() throws SQLException {
+		// More emails than fit in a single array parameter.
+		try (var conn = createLargeDatabase(70_000)) {
+			var repo = new EmailRepository(conn);
+			List<Long> ids = DbUtils.fetch(conn, "SELECT ID FROM EMAIL", rs -> rs.getLong(1));
+			assertEquals(ids.size(), repo.hideEmails(ids, "Hiding everything."));
+			assertEquals(0, repo.hideEmails(ids, "Hiding everything again."));
+			assertEquals(1, repo.getAllMutations().size());
+			assertEquals(ids.size(), DbUtils.count(conn, "SELECT COUNT(*) FROM EMAIL WHERE HIDDEN"));
+		}
+	}
+
+	/**
+	 * Creates an in-memory database with the dataset's schema, and the given
+	 * number of emails without bodies.
+	 */
+	private static Connection createLargeDatabase(int emailCount) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:h2:mem:");
+		try (var stmt = conn.createStatement()) {
+			stmt.executeUpdate(QueryCache.load("/sql/schema.sql"));
+		}
+		DbUtils.update(conn, "INSERT INTO EMAIL (MESSAGE_ID, SUBJECT) SELECT 'message-' || X, 'Subject ' || X FROM SYSTEM_RANGE(1, ?)", emailCount);
+		return conn;
+	}
+
+	@Test
+	public void testIndexDirectoryTypes() throws IOException, ParseException {
+		EmailDataset ds = genDataset("__test_index_directory_types");
+		var expected = new EmailIndexSearcher().search(ds, "t*", 100);
+		for (var type : IndexDirectoryConfig.Type.values()) {
+			ds.setIndexDirectoryConfig(new IndexDirectoryConfig()
+					.withType(type)
+					.withPreloadExtensions(IndexDirectoryConfig.TERMS_AND_POSTINGS));
+			assertEquals(expected, new EmailIndexSearcher().search(ds, "t*", 100), "Results differ for " + type);
+		}
+		ds.close().join();
+	}
+
 	@Test
 	public void testExportsQuerySeparated() {
 		EmailDataset ds = genDataset("__test_export_separated");
@@ -148,6 +525,59 @@ public class EmailDatasetIntegrationTests {
 		ds.close().join();
 	}
 
+	@Test
+	public void testZipImportIndexInArchive() throws IOException, ParseException {
+		EmailDataset ds = genDataset("__test_export_zip_stored");
+		Path zipFile = TEST_DIR.resolve("__test_export_zip_stored.zip");
+		long emailCount = new EmailRepository(ds).countEmails();
+		new ZipExporter(true).export(ds, zipFile).join();
+		ds.close().join();
+		var importer = new ZipImporter(ZipImporter.Mode.INDEX_IN_ARCHIVE);
+		ds = importer.importFrom(zipFile).join();
+		Path openDir = ds.getOpenDir();
+		assertFalse(Files.exists(ds.getIndexDir()), "Index should be served from the archive.");
+		assertEquals(emailCount, new EmailRepository(ds).countEmails());
+		assertTrue(new EmailIndexSearcher().search(ds, "t*", 100).size() > 0);
+		ds.close().join();
+		// Opening the same archive again should reuse the extracted directory.
+		ds = importer.importFrom(zipFile).join();
+		assertEquals(openDir, ds.getOpenDir());
+		ds.close().join();
+	}
+
+	@Test
+	public void testCancel() throws IOException, ParseException {
+		// A cancelled index regeneration keeps the previous index.
+		EmailDataset ds = genDataset("__test_cancel");
+		int resultCount = new EmailIndexSearcher().search(ds, "t*", 100).size();
+		// Deliver messages on the task's thread, so that it's cancelled right away.
+		Status status = new Status(null, Runnable::run);
+		AtomicBoolean cancelOnce = new AtomicBoolean(true);
+		status.withMessageConsumer(msg -> {
+			if (msg.startsWith("Indexing ") && cancelOnce.getAndSet(false)) status.cancel();
+		});
+		var indexGen = new EmailIndexGenerator(status);
+		var task = indexGen.generateIndexAsync(ds);
+		assertThrows(CancellationException.class, task::join);
+		assertTrue(task.isCancelled());
+		assertEquals(resultCount, new EmailIndexSearcher().search(ds, "t*", 100).size());
+		// The same generator can be used again after a task was cancelled.
+		indexGen.generateIndexAsync(ds).join();
+		assertEquals(resultCount, new EmailIndexSearcher().search(ds, "t*", 100).size());
+		ds.close().join();
+
+		// A cancelled generation leaves no partial dataset behind.
+		Path dsDir = TEST_DIR.resolve("__test_cancel_gen");
+		Status genStatus = new Status(null, Runnable::run);
+		genStatus.withMessageConsumer(msg -> {
+			if (msg.startsWith("Parsing file")) genStatus.cancel();
+		});
+		var genTask = new EmailDatasetGenerator(genStatus).generate(Set.of(Path.of("test_emails")), dsDir);
+		assertThrows(CancellationException.class, genTask::join);
+		assertFalse(Files.exists(dsDir.resolve("database.mv.db")));
+		assertFalse(Files.exists(dsDir.resolve("index")));
+	}
+
 	/**
 	 * Generates a dataset for testing. Includes a large set of emails from
 	 * the Hadoop project, and a pseudorandom selection of tags applied to
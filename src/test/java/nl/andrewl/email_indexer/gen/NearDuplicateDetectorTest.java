@@ -0,0 +1,126 @@
+package nl.andrewl.email_indexer.gen;
+
+import nl.andrewl.email_indexer.util.DbUtils;
+import nl.andrewl.mboxparser.Email;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NearDuplicateDetectorTest {
+	private static final String TEXT = """
+			The namenode keeps track of which datanodes hold a replica of each block, and it
+			decides where new replicas are placed when a block is written. When a datanode stops
+			sending heartbeats, its blocks are re-replicated onto other nodes in the cluster, which
+			can cause a lot of network traffic after a rack goes down. We should throttle this.
+			""";
+
+	@Test
+	public void testSimHash() {
+		long hash = NearDuplicateDetector.simHash(TEXT, 10);
+		assertNotEquals(0, hash);
+		assertEquals(hash, NearDuplicateDetector.simHash(TEXT.toUpperCase().replace("\n", "  \n"), 10));
+		long similar = NearDuplicateDetector.simHash(TEXT.replace("throttle this", "throttle that") + "Thanks!", 10);
+		assertTrue(Long.bitCount(hash ^ similar) <= 6, "Similar texts should have similar hashes.");
+		long different = NearDuplicateDetector.simHash("Release candidate 3 for version 0.21 is available for testing, please vote on it by the end of the week if you have time.", 10);
+		assertTrue(Long.bitCount(hash ^ different) > 10, "Different texts should have different hashes.");
+		assertEquals(0, NearDuplicateDetector.simHash("+1 from me", 10));
+	}
+
+	@Test
+	public void testDrop() {
+		var detector = new NearDuplicateDetector().withAction(NearDuplicateDetector.Action.DROP);
+		assertTrue(detector.test(email("a", TEXT)));
+		assertTrue(detector.test(email("a", TEXT)));// Re-deliveries are left to the database.
+		assertFalse(detector.test(email("b", TEXT.replace("throttle this", "throttle that"))));
+		assertTrue(detector.test(email("c", "+1")));
+		assertTrue(detector.test(email("d", "+1")));
+		assertTrue(detector.getDuplicates().isEmpty());
+	}
+
+	@Test
+	public void testRecordClusters() throws Exception {
+		var detector = new NearDuplicateDetector();
+		var pipeline = SanitationPipeline.defaults().add(SanitationPipeline.Stage.filter(NearDuplicateDetector.STAGE_NAME, detector));
+		try (var dbGen = new DatabaseGenerator("jdbc:h2:mem:near-duplicate-test")) {
+			var handler = new SanitizingEmailHandler(dbGen, pipeline);
+			handler.emailReceived(rawEmail("<a>", TEXT));
+			handler.emailReceived(rawEmail("<b>", "> quoted text\n" + TEXT));
+			handler.emailReceived(rawEmail("<c>", TEXT.replace("heartbeats", "heartbeat messages")));
+			handler.emailReceived(rawEmail("<d>", "Something else entirely, about the release of version 0.21 and whether we should vote on the third candidate."));
+			assertEquals(List.of("b", "c"), detector.getDuplicates().stream().map(NearDuplicateDetector.Duplicate::messageId).toList());
+			assertEquals(0, pipeline.getStage(NearDuplicateDetector.STAGE_NAME).getDroppedCount());
+
+			detector.writeClusters(dbGen.getConn());
+			assertEquals(4, DbUtils.count(dbGen.getConn(), "SELECT COUNT(ID) FROM EMAIL"));
+			assertEquals(2, DbUtils.count(dbGen.getConn(), """
+					SELECT COUNT(*)
+					FROM DUPLICATE_CLUSTER D
+					JOIN EMAIL C ON C.ID = D.CLUSTER_EMAIL_ID
+					WHERE C.MESSAGE_ID = 'a'"""));
+		}
+	}
+
+	@Test
+	public void testManyEmails() {
+		// Enough emails with random bodies that the hashes are split into more blocks.
+		var detector = new NearDuplicateDetector().withAction(NearDuplicateDetector.Action.DROP);
+		Random rand = new Random(42);
+		String[] words = TEXT.split("\\s+");
+		List<String> bodies = new ArrayList<>();
+		List<Long> hashes = new ArrayList<>();
+		for (int i = 0; i < 20_000; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int j = 0; j < 30; j++) sb.append(words[rand.nextInt(words.length)]).append(rand.nextInt(1000)).append(' ');
+			String body = sb.toString();
+			bodies.add(body);
+			hashes.add(NearDuplicateDetector.simHash(body, 10));
+			assertTrue(detector.test(email("<" + i + ">", body)));
+		}
+		assertTrue(detector.getBlockCount() > 7);
+		// The detector must find exactly the duplicates that comparing against every email finds.
+		int found = 0;
+		for (int i = 0; i < bodies.size(); i += 100) {
+			String body = bodies.get(i) + "thanks";
+			long hash = NearDuplicateDetector.simHash(body, 10);
+			boolean duplicate = hashes.stream().anyMatch(h -> Long.bitCount(h ^ hash) <= 6);
+			assertEquals(!duplicate, detector.test(email("<copy-" + i + ">", body)));
+			if (duplicate) found++;
+		}
+		assertTrue(found > 0);
+	}
+
+	@Test
+	public void testPipelineIsNotChanged() {
+		var pipeline = SanitationPipeline.defaults();
+		var ds = new EmailDatasetGenerator()
+				.withSanitationPipeline(pipeline)
+				.withNearDuplicateDetection(new NearDuplicateDetector())
+				.generateInMemory(Set.of(Path.of("test_emails")))
+				.join();
+		ds.close().join();
+		assertFalse(pipeline.hasStage(NearDuplicateDetector.STAGE_NAME));
+		assertTrue(pipeline.getStage("require-charset").getProcessedCount() > 0);
+	}
+
+	private static DecodedEmail email(String messageId, String body) {
+		return new DecodedEmail(rawEmail(messageId, body));
+	}
+
+	private static Email rawEmail(String messageId, String body) {
+		Email email = new Email();
+		email.messageId = messageId;
+		email.subject = "Test";
+		email.date = ZonedDateTime.now();
+		email.body = body.getBytes(StandardCharsets.UTF_8);
+		email.charset = StandardCharsets.UTF_8.name();
+		return email;
+	}
+}
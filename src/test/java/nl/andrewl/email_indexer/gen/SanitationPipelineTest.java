@@ -0,0 +1,102 @@
+package nl.andrewl.email_indexer.gen;
+
+import nl.andrewl.mboxparser.Email;
+import nl.andrewl.mboxparser.EmailHandler;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SanitationPipelineTest {
+	@Test
+	public void testStageOrdering() {
+		var pipeline = SanitationPipeline.defaults();
+		assertEquals(List.of("require-charset", "require-body", "require-message-id", "remove-replies", "clean-addresses"), names(pipeline));
+
+		pipeline.insertBefore("remove-replies", SanitationPipeline.Stage.filter("a", e -> true));
+		pipeline.insertAfter("clean-addresses", SanitationPipeline.Stage.transform("b", e -> {}));
+		pipeline.move("b", 0);
+		pipeline.remove("require-body");
+		assertEquals(List.of("b", "require-charset", "require-message-id", "a", "remove-replies", "clean-addresses"), names(pipeline));
+
+		assertThrows(IllegalArgumentException.class, () -> pipeline.add(SanitationPipeline.Stage.filter("a", e -> true)));
+		assertThrows(NoSuchElementException.class, () -> pipeline.remove("unknown"));
+	}
+
+	@Test
+	public void testMetrics() {
+		var pipeline = SanitationPipeline.defaults();
+		assertTrue(pipeline.process(email("<1>", "Hello\n> quoted")));
+		assertFalse(pipeline.process(email(null, "Hello")));
+		assertFalse(pipeline.process(email("<3>", "")));
+
+		var charset = pipeline.getStage("require-charset");
+		assertEquals(3, charset.getProcessedCount());
+		assertEquals(0, charset.getDroppedCount());
+		assertEquals(1, pipeline.getStage("require-body").getDroppedCount());
+		assertEquals(1, pipeline.getStage("require-message-id").getDroppedCount());
+		var replies = pipeline.getStage("remove-replies");
+		assertEquals(1, replies.getProcessedCount());
+		assertTrue(replies.getTotalNanos() > 0);
+
+		pipeline.resetMetrics();
+		assertEquals(0, charset.getProcessedCount());
+	}
+
+	@Test
+	public void testParallelPreservesOrder() {
+		var executor = Executors.newFixedThreadPool(4);
+		try {
+			List<String> received = new ArrayList<>();
+			var handler = new SanitizingEmailHandler(e -> received.add(e.messageId), SanitationPipeline.defaults(), executor, 8);
+			List<String> expected = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) {
+				Email email = new Email();
+				email.messageId = "<" + i + ">";
+				email.body = (i % 10 == 0 ? "" : "Body " + i).getBytes(StandardCharsets.UTF_8);
+				email.charset = StandardCharsets.UTF_8.name();
+				handler.emailReceived(email);
+				if (i % 10 != 0) expected.add(Integer.toString(i));
+			}
+			handler.awaitCompletion();
+			assertEquals(expected, received);
+			assertEquals(100, handler.getPipeline().getStage("require-body").getDroppedCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testParsedEmailHandler() {
+		List<Email> received = new ArrayList<>();
+		EmailHandler downstream = received::add;
+		var handler = new SanitizingEmailHandler(downstream);
+		Email email = new Email();
+		email.messageId = "<1>";
+		email.body = "Héllo\n> quoted".getBytes(StandardCharsets.ISO_8859_1);
+		email.charset = StandardCharsets.ISO_8859_1.name();
+		handler.emailReceived(email);
+		assertEquals(1, received.size());
+		assertEquals("1", received.get(0).messageId);
+		assertEquals(StandardCharsets.UTF_8.name(), received.get(0).charset);
+		assertEquals("Héllo\n", received.get(0).readBodyAsText());
+	}
+
+	private static List<String> names(SanitationPipeline pipeline) {
+		return pipeline.getStages().stream().map(SanitationPipeline.Stage::getName).collect(Collectors.toList());
+	}
+
+	private static DecodedEmail email(String messageId, String body) {
+		Email email = new Email();
+		email.messageId = messageId;
+		email.body = body.getBytes(StandardCharsets.UTF_8);
+		email.charset = StandardCharsets.UTF_8.name();
+		return new DecodedEmail(email);
+	}
+}
@@ -0,0 +1,72 @@
+package nl.andrewl.email_indexer.gen;
+
+import nl.andrewl.mboxparser.Email;
+import nl.andrewl.mboxparser.MBoxParser;
+import org.h2.store.fs.FileUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SyntheticCorpusGeneratorTest {
+	private static final Path TEST_DIR = Path.of("__test_synthetic");
+
+	@BeforeAll
+	@AfterAll
+	public static void cleanUp() {
+		FileUtils.deleteRecursive(TEST_DIR.toString(), true);
+	}
+
+	@Test
+	public void testDeterministic() throws Exception {
+		var gen = new SyntheticCorpusGenerator().withSeed(42).withMessageCount(500).withMessagesPerFile(200);
+		List<Path> a = gen.generate(TEST_DIR.resolve("a"));
+		List<Path> b = gen.generate(TEST_DIR.resolve("b"));
+		assertEquals(3, a.size());
+		assertEquals(a.size(), b.size());
+		for (int i = 0; i < a.size(); i++) {
+			assertArrayEquals(Files.readAllBytes(a.get(i)), Files.readAllBytes(b.get(i)));
+		}
+		List<Path> c = new SyntheticCorpusGenerator().withSeed(43).withMessageCount(500).withMessagesPerFile(200)
+				.generate(TEST_DIR.resolve("c"));
+		assertFalse(Arrays.equals(Files.readAllBytes(a.get(0)), Files.readAllBytes(c.get(0))));
+	}
+
+	@Test
+	public void testParseable() throws Exception {
+		List<Path> files = new SyntheticCorpusGenerator()
+				.withSeed(7)
+				.withMessageCount(1000)
+				.withMaxThreadDepth(4)
+				.withMaxFanOut(3)
+				.withDuplicateRate(0.05)
+				.generate(TEST_DIR.resolve("parse"));
+		List<Email> emails = new ArrayList<>();
+		MBoxParser parser = new MBoxParser(emails::add);
+		for (var file : files) parser.parse(file);
+		assertEquals(1000, emails.size());
+
+		Set<String> ids = new HashSet<>();
+		int duplicates = 0;
+		int replies = 0;
+		for (var email : emails) {
+			assertNotNull(email.messageId);
+			assertNotNull(email.date);
+			assertTrue(email.readBodyAsText().length() > 0);
+			if (!ids.add(email.messageId)) duplicates++;
+			if (email.inReplyTo != null) {
+				// Replies always come after their parent.
+				assertTrue(ids.contains(email.inReplyTo));
+				replies++;
+			}
+		}
+		assertTrue(duplicates > 0);
+		assertTrue(replies > 0);
+		assertTrue(emails.size() - duplicates - replies > 0);
+	}
+}
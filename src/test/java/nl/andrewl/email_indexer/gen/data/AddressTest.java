@@ -0,0 +1,30 @@
+package nl.andrewl.email_indexer.gen.data;
+
+import nl.andrewl.email_indexer.data.Address;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AddressTest {
+	@Test
+	public void testParse() {
+		assertEquals(
+				Optional.of(new Address(0, "jira@apache.org", null, "apache.org")),
+				Address.parse("  JIRA@Apache.org ")
+		);
+		assertEquals(
+				Optional.of(new Address(0, "owen@yahoo-inc.com", "Owen O'Malley (JIRA)", "yahoo-inc.com")),
+				Address.parse("\"Owen O'Malley (JIRA)\" <Owen@yahoo-inc.com>")
+		);
+		assertEquals(
+				Optional.of(new Address(0, "ab@getopt.org", "Andrzej", "getopt.org")),
+				Address.parse("ab@getopt.org (Andrzej)")
+		);
+		assertEquals(Optional.of(new Address(0, "nobody", null, null)), Address.parse("<nobody>"));
+		assertTrue(Address.parse(" ").isEmpty());
+		assertTrue(Address.parse("Someone <>").isEmpty());
+		assertTrue(Address.parse(null).isEmpty());
+	}
+}
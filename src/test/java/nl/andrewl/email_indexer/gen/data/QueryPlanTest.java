@@ -0,0 +1,120 @@
+package nl.andrewl.email_indexer.gen.data;
+
+import nl.andrewl.email_indexer.data.InMemoryEmailDataset;
+import nl.andrewl.email_indexer.data.QueryCache;
+import nl.andrewl.email_indexer.data.search.SearchFilter;
+import nl.andrewl.email_indexer.data.search.filter.*;
+import nl.andrewl.email_indexer.gen.EmailDatasetGenerator;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the queries which are run for single emails, tags and filters
+ * use indexes instead of scanning the large tables, so that they stay fast on
+ * big datasets.
+ */
+public class QueryPlanTest {
+	private static final Pattern TABLE_SCAN = Pattern.compile("PUBLIC\\.(EMAIL|EMAIL_TAG|EMAIL_BODY|MUTATION_EMAIL|ADDRESS)\\.tableScan");
+	/**
+	 * Queries that are expected to read whole tables.
+	 */
+	private static final Set<String> FULL_QUERIES = Set.of(
+			"fetch_all_mutations.sql",
+			"fetch_all_tags.sql",
+			"fetch_indexable_emails.sql",
+			"fetch_reply_root_ids.sql",
+			"search_query.sql"
+	);
+
+	private static InMemoryEmailDataset ds;
+
+	@BeforeAll
+	public static void beforeAll() {
+		ds = new EmailDatasetGenerator().generateInMemory(Set.of(Path.of("test_emails"))).join();
+	}
+
+	@AfterAll
+	public static void afterAll() {
+		ds.close().join();
+	}
+
+	@Test
+	public void testResourceQueries() throws Exception {
+		Path sqlDir = Path.of(getClass().getResource("/sql").toURI());
+		List<Path> files;
+		try (var s = Files.walk(sqlDir)) {
+			files = s.filter(p -> p.toString().endsWith(".sql"))
+					.filter(p -> !p.getFileName().toString().equals("schema.sql"))
+					.filter(p -> !sqlDir.relativize(p).startsWith("upgrade"))
+					.filter(p -> !FULL_QUERIES.contains(p.getFileName().toString()))
+					.toList();
+		}
+		assertFalse(files.isEmpty());
+		for (var file : files) {
+			String resource = "/" + sqlDir.getParent().relativize(file).toString().replace('\\', '/');
+			String plan = explain(ds.getConnection(), QueryCache.load(resource));
+			assertFalse(TABLE_SCAN.matcher(plan).find(), resource + " scans a table:\n" + plan);
+		}
+	}
+
+	@Test
+	public void testFilterQueries() throws Exception {
+		BitSet ids = new BitSet();
+		ids.set(1);
+		ids.set(3);
+		List<SearchFilter> filters = List.of(
+				new ParentIdFilter(1),
+				new DateFilter(ZonedDateTime.now().minusYears(1), ZonedDateTime.now()),
+				TagFilter.including(List.of(1)),
+				new IdInFilter(1L, 2L),
+				new IdSetFilter(ids, false),
+				SenderFilter.address("someone@example.com"),
+				SenderFilter.domain("example.com")
+		);
+		for (var filter : filters) {
+			String plan = explain(ds.getConnection(), "SELECT COUNT(EMAIL.ID) FROM EMAIL WHERE " + filter.getWhereClause(), filter.getParameters());
+			assertFalse(TABLE_SCAN.matcher(plan).find(), filter + " scans a table:\n" + plan);
+		}
+	}
+
+	@Test
+	public void testSearchPageIsReadInOrder() throws Exception {
+		String query = QueryCache.load("/sql/preview/search_query.sql") +
+				"\nWHERE " + new HiddenFilter(false).getWhereClause() +
+				"\nORDER BY EMAIL.DATE DESC, EMAIL.MESSAGE_ID ASC LIMIT 20 OFFSET 0";
+		String plan = explain(ds.getConnection(), query);
+		assertTrue(plan.contains("index sorted"), plan);
+	}
+
+	private static String explain(Connection conn, String query) throws SQLException {
+		return explain(conn, query, List.of());
+	}
+
+	/**
+	 * Explains a query, using the given parameter values, or 1 for any
+	 * parameters that aren't given.
+	 */
+	private static String explain(Connection conn, String query, List<Object> params) throws SQLException {
+		try (var stmt = conn.prepareStatement("EXPLAIN " + query)) {
+			int paramCount = stmt.getParameterMetaData().getParameterCount();
+			for (int i = 1; i <= paramCount; i++) stmt.setObject(i, i <= params.size() ? params.get(i - 1) : 1);
+			try (var rs = stmt.executeQuery()) {
+				rs.next();
+				return rs.getString(1);
+			}
+		}
+	}
+}
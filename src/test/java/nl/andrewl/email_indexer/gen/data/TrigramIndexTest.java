@@ -0,0 +1,34 @@
+package nl.andrewl.email_indexer.gen.data;
+
+import nl.andrewl.email_indexer.data.TrigramIndex;
+import nl.andrewl.email_indexer.util.DbUtils;
+import org.junit.jupiter.api.Test;
+
+import java.sql.DriverManager;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TrigramIndexTest {
+	@Test
+	public void testFindCandidates() throws Exception {
+		try (var conn = DriverManager.getConnection("jdbc:h2:mem:")) {
+			DbUtils.update(conn, "CREATE TABLE EMAIL (ID BIGINT PRIMARY KEY, SUBJECT VARCHAR)");
+			// Every email is about hadoop, and every 50th one is also about the namenode.
+			DbUtils.update(conn, """
+					INSERT INTO EMAIL
+					SELECT X, CASEWHEN(MOD(X, 50) = 0, 'Hadoop NameNode crash ' || X, 'Hadoop question ' || X)
+					FROM SYSTEM_RANGE(1, 1000)""");
+			TrigramIndex index = TrigramIndex.load(conn, "SUBJECT");
+			assertEquals(1000, index.getRowCount());
+
+			BitSet candidates = index.findCandidates("%namenode%").orElseThrow();
+			assertEquals(20, candidates.cardinality());
+			assertTrue(candidates.get(50));
+			assertEquals(0, index.findCandidates("%xyzzy%").orElseThrow().cardinality());
+			// Patterns without trigrams, or that match too many emails, aren't narrowed down.
+			assertTrue(index.findCandidates("%a%").isEmpty());
+			assertTrue(index.findCandidates("%hadoop%").isEmpty());
+		}
+	}
+}
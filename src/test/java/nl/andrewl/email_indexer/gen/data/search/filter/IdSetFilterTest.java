@@ -0,0 +1,42 @@
+package nl.andrewl.email_indexer.gen.data.search.filter;
+
+import nl.andrewl.email_indexer.data.search.filter.IdSetFilter;
+import nl.andrewl.email_indexer.util.DbUtils;
+import org.junit.jupiter.api.Test;
+
+import java.sql.DriverManager;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdSetFilterTest {
+	@Test
+	public void testGetWhereClause() {
+		BitSet ids = new BitSet();
+		assertEquals("FALSE", new IdSetFilter(ids, false).getWhereClause());
+		assertEquals("", new IdSetFilter(ids, true).getWhereClause());
+		ids.set(1);
+		ids.set(3);
+		var filter = new IdSetFilter(ids, false);
+		assertEquals("EMAIL.ID = ANY(?)", filter.getWhereClause());
+		assertArrayEquals(new Long[]{1L, 3L}, (Long[]) filter.getParameters().get(0));
+		assertEquals("NOT (EMAIL.ID = ANY(?))", filter.not().getWhereClause());
+	}
+
+	@Test
+	public void testLargeSets() throws Exception {
+		// More ids than fit in a single parameter.
+		BitSet ids = new BitSet();
+		ids.set(1, 100_001);
+		var filter = new IdSetFilter(ids, false);
+		assertEquals(2, filter.getParameters().size());
+		try (var conn = DriverManager.getConnection("jdbc:h2:mem:id-set-filter-test")) {
+			DbUtils.update(conn, "CREATE TABLE EMAIL (ID BIGINT PRIMARY KEY)");
+			DbUtils.update(conn, "INSERT INTO EMAIL SELECT X FROM SYSTEM_RANGE(1, 150000)");
+			for (var f : new IdSetFilter[]{filter, filter.not()}) {
+				long count = DbUtils.count(conn, "SELECT COUNT(*) FROM EMAIL WHERE " + f.getWhereClause(), f.getParameters().toArray());
+				assertEquals(f.excluding() ? 50_000 : 100_000, count);
+			}
+		}
+	}
+}
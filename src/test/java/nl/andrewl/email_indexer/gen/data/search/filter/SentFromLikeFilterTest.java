@@ -0,0 +1,27 @@
+package nl.andrewl.email_indexer.gen.data.search.filter;
+
+import nl.andrewl.email_indexer.data.search.filter.SentFromLikeFilter;
+import nl.andrewl.email_indexer.util.DbUtils;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SentFromLikeFilterTest {
+	@Test
+	public void testQuotesAreMatchedLiterally() throws Exception {
+		try (var conn = DriverManager.getConnection("jdbc:h2:mem:")) {
+			DbUtils.update(conn, "CREATE TABLE EMAIL (ID BIGINT PRIMARY KEY, SENT_FROM VARCHAR)");
+			DbUtils.update(conn, "INSERT INTO EMAIL VALUES (1, 'Tim O''Brien <tim@example.org>'), (2, 'ann@example.org')");
+			assertEquals(1, count(conn, new SentFromLikeFilter("o'brien")));
+			assertEquals(2, count(conn, new SentFromLikeFilter("EXAMPLE.org")));
+			assertEquals(0, count(conn, new SentFromLikeFilter("' OR '1' = '1")));
+		}
+	}
+
+	private static long count(Connection conn, SentFromLikeFilter filter) {
+		return DbUtils.count(conn, "SELECT COUNT(*) FROM EMAIL WHERE " + filter.getWhereClause(), filter.getParameters().toArray());
+	}
+}
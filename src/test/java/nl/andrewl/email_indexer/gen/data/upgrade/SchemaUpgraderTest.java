@@ -0,0 +1,156 @@
+package nl.andrewl.email_indexer.gen.data.upgrade;
+
+import nl.andrewl.email_indexer.data.AddressRepository;
+import nl.andrewl.email_indexer.data.EmailDataset;
+import nl.andrewl.email_indexer.data.EmailRepository;
+import nl.andrewl.email_indexer.data.TagRepository;
+import nl.andrewl.email_indexer.data.search.EmailIndexSearcher;
+import nl.andrewl.email_indexer.data.upgrade.Version1Upgrader;
+import nl.andrewl.email_indexer.data.upgrade.SchemaUpgrader;
+import nl.andrewl.email_indexer.gen.EmailIndexGenerator;
+import nl.andrewl.email_indexer.util.DbUtils;
+import nl.andrewl.email_indexer.util.Status;
+import org.h2.store.fs.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SchemaUpgraderTest {
+	@Test
+	public void testMoveBodies() throws Exception {
+		Path dsDir = Path.of("__test", "__test_schema_upgrade");
+		FileUtils.deleteRecursive(dsDir.toString(), true);
+		Files.createDirectories(dsDir);
+		Files.writeString(dsDir.resolve("metadata.properties"), "version=2\n");
+		// Create a database like the ones generated before bodies had their own table.
+		try (
+				var conn = DriverManager.getConnection(EmailDataset.getJdbcUrl(dsDir.resolve("database.mv.db")));
+				var stmt = conn.createStatement()
+		) {
+			stmt.executeUpdate("""
+					CREATE TABLE EMAIL (
+						ID BIGINT PRIMARY KEY AUTO_INCREMENT,
+						PARENT_ID BIGINT NULL DEFAULT NULL REFERENCES EMAIL(ID),
+						MESSAGE_ID VARCHAR(255) UNIQUE,
+						SUBJECT VARCHAR(1024),
+						IN_REPLY_TO VARCHAR(255),
+						SENT_FROM VARCHAR(255),
+						DATE TIMESTAMP WITH TIME ZONE,
+						BODY LONGTEXT,
+						HIDDEN BOOL NOT NULL DEFAULT FALSE
+					);
+					INSERT INTO EMAIL (MESSAGE_ID, SUBJECT, SENT_FROM, BODY) VALUES
+						('a', 'First', 'Ann <Ann@Example.com>', 'Hello'),
+						('b', 'Second', 'ann@example.com', NULL),
+						('c', 'Third', NULL, NULL);""");
+		}
+
+		List<String> indexFiles = null;
+		for (int i = 0; i < 2; i++) {// Opening an upgraded dataset again shouldn't change anything.
+			EmailDataset ds = new EmailDataset(dsDir);
+			assertEquals(SchemaUpgrader.LATEST_VERSION, ds.getVersion());
+			// The dataset had no index of the current version. Opening it doesn't
+			// generate one, but the caller is told to, and only once.
+			if (i == 0) {
+				assertTrue(EmailIndexGenerator.needsReindex(ds));
+				assertFalse(Files.exists(dsDir.resolve("index")));
+				new EmailIndexGenerator(new Status()).generateIndexAsync(ds).join();
+			}
+			assertFalse(EmailIndexGenerator.needsReindex(ds));
+			assertEquals(EmailIndexGenerator.INDEX_VERSION, ds.getIndexVersion());
+			List<String> files;
+			try (var s = Files.list(dsDir.resolve("index"))) {
+				files = s.map(p -> p.getFileName().toString()).sorted().toList();
+			}
+			if (indexFiles != null) assertEquals(indexFiles, files);
+			indexFiles = files;
+			var repo = new EmailRepository(ds);
+			assertEquals(Optional.of("Hello"), repo.getBody(1));
+			assertEquals("Hello", repo.findEmailById(1).orElseThrow().body());
+			assertNull(repo.findEmailById(2).orElseThrow().body());
+			assertEquals(1, DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM EMAIL_BODY"));
+			assertEquals(0, DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'EMAIL' AND COLUMN_NAME = 'BODY'"));
+			// Both senders are linked to the same address.
+			var address = new AddressRepository(ds).findByAddress("ann@example.com").orElseThrow();
+			assertEquals("Ann", address.displayName());
+			assertEquals("example.com", address.domain());
+			assertEquals(2, new AddressRepository(ds).countEmailsByAddress("ann@example.com"));
+			assertEquals(1, DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM ADDRESS"));
+			ds.close().join();
+		}
+	}
+
+	@Test
+	public void testVersion1Upgrade() throws Exception {
+		Path dsDir = Path.of("__test", "__test_v1_upgrade");
+		Path newDsDir = Path.of("__test", "__test_v1_upgrade_new");
+		FileUtils.deleteRecursive(dsDir.toString(), true);
+		FileUtils.deleteRecursive(newDsDir.toString(), true);
+		Files.createDirectories(dsDir.resolve("index"));
+		// Create a database like the ones of version 1, which identify emails by their message id.
+		try (
+				var conn = DriverManager.getConnection(EmailDataset.getJdbcUrl(dsDir.resolve("database.mv.db")));
+				var stmt = conn.createStatement()
+		) {
+			stmt.executeUpdate("""
+					CREATE TABLE EMAIL (
+						MESSAGE_ID VARCHAR(255) PRIMARY KEY,
+						SUBJECT VARCHAR(1024),
+						IN_REPLY_TO VARCHAR(255),
+						SENT_FROM VARCHAR(255),
+						DATE TIMESTAMP WITH TIME ZONE,
+						BODY LONGTEXT
+					);
+					CREATE TABLE EMAIL_TAG (MESSAGE_ID VARCHAR(255), TAG VARCHAR(255));
+					CREATE TABLE MUTATION (
+						ID BIGINT PRIMARY KEY,
+						DESCRIPTION LONGTEXT,
+						PERFORMED_AT TIMESTAMP WITH TIME ZONE,
+						AFFECTED_EMAIL_COUNT BIGINT
+					);
+					INSERT INTO EMAIL VALUES
+						('b', 'Re: First', 'a', 'bob@example.com', TIMESTAMP WITH TIME ZONE '2020-01-02 00:00:00+00', 'Thanks for the pineapple'),
+						('a', 'First', NULL, 'Ann <ann@example.com>', TIMESTAMP WITH TIME ZONE '2020-01-01 00:00:00+00', 'Hello'),
+						('c', 'Third', NULL, NULL, TIMESTAMP WITH TIME ZONE '2020-01-03 00:00:00+00', NULL);
+					INSERT INTO EMAIL_TAG VALUES ('a', 'important'), ('b', 'important'), ('b', 'reply');
+					INSERT INTO MUTATION VALUES (1, 'Hid something', CURRENT_TIMESTAMP, 1), (2, 'Hid more', CURRENT_TIMESTAMP, 2);""");
+		}
+
+		new Version1Upgrader().upgrade(dsDir, newDsDir, Status.noOp());
+
+		EmailDataset ds = EmailDataset.open(newDsDir).join();
+		assertEquals(SchemaUpgrader.LATEST_VERSION, ds.getVersion());
+		var repo = new EmailRepository(ds);
+		// Emails are added in order of their date.
+		assertEquals(Optional.of(1L), repo.findId("a"));
+		assertEquals(Optional.of(2L), repo.findId("b"));
+		assertEquals(Optional.of("Thanks for the pineapple"), repo.getBody(2));
+		assertEquals(Optional.empty(), repo.getBody(3));
+		assertEquals(Long.valueOf(1), repo.findEmailById(2).orElseThrow().parentId());
+		assertEquals(Long.valueOf(2), new AddressRepository(ds).countEmailsByDomain(10).get("example.com"));
+		var tagRepo = new TagRepository(ds);
+		assertEquals(2, tagRepo.findAll().size());
+		assertEquals(2, tagRepo.getTags(2).size());
+		assertEquals(2, DbUtils.count(ds.getConnection(), "SELECT COUNT(*) FROM MUTATION"));
+		DbUtils.update(ds.getConnection(), "INSERT INTO MUTATION (DESCRIPTION) VALUES ('New')");
+		assertEquals(3, DbUtils.count(ds.getConnection(), "SELECT MAX(ID) FROM MUTATION"));
+		assertEquals(List.of(1L), new EmailIndexSearcher().search(ds, "pineapple", 10));
+		ds.close().join();
+	}
+
+	@Test
+	public void testMigrationsAreOrdered() {
+		int version = 2;
+		for (var migration : SchemaUpgrader.MIGRATIONS) {
+			assertEquals(version + 1, migration.version(), migration.description());
+			version = migration.version();
+		}
+		assertEquals(version, SchemaUpgrader.LATEST_VERSION);
+	}
+}
@@ -0,0 +1,67 @@
+package nl.andrewl.email_indexer.gen.transform;
+
+import nl.andrewl.mboxparser.MBoxParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BodyReplyRemoverTest {
+	@Test
+	public void testRemoveReplies() {
+		assertRemoved("Hello\nWorld\n", "Hello\nWorld");
+		assertRemoved("Hello\n\nWorld\n", "Hello\n\nWorld\n\n\n");
+		assertRemoved("Thanks\n", "Thanks\n> quoted\n  >> also quoted\n");
+		assertRemoved("Thanks\n\n", "Thanks\n\n> quoted");
+		assertRemoved("Thanks\n", "Thanks\n  -----original MESSAGE-----  \nold stuff\n");
+		assertRemoved("Thanks\n--- Original Message ---\n", "Thanks\n--- Original Message ---\n");
+		assertRemoved("Windows\r\n  \r\n", "Windows\r\n  \r\n>quote\r\n");
+		assertRemoved("\n", "");
+		assertRemoved("", "\n\n");
+		assertRemoved("", "> only a quote");
+		assertRemoved("Größe café 日本語 😀\n", "Größe café 日本語 😀");
+	}
+
+	/**
+	 * Checks that the scanner gives exactly the same results as the original
+	 * split-based implementation, for all emails in the test dataset.
+	 */
+	@Test
+	public void testMatchesLegacyImplementation() throws Exception {
+		List<Path> files;
+		try (var s = Files.list(Path.of("test_emails"))) {
+			files = s.filter(p -> p.toString().endsWith(".mbox")).collect(Collectors.toList());
+		}
+		int[] count = {0};
+		MBoxParser parser = new MBoxParser(email -> {
+			if (email.charset == null || email.body == null) return;
+			String text = email.readBodyAsText();
+			assertEquals(legacyRemoveReplies(text), BodyReplyRemover.removeReplies(text), email.messageId);
+			count[0]++;
+		});
+		for (var file : files) parser.parse(file);
+		assertTrue(count[0] > 0);
+	}
+
+	private static void assertRemoved(String expected, String input) {
+		assertEquals(expected, legacyRemoveReplies(input), "legacy");
+		assertEquals(expected, BodyReplyRemover.removeReplies(input));
+	}
+
+	private static String legacyRemoveReplies(String text) {
+		String[] lines = text.split("\n");
+		StringBuilder sb = new StringBuilder();
+		for (var line : lines) {
+			if (line.trim().equalsIgnoreCase("-----Original Message-----")) break;
+			if (!line.trim().startsWith(">")) {
+				sb.append(line).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,51 @@
+package nl.andrewl.email_indexer.gen.util;
+
+import nl.andrewl.email_indexer.util.LruCache;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LruCacheTest {
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		LruCache<Integer, String> cache = new LruCache<>(2);
+		cache.get(1, String::valueOf);
+		cache.get(2, String::valueOf);
+		cache.get(1, k -> fail("Should be cached."));
+		cache.get(3, String::valueOf);// Evicts 2, which was used least recently.
+		cache.get(1, k -> fail("Should be cached."));
+		assertEquals("2", cache.get(2, String::valueOf));
+		var stats = cache.getStats();
+		assertEquals(2, stats.hits());
+		assertEquals(4, stats.misses());
+		assertEquals(2, stats.evictions());
+		assertEquals(2, stats.size());
+		assertEquals(1.0 / 3, stats.hitRate(), 1e-9);
+	}
+
+	@Test
+	public void testWeight() {
+		LruCache<Integer, String> cache = new LruCache<>(10, (k, v) -> v.length());
+		cache.put(1, "aaaa");
+		cache.put(2, "bbbb");
+		cache.put(3, "ccccccccccc");// Heavier than the whole cache, so it's not cached.
+		assertEquals(8, cache.getStats().weight());
+		cache.put(3, "ccc");
+		assertEquals(2, cache.getStats().size());
+		assertEquals(7, cache.getStats().weight());
+		cache.invalidate(2);
+		assertEquals(3, cache.getStats().weight());
+		cache.invalidateAll();
+		assertEquals(0, cache.getStats().size());
+	}
+
+	@Test
+	public void testInvalidationDuringLoad() {
+		LruCache<Integer, String> cache = new LruCache<>(10);
+		assertEquals("stale", cache.get(1, k -> {
+			cache.invalidate(1);
+			return "stale";
+		}));
+		assertEquals("fresh", cache.get(1, k -> "fresh"));
+	}
+}
@@ -0,0 +1,82 @@
+package nl.andrewl.email_indexer.gen.util;
+
+import nl.andrewl.email_indexer.util.Status;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatusTest {
+	@Test
+	public void testSlowConsumerDoesNotBlock() throws Exception {
+		CountDownLatch taken = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> messages = new CopyOnWriteArrayList<>();
+		Status status = new Status().withMessageConsumer(msg -> {
+			if (msg.equals("Message 0")) {
+				taken.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			messages.add(msg);
+		});
+		// Once the consumer is stuck on the first message, the queue fills up,
+		// and everything after its capacity is skipped instead of waiting.
+		status.sendMessage("Message 0");
+		assertTrue(taken.await(10, TimeUnit.SECONDS));
+		int sent = 1 + Status.MESSAGE_CAPACITY * 2;
+		for (int i = 1; i < sent; i++) {
+			status.sendMessage("Message " + i);
+		}
+		release.countDown();
+		status.flush();
+		assertEquals(Status.MESSAGE_CAPACITY + 2, messages.size());
+		// Messages are delivered in the order that they were sent.
+		for (int i = 0; i <= Status.MESSAGE_CAPACITY; i++) {
+			assertEquals("Message " + i, messages.get(i));
+		}
+		assertEquals("(%d messages were skipped)".formatted(Status.MESSAGE_CAPACITY), messages.get(messages.size() - 1));
+	}
+
+	@Test
+	public void testProgressIsCoalesced() throws Exception {
+		List<Float> progress = new CopyOnWriteArrayList<>();
+		Status status = new Status(10_000).withProgressConsumer(progress::add);
+		int threads = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (int i = 0; i < threads; i++) {
+			executor.submit(() -> {
+				for (int j = 0; j < 2500; j++) status.incrementStepsDone();
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		status.flush();
+		assertEquals(1.0f, status.getProgress());
+		assertTrue(progress.size() < 10_000);
+		assertEquals(1.0f, progress.get(progress.size() - 1));
+	}
+
+	@Test
+	public void testThrottledProgressIsDeliveredLater() throws Exception {
+		List<Float> progress = new CopyOnWriteArrayList<>();
+		Status status = new Status(100).withProgressConsumer(progress::add);
+		status.addStepsDone(1);
+		// This update comes within the interval, and no other update follows.
+		status.addStepsDone(1);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!progress.contains(0.02f) && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(progress.contains(0.02f));
+	}
+}
@@ -0,0 +1,111 @@
+package nl.andrewl.email_indexer.gen.util;
+
+import nl.andrewl.email_indexer.util.Status;
+import nl.andrewl.email_indexer.util.Task;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TaskTest {
+	@Test
+	public void testCooperativeCancellation() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicBoolean cleanedUp = new AtomicBoolean(false);
+		Status status = new Status();
+		Task<Void> task = Task.run(status, () -> {
+			started.countDown();
+			try {
+				while (true) {
+					status.checkCancelled();
+					Thread.sleep(1);
+				}
+			} catch (CancellationException e) {
+				cleanedUp.set(true);
+				throw e;
+			}
+		});
+		started.await();
+		assertTrue(task.cancel(false));
+		assertThrows(CancellationException.class, task::join);
+		// The task is only done once the operation has stopped and cleaned up.
+		assertTrue(cleanedUp.get());
+		assertTrue(task.isCancelled());
+		assertFalse(task.cancel(false));
+	}
+
+	@Test
+	public void testCancellationIsScopedToTask() throws Exception {
+		Status status = new Status();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch finish = new CountDownLatch(1);
+		Task<Boolean> otherTask = Task.supply(status, () -> {
+			started.countDown();
+			finish.await();
+			return status.isCancelled();
+		});
+		Task<Void> cancelledTask = Task.run(status, () -> {
+			while (true) {
+				status.checkCancelled();
+				Thread.sleep(1);
+			}
+		});
+		started.await();
+		cancelledTask.cancel(false);
+		finish.countDown();
+		// A task that runs at the same time with the same status keeps going.
+		assertFalse(otherTask.join());
+		assertThrows(CancellationException.class, cancelledTask::join);
+		// So do tasks that are started later.
+		assertEquals("done", Task.supply(status, () -> "done").join());
+
+		// Cancelling through the status only stops the tasks that are running.
+		CountDownLatch running = new CountDownLatch(1);
+		Task<Void> task = Task.run(status, () -> {
+			running.countDown();
+			while (true) {
+				status.checkCancelled();
+				Thread.sleep(1);
+			}
+		});
+		running.await();
+		status.cancel();
+		assertThrows(CancellationException.class, task::join);
+		assertEquals("done", Task.supply(status, () -> "done").join());
+	}
+
+	@Test
+	public void testErrorCompletesTask() {
+		List<String> messages = new CopyOnWriteArrayList<>();
+		Status status = new Status().withMessageConsumer(messages::add);
+		Task<Void> task = Task.run(status, () -> {
+			status.sendMessage("Starting");
+			throw new StackOverflowError();
+		});
+		var e = assertThrows(CompletionException.class, task::join);
+		assertInstanceOf(StackOverflowError.class, e.getCause());
+		assertEquals(List.of("Starting"), messages);
+	}
+
+	@Test
+	public void testThroughputAndEstimate() throws Exception {
+		Status status = new Status();
+		assertTrue(status.getEstimatedTimeRemaining().isEmpty());
+		status.setTotalSteps(100);
+		Thread.sleep(20);
+		status.addStepsDone(50);
+		assertEquals(0.5f, status.getProgress());
+		assertTrue(status.getThroughput() > 0);
+		var remaining = status.getEstimatedTimeRemaining().orElseThrow();
+		assertFalse(remaining.isNegative() || remaining.isZero());
+		// Starting a new phase resets the progress.
+		status.setTotalSteps(10);
+		assertEquals(0, status.getProgress());
+	}
+}